@@ -11,6 +11,14 @@
 set -o nounset
 set -o errexit
 
+# ./gengraph.sh --vertices 10000000 --components 1000 --sizes powerlaw:1.5 --degree 4 --seed 42
+# streams a graph with the given components, see GenGraph, in bounded memory
+if [[ $# -gt 0 && "$1" == --* ]]
+then
+  java -cp target/infection-jar-with-dependencies.jar org.kedar.kai.GenGraph "$@" --out graph.conf
+  exit 0
+fi
+
 if [[ $# == 0 || "$1" == "" ]]
 then
   VERTICES=10
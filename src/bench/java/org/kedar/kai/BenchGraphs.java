@@ -0,0 +1,43 @@
+package org.kedar.kai;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+/**
+ * The graphs the benchmarks run on, generated with {@link GenGraph} from a fixed seed, so that every run and every
+ * fork measures the same graph. A generated file is kept in the temporary directory and reused by later runs.
+ *
+ * @author kedar
+ */
+final class BenchGraphs {
+    static final long SEED = 20141202L;
+
+    private BenchGraphs() {
+    }
+
+    /**
+     * @param vertices int number of vertices
+     * @param degree   int average number of students per user, the maximum is twice that
+     * @return File a graph.conf with about vertices * degree edges
+     */
+    static File file(int vertices, int degree) throws IOException {
+        File f = new File(System.getProperty("java.io.tmpdir"), "kai-bench-" + vertices + "-" + degree + ".conf");
+        if (f.length() > 0)
+            return f;
+        File tmp = File.createTempFile("kai-bench", ".conf");
+        GenGraph.generate(vertices, vertices * degree, 2 * degree, SEED,
+                new PrintStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 20)));
+        if (!tmp.renameTo(f))
+            throw new IOException("could not move " + tmp + " to " + f);
+        return f;
+    }
+
+    static ComponentBuilder build(int vertices, int degree) throws IOException {
+        ComponentBuilder builder = new ComponentBuilder();
+        builder.process(file(vertices, degree));
+        return builder;
+    }
+}
@@ -0,0 +1,59 @@
+package org.kedar.kai;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <code>groups</code>, which prints every component with its members, on the smaller graphs only, as its output
+ * grows with the graph; and <code>groups top</code> and <code>groups summary</code>, whose output does not.
+ *
+ * @author kedar
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class GroupsBench {
+    @Param({"10000", "100000"})
+    int vertices;
+
+    @Param({"1", "4"})
+    int degree;
+
+    private ComponentBuilder builder;
+
+    @Setup
+    public void setUp() throws IOException {
+        builder = BenchGraphs.build(vertices, degree);
+    }
+
+    @Benchmark
+    public String componentsToString() {
+        return builder.componentsToString();
+    }
+
+    @Benchmark
+    public List<Component> largest() {
+        return builder.largest(10);
+    }
+
+    @Benchmark
+    public String groupsSummary() {
+        return builder.groupsSummary();
+    }
+}
@@ -0,0 +1,82 @@
+package org.kedar.kai;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long it takes to set a graph up: {@link ComponentBuilder#process} on the mapped file and on a reader, and the
+ * {@link UnionFind} on its own, over the same edges already in memory.
+ *
+ * @author kedar
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class IngestBench {
+    @Param({"10000", "100000", "1000000", "10000000"})
+    int vertices;
+
+    @Param({"1", "4"})
+    int degree;
+
+    private File graph;
+    private int[] from;
+    private int[] to;
+
+    @Setup
+    public void setUp() throws IOException {
+        graph = BenchGraphs.file(vertices, degree);
+        Random r = new Random(BenchGraphs.SEED);
+        from = new int[vertices * degree];
+        to = new int[from.length];
+        for (int i = 0; i < from.length; i++) {
+            from[i] = r.nextInt(vertices);
+            to[i] = r.nextInt(vertices);
+        }
+    }
+
+    @Benchmark
+    public ComponentBuilder processMapped() throws IOException {
+        ComponentBuilder builder = new ComponentBuilder();
+        builder.process(graph);
+        return builder;
+    }
+
+    @Benchmark
+    public ComponentBuilder processReader() throws IOException {
+        ComponentBuilder builder = new ComponentBuilder();
+        try (BufferedReader reader = new BufferedReader(new FileReader(graph), 1 << 16)) {
+            builder.process(reader);
+        }
+        return builder;
+    }
+
+    @Benchmark
+    public int unionFind() {
+        UnionFind forest = new UnionFind(vertices);
+        for (int i = 0; i < vertices; i++)
+            forest.add(i);
+        for (int i = 0; i < from.length; i++)
+            forest.union(from[i], to[i]);
+        return forest.count();
+    }
+}
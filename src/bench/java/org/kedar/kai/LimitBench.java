@@ -0,0 +1,54 @@
+package org.kedar.kai;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <code>limit~</code> over a range of limits, on a graph that is set up once per trial. The reachable-sizes index
+ * is built in the setup, so this measures the queries that are answered from it, except for the last limit, which is
+ * past the index cap (4M by default) and gets a table of its own on every query.
+ *
+ * @author kedar
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class LimitBench {
+    @Param({"10000", "100000", "1000000", "10000000"})
+    int vertices;
+
+    @Param({"1", "4"})
+    int degree;
+
+    @Param({"10", "1000", "100000", "4000000", "8000000"})
+    int limit;
+
+    private ComponentBuilder builder;
+
+    @Setup
+    public void setUp() throws IOException {
+        builder = BenchGraphs.build(vertices, degree);
+        builder.limitApprox(1); // builds the reachable-sizes index, limitApprox measures the queries that use it
+    }
+
+    @Benchmark
+    public Set<Component> limitApprox() {
+        return builder.limitApprox(limit);
+    }
+}
@@ -0,0 +1,57 @@
+package org.kedar.kai;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The queries on a graph that is set up once per trial: <code>predict</code> and <code>infect</code> of random
+ * users. See {@link LimitBench} and {@link GroupsBench} for the others.
+ *
+ * @author kedar
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class QueryBench {
+    @Param({"10000", "100000", "1000000", "10000000"})
+    int vertices;
+
+    @Param({"1", "4"})
+    int degree;
+
+    private ComponentBuilder builder;
+    private final Random random = new Random(BenchGraphs.SEED);
+
+    @Setup
+    public void setUp() throws IOException {
+        builder = BenchGraphs.build(vertices, degree);
+    }
+
+    @Benchmark
+    public int predict() throws NoSuchUserException {
+        return builder.predict(1 + random.nextInt(vertices));
+    }
+
+    @Benchmark
+    public int infect() throws NoSuchUserException {
+        int uid = 1 + random.nextInt(vertices);
+        builder.infect(uid);
+        return builder.getUserVersion(uid);
+    }
+}
@@ -0,0 +1,406 @@
+package org.kedar.kai;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The coach/student edges in compressed sparse row (CSR) form: the students of user <code>v</code> are
+ * <code>outTargets[outOffsets[v] .. outOffsets[v + 1])</code>, sorted and without duplicates, and the coaches of
+ * <code>v</code> are stored the same way in the reverse arrays. That is 8 bytes per edge and 8 bytes per slot for
+ * both directions, instead of a list object per user.
+ * <p>
+ * The rows are built once, from the edges a {@link Builder} collected while the graph was being read. Edges that
+ * are linked later go into an overlay: a singly linked list per user and direction, kept in int arrays. When the
+ * overlay gets as big as the rows, the two are compacted into new rows, so an edge is copied O(1) times on average.
+ * Removed edges are only marked, until the next compaction.
+ * </p>
+ * <p>
+ * The edges of a user are walked with a cursor, so that a traversal does not allocate:
+ * <pre>
+ *     for (int e = edges.firstOut(v); e != Adjacency.END; e = edges.nextOut(v, e))
+ *         visit(edges.target(e));
+ * </pre>
+ * A non-negative cursor is a position in the rows, a cursor below -1 is a node of the overlay.
+ * </p>
+ *
+ * @author kedar
+ */
+final class Adjacency {
+    static final int END = -1;
+    private static final int MIN_OVERLAY = 1024;
+
+    private int[] outOffsets; // the rows cover the slots below rowCapacity()
+    private int[] outTargets;
+    private int[] inOffsets;
+    private int[] inTargets;
+    private int capacity;
+    private int[] outHead;    // first overlay node of each slot, END if none
+    private int[] inHead;
+    private int[] nodeTarget = new int[0];
+    private int[] nodeNext = new int[0];
+    private int nodes = 0;    // overlay nodes in use, two per linked edge
+    private int dead = 0;     // removed edges still taking room, in the rows or in the overlay
+
+    private Adjacency(int[] outOffsets, int[] outTargets) {
+        layOut(outOffsets, outTargets);
+        this.capacity = outOffsets.length - 1;
+        this.outHead = new int[capacity];
+        this.inHead = new int[capacity];
+        Arrays.fill(outHead, END);
+        Arrays.fill(inHead, END);
+    }
+
+    /**
+     * Rebuilds the store from its forward half, see {@link Snapshot}.
+     */
+    static Adjacency fromRows(int[] outOffsets, int[] outTargets) {
+        return new Adjacency(outOffsets, outTargets);
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Makes room for more slots, without touching the rows.
+     *
+     * @param capacity int the new number of slots
+     */
+    void grow(int capacity) {
+        if (capacity <= this.capacity)
+            return;
+        outHead = Arrays.copyOf(outHead, capacity);
+        inHead = Arrays.copyOf(inHead, capacity);
+        Arrays.fill(outHead, this.capacity, capacity, END);
+        Arrays.fill(inHead, this.capacity, capacity, END);
+        this.capacity = capacity;
+    }
+
+    int edges() {
+        return outTargets.length + nodes / 2 - dead;
+    }
+
+    int firstOut(int v) {
+        int e = v < rowCapacity() && outOffsets[v] < outOffsets[v + 1] ? outOffsets[v] : node(outHead[v]);
+        return e == END || raw(e) >= 0 ? e : nextOut(v, e);
+    }
+
+    int nextOut(int v, int e) {
+        do {
+            if (e >= 0)
+                e = e + 1 < outOffsets[v + 1] ? e + 1 : node(outHead[v]);
+            else
+                e = node(nodeNext[-e - 2]);
+        } while (e != END && raw(e) < 0); // skip the removed edges
+        return e;
+    }
+
+    int firstIn(int v) {
+        int e = v < rowCapacity() && inOffsets[v] < inOffsets[v + 1] ? inOffsets[v] | IN_ROW : node(inHead[v]);
+        return e == END || raw(e) >= 0 ? e : nextIn(v, e);
+    }
+
+    int nextIn(int v, int e) {
+        do {
+            if (e >= 0) {
+                int i = (e & ~IN_ROW) + 1;
+                e = i < inOffsets[v + 1] ? i | IN_ROW : node(inHead[v]);
+            } else {
+                e = node(nodeNext[-e - 2]);
+            }
+        } while (e != END && raw(e) < 0);
+        return e;
+    }
+
+    /**
+     * @param e int a cursor
+     * @return int the user at the other end of the edge
+     */
+    int target(int e) {
+        return raw(e);
+    }
+
+    /**
+     * @param coach   int a slot
+     * @param student int another slot
+     * @return boolean true if the coach coaches the student
+     */
+    boolean contains(int coach, int student) {
+        int e = rowSearch(outTargets, outOffsets, coach, student);
+        if (e >= 0 && outTargets[e] >= 0)
+            return true;
+        return overlaySearch(outHead[coach], student) != END;
+    }
+
+    /**
+     * Adds an edge, unless it is there already. A removed edge of the rows is revived, any other goes to the overlay.
+     *
+     * @param coach   int a slot below the capacity
+     * @param student int another slot below the capacity
+     * @return boolean true if the edge is new
+     */
+    boolean add(int coach, int student) {
+        if (coach == student || contains(coach, student))
+            return false;
+        int e = rowSearch(outTargets, outOffsets, coach, student);
+        if (e >= 0) {
+            outTargets[e] = student;
+            inTargets[rowSearch(inTargets, inOffsets, student, coach)] = coach;
+            dead -= 1;
+            return true;
+        }
+        if (nodes + 2 > nodeTarget.length) {
+            int n = Math.max(16, nodeTarget.length * 2);
+            nodeTarget = Arrays.copyOf(nodeTarget, n);
+            nodeNext = Arrays.copyOf(nodeNext, n);
+        }
+        nodeTarget[nodes] = student;
+        nodeNext[nodes] = outHead[coach];
+        outHead[coach] = nodes++;
+        nodeTarget[nodes] = coach;
+        nodeNext[nodes] = inHead[student];
+        inHead[student] = nodes++;
+        compactIfWasteful();
+        return true;
+    }
+
+    /**
+     * Removes an edge. It is only marked as removed, as the bitwise complement of its target, which keeps the rows
+     * sorted; the next compaction drops it.
+     *
+     * @param coach   int a slot below the capacity
+     * @param student int another slot below the capacity
+     * @return boolean true if the edge was there
+     */
+    boolean remove(int coach, int student) {
+        int e = rowSearch(outTargets, outOffsets, coach, student);
+        if (e >= 0 && outTargets[e] >= 0) {
+            outTargets[e] = ~student;
+            int r = rowSearch(inTargets, inOffsets, student, coach);
+            inTargets[r] = ~coach;
+        } else {
+            int k = overlaySearch(outHead[coach], student);
+            if (k == END)
+                return false;
+            nodeTarget[k] = ~student;
+            nodeTarget[overlaySearch(inHead[student], coach)] = ~coach;
+        }
+        dead += 1;
+        compactIfWasteful();
+        return true;
+    }
+
+    /**
+     * Folds the overlay into new rows.
+     */
+    void compact() {
+        if (nodes == 0 && dead == 0 && rowCapacity() == capacity)
+            return;
+        int[] offsets = new int[capacity + 1];
+        for (int v = 0; v < capacity; v++) {
+            int degree = 0;
+            for (int e = firstOut(v); e != END; e = nextOut(v, e))
+                degree += 1;
+            offsets[v + 1] = offsets[v] + degree;
+        }
+        int[] targets = new int[offsets[capacity]];
+        for (int v = 0; v < capacity; v++) {
+            int w = offsets[v];
+            for (int e = firstOut(v); e != END; e = nextOut(v, e))
+                targets[w++] = target(e);
+            Arrays.sort(targets, offsets[v], w);
+        }
+        layOut(offsets, targets);
+        Arrays.fill(outHead, END);
+        Arrays.fill(inHead, END);
+        nodeTarget = new int[0];
+        nodeNext = new int[0];
+        nodes = 0;
+        dead = 0;
+    }
+
+    /**
+     * @param v int a slot
+     * @return int[] the students of the user in the slot, in increasing order
+     */
+    int[] students(int v) {
+        return collect(v, true);
+    }
+
+    /**
+     * @param v int a slot
+     * @return int[] the coaches of the user in the slot, in increasing order
+     */
+    int[] coaches(int v) {
+        return collect(v, false);
+    }
+
+    /**
+     * @return int[] the row offsets, after folding the overlay in
+     */
+    int[] outOffsets() {
+        compact();
+        return outOffsets;
+    }
+
+    /**
+     * @return int[] the row targets, after folding the overlay in
+     */
+    int[] outTargets() {
+        compact();
+        return outTargets;
+    }
+
+    /**
+     * @return long bytes taken by the store
+     */
+    long bytes() {
+        return 4L * (outOffsets.length + outTargets.length + inOffsets.length + inTargets.length
+                + outHead.length + inHead.length + nodeTarget.length + nodeNext.length);
+    }
+
+    // PRIVATE
+
+    private static final int IN_ROW = 1 << 30; // marks a cursor into the reverse rows
+
+    private int rowCapacity() {
+        return outOffsets.length - 1;
+    }
+
+    /**
+     * @return int the target at the given cursor, negative if the edge was removed
+     */
+    private int raw(int e) {
+        if (e >= 0)
+            return (e & IN_ROW) != 0 ? inTargets[e & ~IN_ROW] : outTargets[e];
+        return nodeTarget[-e - 2];
+    }
+
+    /**
+     * A binary search of a row that sees through the removal marks.
+     *
+     * @return int the position of the target in the row of v, removed or not, or -1 if it is not there
+     */
+    private int rowSearch(int[] targets, int[] offsets, int v, int target) {
+        if (v >= rowCapacity())
+            return -1;
+        int lo = offsets[v], hi = offsets[v + 1] - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int t = targets[mid] < 0 ? ~targets[mid] : targets[mid];
+            if (t < target)
+                lo = mid + 1;
+            else if (t > target)
+                hi = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+
+    /**
+     * @return int the overlay node in the list that starts at head that holds the target, not removed, or END
+     */
+    private int overlaySearch(int head, int target) {
+        for (int k = head; k != END; k = nodeNext[k])
+            if (nodeTarget[k] == target)
+                return k;
+        return END;
+    }
+
+    private void compactIfWasteful() {
+        if (nodes / 2 + dead > Math.max(MIN_OVERLAY, outTargets.length))
+            compact();
+    }
+
+    private static int node(int k) {
+        return k == END ? END : -k - 2;
+    }
+
+    private int[] collect(int v, boolean out) {
+        int n = 0;
+        for (int e = out ? firstOut(v) : firstIn(v); e != END; e = out ? nextOut(v, e) : nextIn(v, e))
+            n += 1;
+        int[] a = new int[n];
+        int i = 0;
+        for (int e = out ? firstOut(v) : firstIn(v); e != END; e = out ? nextOut(v, e) : nextIn(v, e))
+            a[i++] = target(e);
+        Arrays.sort(a);
+        return a;
+    }
+
+    /**
+     * Takes the given forward rows and derives the reverse ones, with a counting sort.
+     */
+    private void layOut(int[] outOffsets, int[] outTargets) {
+        if (outTargets.length >= IN_ROW)
+            throw new IllegalStateException("too many edges: " + outTargets.length);
+        this.outOffsets = outOffsets;
+        this.outTargets = outTargets;
+        int rows = outOffsets.length - 1;
+        this.inOffsets = new int[rows + 1];
+        for (int e = 0; e < outTargets.length; e++)
+            inOffsets[outTargets[e] + 1] += 1;
+        for (int v = 0; v < rows; v++)
+            inOffsets[v + 1] += inOffsets[v];
+        this.inTargets = new int[outTargets.length];
+        int[] fill = Arrays.copyOf(inOffsets, rows);
+        for (int v = 0; v < rows; v++) { // sources in increasing order, so each reverse row comes out sorted
+            for (int e = outOffsets[v]; e < outOffsets[v + 1]; e++)
+                inTargets[fill[outTargets[e]]++] = v;
+        }
+    }
+
+    /**
+     * Collects coach to student edges, in any order and with duplicates, as pairs of ints.
+     */
+    static final class Builder {
+        private int[] edges = new int[1024]; // coach, student, coach, student ...
+        private int size = 0;
+
+        void add(int coach, int student) {
+            if (coach == student)
+                return; // coaching oneself does not connect anything
+            if (size + 2 > edges.length)
+                edges = Arrays.copyOf(edges, edges.length * 2);
+            edges[size++] = coach;
+            edges[size++] = student;
+        }
+
+        /**
+         * Lays the collected edges out in CSR form, with a counting sort by coach.
+         *
+         * @param capacity int number of slots
+         * @param builders List of the builders whose edges make up the graph
+         * @return Adjacency the store
+         */
+        static Adjacency build(int capacity, List<Builder> builders) {
+            int[] offsets = new int[capacity + 1];
+            for (Builder b : builders)
+                for (int i = 0; i < b.size; i += 2)
+                    offsets[b.edges[i] + 1] += 1;
+            for (int v = 0; v < capacity; v++)
+                offsets[v + 1] += offsets[v];
+            int[] targets = new int[offsets[capacity]];
+            int[] fill = Arrays.copyOf(offsets, capacity);
+            for (Builder b : builders) {
+                for (int i = 0; i < b.size; i += 2)
+                    targets[fill[b.edges[i]]++] = b.edges[i + 1];
+                b.edges = null; // let it go as soon as possible, the edges can be many
+            }
+            // sort each row and squeeze out the duplicates, in place
+            int w = 0;
+            for (int v = 0; v < capacity; v++) {
+                int from = offsets[v], to = offsets[v + 1];
+                Arrays.sort(targets, from, to);
+                offsets[v] = w;
+                for (int e = from; e < to; e++) {
+                    if (e == from || targets[e] != targets[e - 1])
+                        targets[w++] = targets[e];
+                }
+            }
+            offsets[capacity] = w;
+            return new Adjacency(offsets, w == targets.length ? targets : Arrays.copyOf(targets, w));
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package org.kedar.kai;
+
+import java.util.Arrays;
+
+/**
+ * What a batch of predictions or infections did, see {@link ComponentBuilder#predictBatch(long[], int)} and
+ * {@link ComponentBuilder#infectBatch(long[], int)}. The ids of a batch are reduced to the distinct components they
+ * are in, so the total is the size of the union, however many members of a component were asked about. Every
+ * component is recorded once, as the id of its root, its size and its version (the new one after an infection), in a
+ * packed long array.
+ *
+ * @author kedar
+ */
+final class BatchReport {
+    private static final int SHOWN = 10; // groups spelled out by toString
+
+    int asked;      // ids in the batch
+    int unknown;    // ids that are not users
+    long users;     // users in all the groups, each group counted once
+    boolean infected;
+    long nanos;
+    private long[] groups = new long[0]; // root, size, version ...
+    private int ngroups;
+
+    void group(long root, int size, int version) {
+        if (3 * ngroups + 3 > groups.length)
+            groups = Arrays.copyOf(groups, Math.max(48, groups.length * 2));
+        int at = 3 * ngroups++;
+        groups[at] = root;
+        groups[at + 1] = size;
+        groups[at + 2] = version;
+        users += size;
+    }
+
+    int groups() {
+        return ngroups;
+    }
+
+    /**
+     * @param i    int 0 up to {@link #groups()}
+     * @param what int 0: root, 1: size, 2: version
+     */
+    long group(int i, int what) {
+        return groups[3 * i + what];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(asked).append(" id(s), ").append(unknown).append(" unknown, in ").append(ngroups)
+                .append(" group(s) of ").append(users).append(" user(s) in all")
+                .append(infected ? ", infected" : " would be infected").append(" in ").append(nanos / 1000).append(" us");
+        for (int i = 0; i < Math.min(SHOWN, ngroups); i++) {
+            sb.append(String.format("%n  group %d, #users: %d, version: %d", group(i, 0), group(i, 1), group(i, 2)));
+        }
+        if (ngroups > SHOWN)
+            sb.append(String.format("%n  ... and %d more", ngroups - SHOWN));
+        return sb.toString();
+    }
+}
@@ -1,101 +1,145 @@
 package org.kedar.kai;
 
-import java.util.HashSet;
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 /**
  * A group, or connected subgraph of the Graph, calling it a component is perhaps a mistake, but
  * I am doing that in the interest of time. In a given ComponentBuilder of KA users (for this assignment)
  * each component identifies the transitive relationship between coaches and students. The
- * identifier of a component is a User that identifies that component. When adding component
- * B to A (merging B with A), the identifier of each user in B is changed to the identifier of A.
- * Iteration efficiency is important here (although, this implementation still uses HashSet, whose iteration
- * efficiency is not great -- TODO).
+ * identifier of a component is a User that identifies that component: the root of its set in the
+ * {@link UnionFind} forest.
+ * <p>
+ * A component is only a view: it holds the root and nothing else. Its members are never copied into a collection,
+ * they are walked on demand through the forest's circular member list, in time proportional to the size. The view
+ * is valid until the next union that involves its root. The {@link User}s it hands out are made on the fly from
+ * the slots, there is no object per user behind them.
+ * </p>
  *
  * @author kedar
  */
 class Component implements Iterable<User>, Comparable<Component> {
-    private User identifier;
-    private HashSet<User> members;
+    private final UnionFind forest;
+    private final Versions versions;
+    private final long[] ids; // the user id of each slot, null if the ids are the slots
+    private final int root;
 
-    Component(User identifier) {
-        this.identifier = identifier;
-        this.members = new HashSet<>();
-        this.addMember(identifier);
+    Component(UnionFind forest, Versions versions, long[] ids, int root) {
+        this.forest = forest;
+        this.versions = versions;
+        this.ids = ids;
+        this.root = root;
     }
 
     int size() {
-        return this.members.size();
+        return forest.size(root);
     }
 
     User identifier() {
-        return this.identifier;
+        return new User(id(root));
     }
 
     /**
-     * The classic union operation -- the only mutating method this class exposes.
-     *
-     * @param other the other component whose members are to be merged into this one.
-     */
-    void merge(Component other) {
-        Iterator<User> oi = other.iterator();
-        while (oi.hasNext()) {
-            User m = oi.next();
-            this.addMember(m);
-        }
-    }
-
-    void addMember(User m) {
-        this.members.add(m);
-        m.setComponent(this);
-    }
-
-    /**
-     * Infects each member of this component. A version parameter could be passed for upgrade/downgrade scenarios (TODO)
+     * Infects each member of this component: they all move to the version of the identifier + 1. The members are not
+     * visited, the version is kept once for the whole component, see {@link Versions}. A version parameter could be
+     * passed for upgrade/downgrade scenarios (TODO)
      */
     void infect() {
-        int v = this.identifier.version() + 1; //bumped-up version
-        for (User u : this)
-            u.infect(v);
+        versions.infect(root);
     }
 
     int getVersion() {
-        return this.identifier.version();
+        return versions.of(root);
     }
 
     @Override
     public Iterator<User> iterator() {
-        return members.iterator();
+        return new Iterator<User>() {
+            private int cursor = root;
+            private boolean done = false;
+
+            @Override
+            public boolean hasNext() {
+                return !done;
+            }
+
+            @Override
+            public User next() {
+                if (done)
+                    throw new NoSuchElementException();
+                User u = new User(id(cursor));
+                cursor = forest.next(cursor);
+                done = cursor == root;
+                return u;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Prints the identifier, the size and the members, a member at a time, so that printing a component with
+     * millions of members does not build a string of them first.
+     *
+     * @param out PrintWriter to print to, without a line separator at the end
+     */
+    void printTo(PrintWriter out) {
+        out.print("Id user: ");
+        out.print(id(root));
+        out.print(", #users: ");
+        out.print(size());
+        out.print(": [");
+        for (int m = root, i = size(); i > 0; i--, m = forest.next(m)) {
+            out.print(id(m));
+            if (i > 1)
+                out.print(", ");
+        }
+        out.print(']');
+    }
+
+    private long id(int slot) {
+        return ids != null ? ids[slot] : slot;
     }
 
     @Override
     public String toString() {
-        return "Id user: " + this.identifier.id + ", #users: " + this.size() + ": " + this.members;
+        StringWriter sw = new StringWriter();
+        PrintWriter out = new PrintWriter(sw);
+        printTo(out);
+        out.flush();
+        return sw.toString();
     }
 
     /**
-     * Implements the natural ordering of components.
+     * Implements the natural ordering of components: by identifier first, then by size. Two views of the same
+     * root are the same component, so there is no need to compare the members themselves.
      * @param that Component whose relative order is to be determined
      * @return -1, 0 or 1
      */
     @Override
     public int compareTo(Component that) {
-        int idc = this.identifier.compareTo(that.identifier); //id comparison
-        int sc; //member size comparison
-        if (this.members.equals(that.members))
-            sc = 0;
-        else {
-            if (this.members.size() < that.members.size())
-                sc = -1;
-            else
-                sc = 1;
-        }
-        if (idc == 0) //two components have the 'same' identifier
-            return sc;
-        else
-            return idc;
+        if (this.root != that.root)
+            return this.root < that.root ? -1 : 1;
+        int s = this.size(), ts = that.size();
+        return s < ts ? -1 : (s == ts ? 0 : 1);
     }
 
-    //Private ...
+    @Override
+    public int hashCode() {
+        return root;
+    }
 
+    @Override
+    public boolean equals(Object o) {
+        if (o instanceof Component) {
+            Component that = (Component) o;
+            return this.root == that.root && this.forest == that.forest;
+        }
+        return false;
+    }
 }
@@ -1,43 +1,114 @@
 package org.kedar.kai;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 /**
  * Models a class that builds the Components. The essence of this exercise is to build a data structure
  * that is more like write-once-read-always in that we create the connected components from a given
- * set of relationships and query them for various things of interest w.r.t. infections. This is the reason we
- * do not capture the adjacency list/matrix representation of the graph at all. In a bigger project, of course,
- * this is not what we would do, but instead, add the vertex references into components and each vertex
- * would point to its component (like we do here too).
+ * set of relationships and query them for various things of interest w.r.t. infections.
+ * <p>
+ * The components live in a {@link UnionFind} forest indexed by user id. A {@link Component} is only handed out as a
+ * view of a root, resolved when it is asked for. By default the edges are kept too, in a compact {@link Adjacency}
+ * store, for the queries that need to look inside a component: students, coaches, unlink and partial infections.
+ * <code>new ComponentBuilder(false)</code> is the edge-less mode, the way this started out: only the components are
+ * kept, which is all that infect, predict and the limits need, and the queries that need the edges are refused.
+ * </p>
+ * <p>
+ * By default a user id is its slot in the forest, so the arrays are as long as the biggest id. With sparse ids
+ * (<code>-Dkai.sparse.ids=true</code>, or the constructor) the ids are arbitrary non-negative 64-bit values, the
+ * graph file has no header line, and each id gets the next free slot the first time it is seen, through a
+ * {@link LongIntMap}: the memory then follows the number of users, whatever the ids are. Everything inside works on
+ * slots; the ids are mapped at the edges, in the methods that take or return user ids.
+ * </p>
  *
  * @author kedar
  */
-class ComponentBuilder {
+class ComponentBuilder implements Closeable {
 
-    static final Comparator<Component> SIZE_COMPARATOR = new Comparator<Component>() {
+    static final boolean SPARSE_IDS = Boolean.getBoolean("kai.sparse.ids");
+    /**
+     * How far a new dense id may grow the forest: up to twice its slots plus this many, so that a typo like
+     * <code>link 1 2000000000</code> is refused instead of growing every column to billions of slots.
+     */
+    static final int ID_HEADROOM = Integer.getInteger("kai.ids.headroom", 1 << 20);
+
+    private final boolean keepEdges;
+    private final boolean sparse;
+    private LongIntMap ids;  // the slot of each user id, only if the ids are sparse
+    private long[] external; // the user id of each slot, only if the ids are sparse
+    private final GraphScanner.Ids interner = new GraphScanner.Ids() {
         @Override
-        public int compare(Component o1, Component o2) {
-            if (o1.size() < o2.size())
-                return -1;
-            if (o1.size() > o2.size())
-                return 1;
-            //return 0; //bug!
-            return o1.compareTo(o2);
+        public int slot(long id) {
+            return intern(id);
         }
     };
-    private final Set<Component> components;
-    private User[] vertices;
+    private int slots;       // the slots in use are below this: the number of vertices + 1, the forest may have more
+    private UnionFind forest;
+    private Versions versions;           // the version of every user, kept per component
+    private Adjacency.Builder collected; // the edges seen so far, while the graph is being read
+    private Adjacency edges;             // null if the edges are not kept
+    private PartialInfection partial;    // reused by every partial infection, on the current edges
+    private ComponentSplitter splitter;  // reused by every unlink, on the current edges
+    private long[] batched = new long[0]; // bitmap of the roots the batch in progress has seen, clear in between
+    private Journal journal;   // where the changes go, null if they are not journaled
+    private long journalId;    // the journal whose first records this graph includes, see Snapshot
+    private long journaled;    // how many
+    private long modCount = 0; // bumped on every change to the component structure
+    private long parsedLines;  // what the setup in progress parsed, see Metrics
+    private long parsedEdges;
+    private long parsedUnions;
+    private int indexCap = Integer.getInteger("kai.index.cap", 1 << 22);
+    private SubsetSum index;   // the reachable-sizes index, valid while indexedAt == modCount
+    private long indexedAt = -1;
+    private long indexNanos;
 
     ComponentBuilder() {
-        components = new HashSet<>();
+        this(true);
+    }
+
+    /**
+     * @param keepEdges boolean false to only keep the components, which saves about 8 bytes per edge
+     */
+    ComponentBuilder(boolean keepEdges) {
+        this(keepEdges, SPARSE_IDS);
+    }
+
+    /**
+     * @param keepEdges boolean false to only keep the components
+     * @param sparse    boolean true if the user ids are sparse 64-bit values, with no header line in the graph files
+     */
+    ComponentBuilder(boolean keepEdges, boolean sparse) {
+        this.keepEdges = keepEdges;
+        this.sparse = sparse;
+        if (sparse) {
+            ids = new LongIntMap();
+            external = new long[1];
+        }
+        forest = new UnionFind(1);
+        versions = new Versions(forest);
+        slots = 1;
+        edges = keepEdges ? Adjacency.Builder.build(1, Collections.<Adjacency.Builder>emptyList()) : null;
     }
 
     String process(BufferedReader reader) throws IOException {
+        long start = System.nanoTime();
         String line;
-        line = reader.readLine(); //the first line should contain number of vertices
-        vertices = new User[Integer.valueOf(line) + 1]; // to use more straightforward indexing where index = user's id
+        if (sparse) {
+            init(0); // there is no header, the slots are handed out as the ids come
+        } else {
+            line = reader.readLine(); //the first line should contain number of vertices
+            init(Integer.valueOf(line));
+        }
         while ((line = reader.readLine()) != null) {
             if (line.startsWith("#"))
                 break;
@@ -45,56 +116,556 @@ class ComponentBuilder {
             if (!t.hasMoreTokens())
                 continue;
             int[] sids = new int[t.countTokens() - 1];
-            int uid = Integer.valueOf(t.nextToken());
+            int uid = parseId(t.nextToken());
             int i = 0;
             while (t.hasMoreTokens())
-                sids[i++] = Integer.valueOf(t.nextToken());
-            processLine(uid, sids);
+                sids[i++] = parseId(t.nextToken());
+            processLine(uid, sids, sids.length);
+        }
+        layOutEdges();
+        Metrics.get().setup(parsedLines, parsedEdges, parsedUnions, System.nanoTime() - start);
+        return summary();
+    }
+
+    /**
+     * Processes the given graph.conf the same way {@link #process(BufferedReader)} does, but memory-maps the file and
+     * scans its bytes directly, see {@link GraphScanner}. Nothing is allocated per line, which is what makes
+     * multi-GB files practical.
+     *
+     * @param file File the graph.conf file
+     * @return String a summary of what was processed
+     * @throws IOException if the file can't be read or is malformed
+     */
+    String process(File file) throws IOException {
+        long start = System.nanoTime();
+        GraphScanner.Sink sink = new GraphScanner.Sink() {
+            @Override
+            public void header(int n) {
+                init(n);
+            }
+
+            @Override
+            public void line(int uid, int[] sids, int count) {
+                processLine(uid, sids, count);
+            }
+        };
+        if (sparse) {
+            init(0);
+            GraphScanner.scan(file, sink, interner);
+        } else {
+            GraphScanner.scan(file, sink);
+        }
+        layOutEdges();
+        Metrics.get().setup(parsedLines, parsedEdges, parsedUnions, System.nanoTime() - start);
+        return summary();
+    }
+
+    /**
+     * Processes the given graph.conf on the given number of threads, see {@link ParallelLoader}. The components
+     * are exactly the ones {@link #process(File)} would form. Sparse ids get their slots in the order they are read,
+     * so they are processed on one thread, the way {@link #process(File)} does.
+     *
+     * @param file    File the graph.conf file
+     * @param threads int number of worker threads
+     * @return String a summary of what was processed
+     * @throws IOException if the file can't be read or is malformed
+     */
+    String process(File file, int threads) throws IOException {
+        if (sparse)
+            return process(file);
+        long start = System.nanoTime();
+        ParallelLoader loader = new ParallelLoader(threads);
+        loader.load(file, this);
+        Metrics.get().setup(loader.lines(), loader.edges(), parsedUnions, System.nanoTime() - start);
+        return summary();
+    }
+
+    /**
+     * Processes the given graph.conf in the given number of worker processes, see {@link ShardedLoader}. The
+     * components are exactly the ones {@link #process(File)} would form; the edges are not collected.
+     *
+     * @param file   File the graph.conf file, with dense ids
+     * @param shards int number of worker processes
+     * @return String a summary of what was processed
+     * @throws IOException           if the file can't be read or is malformed, or a worker fails
+     * @throws IllegalStateException if this builder keeps the edges or has sparse ids
+     */
+    String processSharded(File file, int shards) throws IOException {
+        if (keepEdges || sparse)
+            throw new IllegalStateException("a sharded setup needs a builder without the edges, on dense ids");
+        long start = System.nanoTime();
+        ShardedLoader loader = new ShardedLoader(shards);
+        loader.load(file, this);
+        Metrics.get().setup(loader.lines(), loader.edges(), parsedUnions, System.nanoTime() - start);
+        return summary();
+    }
+
+    /**
+     * Replays the records of the given journal that this graph does not include yet, then journals every change
+     * from now on, a commit per operation, before the change is made: an operation whose records could not be
+     * written fails with an {@link UncheckedIOException} and changes nothing. A freshly set up graph includes none of
+     * the records; a restored one the ones its snapshot had. A record that no longer applies, to a user that is not
+     * in the graph for one, is skipped.
+     *
+     * @param journal Journal the journal
+     * @return long[] number of records replayed and number of them skipped
+     * @throws IOException if the journal can't be read
+     */
+    long[] attach(Journal journal) throws IOException {
+        this.journal = null; // what is replayed is in the journal already
+        Replay replay = new Replay();
+        long n = journal.replay(journal.id() == journalId ? journaled : 0, replay);
+        this.journal = journal;
+        journalId = journal.id();
+        journaled = journal.records();
+        return new long[]{n, replay.skipped};
+    }
+
+    /**
+     * @param id      long the journal whose first records the graph includes
+     * @param records long how many, see {@link Snapshot}
+     */
+    void journaled(long id, long records) {
+        journalId = id;
+        journaled = records;
+    }
+
+    long journalId() {
+        return journalId;
+    }
+
+    long journaled() {
+        return journaled;
+    }
+
+    /**
+     * Applies the records of a journal, skipping the ones that no longer apply. A partial infection is applied to
+     * the very users it reached, once all of its records are in: selecting them again could pick others, the order
+     * of the edges changes when they are compacted.
+     */
+    private final class Replay implements Journal.Target {
+        private final LinkReport report = new LinkReport();
+        private long skipped;
+        private long start;     // the SELECTED in progress: its user,
+        private int version;    // the version its users move to,
+        private long[] members; // and the users so far
+        private int nmembers;
+
+        @Override
+        public void apply(int type, int arg, long a, long b) {
+            if (members != null && type != Journal.MEMBERS) { // cannot happen, the journal cuts such a tail
+                members = null;
+                skipped += 1;
+            }
+            try {
+                switch (type) {
+                    case Journal.INFECT:
+                        infect(a);
+                        break;
+                    case Journal.PARTIAL:
+                        infectPartial(a, arg);
+                        break;
+                    case Journal.SELECTED:
+                        if (arg <= 0)
+                            throw new IllegalArgumentException("invalid partial infection: " + a);
+                        start = a;
+                        version = (int) b;
+                        members = new long[arg];
+                        nmembers = 0;
+                        break;
+                    case Journal.MEMBERS:
+                        if (members == null)
+                            throw new IllegalArgumentException("users of no partial infection: " + a);
+                        members[nmembers++] = a;
+                        if (b >= 0 && nmembers < members.length)
+                            members[nmembers++] = b;
+                        if (nmembers == members.length)
+                            infectSelected();
+                        break;
+                    case Journal.LINK:
+                        link(a, b, report);
+                        break;
+                    case Journal.UNLINK:
+                        unlink(a, b);
+                        break;
+                    case Journal.USER:
+                        if (a < 0)
+                            throw new IllegalArgumentException("invalid user id: " + a);
+                        addUser(enroll(a));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("unknown journal record: " + type);
+                }
+            } catch (NoSuchUserException | IllegalArgumentException | IllegalStateException e) {
+                skipped += 1;
+                if (type == Journal.MEMBERS) // the rest of its records are skipped too
+                    members = null;
+            }
+        }
+
+        private void infectSelected() throws NoSuchUserException {
+            long[] ids = members;
+            members = null;
+            int[] users = new int[ids.length];
+            for (int i = 0; i < ids.length; i++)
+                users[i] = checked(ids[i]);
+            moveUp(checked(start), version, users);
+        }
+    }
+
+    /**
+     * Adds a record to the journal, if there is one; {@link #commit()} writes it.
+     */
+    private void journal(int type, int arg, long a, long b) {
+        if (journal == null)
+            return;
+        try {
+            journal.append(type, arg, a, b);
+        } catch (IOException e) {
+            throw new UncheckedIOException("could not write the journal, nothing was changed: " + journal.file(), e);
+        }
+    }
+
+    /**
+     * Writes the records of an operation to the journal together, with one sync at most, before it changes anything.
+     */
+    private void commit() {
+        if (journal == null)
+            return;
+        try {
+            journal.commit();
+        } catch (IOException e) {
+            throw new UncheckedIOException("could not write the journal, nothing was changed: " + journal.file(), e);
+        }
+        journaled = journal.records();
+    }
+
+    /**
+     * Replaces the current graph with the one the workers of a {@link ParallelLoader} built.
+     *
+     * @param cuf   ConcurrentUnionFind a forest no one is updating anymore
+     * @param edges List of the edges the workers collected, ignored if the edges are not kept
+     */
+    void adopt(ConcurrentUnionFind cuf, List<Adjacency.Builder> edges) {
+        init(cuf.capacity() - 1);
+        for (int i = 0; i < slots; i++) {
+            if (cuf.contains(i) && cuf.find(i) == i)
+                addUser(i);
+        }
+        for (int i = 0; i < slots; i++) {
+            if (cuf.contains(i) && !forest.contains(i)) {
+                forest.attach(i, cuf.find(i));
+                parsedUnions += 1; // every user that is not a root took one union to join its component
+            }
         }
-        return "Done! Processed: " + (vertices.length - 1) + " vertices, formed: " + components.size() + " component(s)";
+        versions.recount();
+        if (keepEdges)
+            this.edges = Adjacency.Builder.build(forest.capacity(), edges);
+        collected = null;
+    }
+
+    /**
+     * Replaces the current graph with a saved one, see {@link Snapshot}.
+     *
+     * @param labels   int[] the root of each user's component, -1 for a slot that is not a user
+     * @param versions int[] the version of each user
+     * @param userIds  long[] the user id of each slot if the ids are sparse, null otherwise
+     * @param edges    Adjacency the edges, or null if they were not saved
+     */
+    void restore(int[] labels, int[] versions, long[] userIds, Adjacency edges) {
+        if ((userIds != null) != sparse)
+            throw new IllegalArgumentException(sparse ? "the snapshot has no sparse ids" : "the snapshot has sparse ids");
+        init(labels.length - 1);
+        collected = null;
+        this.edges = keepEdges ? edges : null;
+        if (sparse) {
+            for (int i = 0; i < labels.length; i++) {
+                if (labels[i] >= 0) {
+                    external[i] = userIds[i];
+                    ids.put(userIds[i], i);
+                }
+            }
+        }
+        for (int i = 0; i < labels.length; i++) {
+            if (labels[i] == i)
+                addUser(i);
+        }
+        for (int i = 0; i < labels.length; i++) {
+            int root = labels[i];
+            if (root < 0 || root == i)
+                continue;
+            if (root >= labels.length || labels[root] != root)
+                throw new IllegalArgumentException("user: " + i + " has an invalid root: " + root);
+            forest.attach(i, root);
+        }
+        for (int i = 0; i < labels.length; i++) {
+            if (labels[i] == i)
+                this.versions.rebase(i, versions[i]);
+        }
+        for (int i = 0; i < labels.length; i++) {
+            if (labels[i] >= 0 && labels[i] != i)
+                this.versions.set(i, versions[i]); // a no-op for the members on the version of their root
+        }
+        this.versions.recount(); // the members joined their roots without being counted
+    }
+
+    /**
+     * @param slot int a slot, 0 up to the number of vertices
+     * @return int the root of the component of the user in the slot, or -1 if the slot is not a user
+     */
+    int label(int slot) {
+        return forest.contains(slot) ? forest.find(slot) : -1;
+    }
+
+    /**
+     * @param slot int a slot that is a user
+     * @return long the id of the user
+     */
+    long id(int slot) {
+        return sparse ? external[slot] : slot;
+    }
+
+    boolean isSparse() {
+        return sparse;
+    }
+
+    /**
+     * @param slot int a slot that is a user
+     * @return int its version
+     */
+    int storedVersion(int slot) {
+        return versions.of(slot);
+    }
+
+    boolean hasEdges() {
+        return edges != null;
+    }
+
+    /**
+     * Lets go of the columns of the forest and of the versions, for a graph that is replaced by another one: off the
+     * heap, they would otherwise stay until this builder is collected. The builder can't be used afterwards.
+     */
+    @Override
+    public void close() {
+        forest.close();
+        versions.close();
+    }
+
+    Adjacency edges() {
+        return edges;
+    }
+
+    /**
+     * @param uid long id of a user
+     * @return long[] ids of the users the given user coaches
+     * @throws IllegalStateException if the edges are not kept
+     */
+    long[] students(long uid) throws NoSuchUserException {
+        return ids(adjacency().students(checked(uid)));
+    }
+
+    /**
+     * @param uid long id of a user
+     * @return long[] ids of the users who coach the given user
+     * @throws IllegalStateException if the edges are not kept
+     */
+    long[] coaches(long uid) throws NoSuchUserException {
+        return ids(adjacency().coaches(checked(uid)));
     }
 
     public String componentsToString() {
-        StringBuffer sb = new StringBuffer();
-        sb.append("There are " + components.size() + " components or groups. Details:\n");
-        int i = 1;
-        for (Component c : components) {
-            sb.append(i).append(") ").append(c).append("\n");
-            i += 1;
+        StringWriter sw = new StringWriter();
+        PrintWriter out = new PrintWriter(sw);
+        out.print("There are " + forest.count() + " components or groups. Details:\n");
+        printComponents(out, 0, Integer.MAX_VALUE);
+        out.flush();
+        return sw.toString();
+    }
+
+    /**
+     * Prints the components in the order of their identifiers, one per line with their members, straight to the
+     * writer: nothing is collected on the way, so the memory it takes does not depend on the size of the graph.
+     *
+     * @param out   PrintWriter to print to
+     * @param skip  int number of components to skip first, for pages
+     * @param limit int maximum number of components to print
+     * @return int number of components printed
+     */
+    int printComponents(PrintWriter out, long skip, int limit) {
+        int i = 0, printed = 0;
+        for (int r = 0; r < slots && printed < limit; r++) {
+            if (!forest.isRoot(r))
+                continue;
+            if (i++ < skip)
+                continue;
+            out.print(i);
+            out.print(") ");
+            component(r).printTo(out);
+            out.print('\n');
+            printed += 1;
+        }
+        return printed;
+    }
+
+    /**
+     * @param skip  long number of components to skip first, in the order of their identifiers
+     * @param limit int maximum number of components
+     * @return List a page of the components, see {@link #printComponents(PrintWriter, long, int)}
+     */
+    List<Component> components(long skip, int limit) {
+        List<Component> page = new ArrayList<>();
+        long i = 0;
+        for (int r = 0; r < slots && page.size() < limit; r++) {
+            if (forest.isRoot(r) && i++ >= skip)
+                page.add(component(r));
+        }
+        return page;
+    }
+
+    /**
+     * Finds the k biggest components from the roots by size, biggest size first: O(k + number of distinct sizes),
+     * without looking at the other components at all.
+     *
+     * @param k int how many
+     * @return List the biggest components, biggest first, in no particular order among equal sizes
+     */
+    List<Component> largest(int k) {
+        if (k < 1)
+            throw new IllegalArgumentException("need a positive number of groups, not: " + k);
+        SizeIndex bySize = forest.bySize();
+        List<Component> top = new ArrayList<>(Math.min(k, forest.count()));
+        for (int size = bySize.largest(); size > 0 && top.size() < k; size = bySize.atMost(size - 1))
+            for (int r = bySize.first(size); r >= 0 && top.size() < k; r = bySize.next(r))
+                top.add(component(r));
+        return top;
+    }
+
+    /**
+     * @return String the number of components, how many of them have sizes in [1, 2), [2, 4), [4, 8), ..., a few
+     * percentiles of the sizes and the biggest one, in a few lines whatever the size of the graph
+     */
+    String groupsSummary() {
+        SizeIndex bySize = forest.bySize();
+        long[] bySizeClass = new long[32];
+        for (int size = bySize.atLeast(1); size >= 0; size = bySize.atLeast(size + 1))
+            bySizeClass[31 - Integer.numberOfLeadingZeros(size)] += bySize.count(size);
+        StringBuilder sb = new StringBuilder();
+        sb.append("There are ").append(forest.count()).append(" components or groups, of ").append(bySize.distinct())
+                .append(" distinct sizes.\n");
+        for (int b = 0; b < bySizeClass.length; b++) {
+            if (bySizeClass[b] == 0)
+                continue;
+            long from = 1L << b, to = (1L << (b + 1)) - 1;
+            sb.append(from == to ? "  of size " + from : "  of sizes " + from + "-" + to).append(": ").append(bySizeClass[b]).append('\n');
+        }
+        if (forest.count() > 0) {
+            sb.append("Sizes at the 50th, 90th and 99th percentile: ").append(bySize.percentile(0.5, forest.count()))
+                    .append(", ").append(bySize.percentile(0.9, forest.count()))
+                    .append(", ").append(bySize.percentile(0.99, forest.count())).append('\n');
+            int biggest = bySize.first(bySize.largest());
+            sb.append("The biggest one has identifier: ").append(biggest).append(", #users: ").append(forest.size(biggest))
+                    .append(", version: ").append(versions.of(biggest)).append('\n');
         }
         return sb.toString();
     }
 
-    int getUserVersion(int uid) throws NoSuchUserException {
-        if (uid > vertices.length)
-            throw new NoSuchUserException("invalid user id: " + uid + ", user ids up to " + vertices.length + " are available");
-        return vertices[uid].version();
+
+    int getUserVersion(long uid) throws NoSuchUserException {
+        return versions.of(checked(uid));
     }
 
     /**
      * Returns the number of users that would be infected, should you decide to infect the given user.
      * The strategy is to infect a group completely if the given user is a member of it.
      *
-     * @param uid int id of the user to be infected
+     * @param uid long id of the user to be infected
      * @return int number of users that would be infected
      */
-    int predict(int uid) throws NoSuchUserException {
-        if (uid > vertices.length)
-            throw new NoSuchUserException("invalid user id: " + uid + ", user ids up to " + vertices.length + " are available");
-        return this.vertices[uid].getComponent().size();
+    int predict(long uid) throws NoSuchUserException {
+        return forest.size(forest.find(checked(uid)));
     }
 
-    void infect(int uid) throws NoSuchUserException {
-        if (uid > vertices.length)
-            throw new NoSuchUserException("invalid user id: " + uid + ", user ids up to " + vertices.length + " are available");
-        Component component = this.vertices[uid].getComponent();
+    /**
+     * Infects the component of the given user, in O(1), see {@link Versions}.
+     *
+     * @param uid long id of a user
+     */
+    void infect(long uid) throws NoSuchUserException {
+        Component component = getComponent(uid);
+        journal(Journal.INFECT, 0, uid, 0);
+        commit();
         component.infect();
     }
 
-    Component getComponent(int uid) throws NoSuchUserException {
-        if (uid > vertices.length)
-            throw new NoSuchUserException("invalid user id: " + uid + ", user ids up to " + vertices.length + " are available");
-        return this.vertices[uid].getComponent();
+    /**
+     * Predicts a batch of ids at once: the distinct components they are in, their sizes and the size of their union.
+     * Ids that are not users are counted, not reported as errors.
+     *
+     * @param uids  long[] user ids, duplicates and members of the same component welcome
+     * @param count int number of ids to take from the array
+     * @return BatchReport the components, each once
+     */
+    BatchReport predictBatch(long[] uids, int count) {
+        return batch(uids, count, false);
+    }
+
+    /**
+     * Infects the distinct components of a batch of ids, each once however many of its members are in the batch,
+     * see {@link #predictBatch(long[], int)}.
+     *
+     * @param uids  long[] user ids
+     * @param count int number of ids to take from the array
+     * @return BatchReport the components that were infected, with their new versions
+     */
+    BatchReport infectBatch(long[] uids, int count) {
+        return batch(uids, count, true);
+    }
+
+    /**
+     * Finds the roots of all the ids in one pass, skipping the ones a bitmap over the slots has already seen, then
+     * reports (and infects) the distinct roots. Nothing is allocated per id; the bitmap is kept for the next batch and
+     * only its bits that were set are cleared.
+     */
+    private BatchReport batch(long[] uids, int count, boolean infect) {
+        long start = System.nanoTime();
+        BatchReport report = new BatchReport();
+        report.asked = count;
+        report.infected = infect;
+        int words = (forest.capacity() + 63) >>> 6;
+        if (batched.length < words)
+            batched = new long[words];
+        int[] roots = new int[Math.min(count, forest.count())];
+        int nroots = 0;
+        for (int i = 0; i < count; i++) {
+            int slot = slotOf(uids[i]);
+            if (slot < 0) {
+                report.unknown += 1;
+                continue;
+            }
+            int root = forest.find(slot);
+            if ((batched[root >>> 6] & (1L << root)) == 0) {
+                batched[root >>> 6] |= 1L << root;
+                roots[nroots++] = root;
+            }
+        }
+        for (int i = 0; i < nroots; i++) {
+            batched[roots[i] >>> 6] &= ~(1L << roots[i]);
+            if (infect)
+                journal(Journal.INFECT, 0, id(roots[i]), 0);
+        }
+        if (infect)
+            commit(); // the whole batch at once
+        for (int i = 0; i < nroots; i++) {
+            int root = roots[i];
+            int version = infect ? versions.infect(root) : versions.of(root);
+            report.group(id(root), forest.size(root), version);
+        }
+        report.nanos = System.nanoTime() - start;
+        return report;
+    }
+
+    Component getComponent(long uid) throws NoSuchUserException {
+        return component(forest.find(checked(uid)));
     }
 
     /**
@@ -107,50 +678,351 @@ class ComponentBuilder {
      * @return a Set that contains the components that are infected if the limit could be satisfied.
      */
     Set<Component> limitApprox(int limit) {
-        Set<Component> set = new HashSet<>();
         /* Implementation note:
             This is similar to the knapsack problem where the objective is to fill the knapsack with as many
             whole items as possible are picked and the items do not repeat => An item can be either picked or not.
             The difference is that the optimization here is that of 'size'/'weight' alone and no item value is involved.
-            Algorithm: Dasgupta-Papadimitriou-Vazirani: pp. 182. The following algorithm is a slight variation of the same.
+            Algorithm: Dasgupta-Papadimitriou-Vazirani: pp. 182. The table used to be limit x #components, which does
+            not fit in memory for big graphs. Real graphs have lots of components of the same few sizes though, so they
+            are grouped by size and the resulting bounded knapsack is solved with a bitset, see SubsetSum: O(limit)
+            memory, and the same optimal total.
          */
+        if (limit <= 0)
+            return new HashSet<>();
+        limit = Math.min(limit, slots - 1); // no total beyond the number of users, so no table longer than that
         // we are unconcerned about all the components that are bigger than the limit, we intend to find that
         // selection of components, whose sizes together are approximately as big as limit
-        // first, capture those components in a list sorted on component sizes
-        List<Component> cList = sortComponents(SIZE_COMPARATOR);
-        System.out.println(cList);
-        int[][] max = new int[limit + 1][cList.size() + 1];
-        //max[i][j] denotes the maximum size possible for a limit of i and with groups 1,2,...,j being available
-        //goal is the find max[limit][cList.size()] and traverse the limit row backward to get the groups picked
-        for (int i = 0; i <= limit; i++)
-            max[i][0] = 0; //when there are no groups available, maximum sum is 0, regardless of value of limit
-        for (int j = 0; j <= cList.size(); j++)
-            max[0][j] = 0; //when limit is 0, no choice of groups can help
-        for (int i = 1; i <= limit; i++) {
-            for (int j = 1; j <= cList.size(); j++) {
-                int size = cList.get(j - 1).size();
-                if (size > i) {
-                    max[i][j] = max[i][j - 1];
-                } else {
-                    int m = max[i][j - 1];
-                    if (i - size >= 0 && max[i - size][j - 1] + size <= limit)
-                        m = max[i - size][j - 1] + size;
-                    max[i][j] = m;
+        SubsetSum table = limit <= indexCap ? reachableSizes() : sizeTable(limit);
+        //now imagine that our 'knapsack' were of size limit and we were to pick those groups that fit in it ...
+        return pick(table, table.best(limit));
+    }
+
+    /**
+     * Finds a selection of whole components whose sizes add up to exactly the given limit. Limits up to the index cap
+     * are answered from the reachable-sizes index, which is built once per component structure: feasibility is a
+     * single bit test and the selection is reconstructed from the index. Bigger limits get a table of their own.
+     *
+     * @param limit int the exact number of users to infect
+     * @return a Set of the components to infect, or null if no selection adds up to the limit
+     */
+    Set<Component> limitExact(int limit) {
+        if (limit < 0 || limit > slots - 1) // more than all the users, without a table as long as the limit
+            return null;
+        SubsetSum table = limit <= indexCap ? reachableSizes() : sizeTable(limit);
+        return table.reachable(limit) ? pick(table, limit) : null;
+    }
+
+    /**
+     * Links a coach to a student in the graph that is already built: the two components are merged in place, with
+     * new users added (and the arrays grown) as needed, and the versions of all the users are kept. A new user gets
+     * the version of the component it joins. If the two components were on different versions, the merge is recorded
+     * as a conflict in the report.
+     *
+     * @param coach   long id of the coach
+     * @param student long id of the student
+     * @param report  LinkReport that collects what happened
+     */
+    void link(long coach, long student, LinkReport report) {
+        if (coach < 0 || student < 0)
+            throw new IllegalArgumentException("invalid user ids: " + coach + ", " + student);
+        if (!sparse) // the coach's slot is made room for first, see linkSlots
+            dense(student, Math.max(slots, dense(coach, slots) + 1));
+        report.edges += 1;
+        journal(Journal.LINK, 0, coach, student);
+        commit();
+        linkSlots(enroll(coach), enroll(student), report);
+    }
+
+    private void linkSlots(int coach, int student, LinkReport report) {
+        boolean newCoach = addUser(coach), newStudent = addUser(student);
+        if (newCoach && !newStudent) // a new user joins the version of the group it joins, that is no conflict
+            versions.rebase(coach, versions.of(forest.find(student)));
+        if (newStudent && !newCoach)
+            versions.rebase(student, versions.of(forest.find(coach)));
+        report.newUsers += (newCoach ? 1 : 0) + (newStudent ? 1 : 0);
+        int rc = forest.find(coach), rs = forest.find(student);
+        if (rc != rs) {
+            int vc = versions.of(rc), vs = versions.of(rs);
+            if (vc != vs)
+                report.conflict(id(rc), vc, id(rs), vs);
+            versions.union(rc, rs);
+            modCount += 1;
+            report.merges += 1;
+            Metrics.get().unions(1);
+        }
+        if (edges != null && edges.add(coach, student))
+            report.added += 1;
+    }
+
+    /**
+     * Removes the edge between a coach and a student. If that was the last path between the two, their component
+     * splits in two, in place; the search that finds out costs O(size of the smaller part), see
+     * {@link ComponentSplitter}. Every user keeps its version, so both parts stay on the version the component was on.
+     *
+     * @param coachId   long id of the coach
+     * @param studentId long id of the student
+     * @return int -1 if there was no such edge, 0 if the two are still connected, otherwise the number of users that
+     * split off into a new component
+     * @throws IllegalStateException if the edges are not kept
+     */
+    int unlink(long coachId, long studentId) throws NoSuchUserException {
+        int coach = checked(coachId), student = checked(studentId);
+        Adjacency adjacency = adjacency();
+        if (!adjacency.contains(coach, student))
+            return -1;
+        journal(Journal.UNLINK, 0, coachId, studentId);
+        commit();
+        adjacency.remove(coach, student);
+        if (splitter == null)
+            splitter = new ComponentSplitter(adjacency);
+        int n = splitter.run(coach, student);
+        if (n > 0) {
+            versions.split(forest.find(coach), splitter.cutOff());
+            modCount += 1;
+        }
+        return n;
+    }
+
+    /**
+     * Links all the edges of the given delta file, see {@link #link(long, long, LinkReport)}. A delta file has the
+     * lines of a graph.conf, without the first line. With a journal, the mapped file is read twice: once to commit
+     * its records, up to the line that stops the links if there is one, and once to link.
+     *
+     * @param file File the delta file
+     * @return LinkReport what happened
+     * @throws IOException              if the file can't be read or is malformed
+     * @throws IllegalArgumentException if an id is out of range, the lines before it stay linked
+     */
+    LinkReport apply(File file) throws IOException {
+        final LinkReport report = new LinkReport();
+        long start = System.nanoTime();
+        GraphScanner scanner = new GraphScanner(new GraphScanner.Sink() {
+            @Override
+            public void header(int vertices) {
+                throw new AssertionError("a delta has no header");
+            }
+
+            @Override
+            public void line(int uid, int[] sids, int count) {
+                if (!sparse) // sparse ids got their slots as they were read
+                    enroll(uid);
+                if (count == 0 && addUser(uid))
+                    report.newUsers += 1;
+                for (int i = 0; i < count; i++) {
+                    if (!sparse)
+                        enroll(sids[i]);
+                    report.edges += 1;
+                    linkSlots(uid, sids[i], report);
                 }
             }
+        }, false, sparse ? interner : null);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            ByteBuffer delta = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (journal != null)
+                journalDelta(delta.duplicate());
+            scanner.feed(delta); // the lines linked before a malformed one stay linked
+            scanner.finish();
         }
-//        print2da(max);
-        System.out.println("max possible: " + max[limit][cList.size()]);
-        //now imagine that our 'knapsack' were of size limit and we were to pick those groups that fit in it ...
-        for (int i = limit, j = cList.size(); j >= 1; ) { //process last row
-            if (max[i][j] > max[i][j - 1]) { //this item is picked!
-                Component picked = cList.get(j - 1);
-                set.add(picked);
-                int rem = max[i][j] - picked.size();
-                while (max[i][j] != rem && j >= 0) //is that j>=0 needed? TODO
-                    j -= 1;
-            } else
-                j -= 1;
+        report.nanos = System.nanoTime() - start;
+        return report;
+    }
+
+    /**
+     * Journals the lines of a delta, without linking them: the first pass of {@link #apply(File)}. A user of its own
+     * is journaled whether it is new or not, its replay is a no-op if it is not.
+     */
+    private void journalDelta(ByteBuffer delta) throws IOException {
+        GraphScanner scanner = new GraphScanner(new GraphScanner.Sink() {
+            @Override
+            public void header(int vertices) {
+                throw new AssertionError("a delta has no header");
+            }
+
+            private int grown = slots; // the slots the links will have made room for, to refuse the same ids they do
+
+            @Override
+            public void line(int uid, int[] sids, int count) {
+                if (!sparse)
+                    grown = Math.max(grown, dense(uid, grown) + 1);
+                if (count == 0)
+                    journal(Journal.USER, 0, id(uid), 0);
+                for (int i = 0; i < count; i++) {
+                    if (!sparse)
+                        grown = Math.max(grown, dense(sids[i], grown) + 1);
+                    journal(Journal.LINK, 0, id(uid), id(sids[i]));
+                }
+            }
+        }, false, sparse ? interner : null);
+        try {
+            scanner.feed(delta);
+            scanner.finish();
+        } catch (IOException | IllegalArgumentException e) {
+            // the links stop at the same line, with the same error
+        } finally {
+            commit();
+        }
+    }
+
+    /**
+     * Infects exactly the given number of users around the given user, or the whole component if it is smaller,
+     * a classroom at a time, see {@link PartialInfection}. The infected users move to the version of the starting
+     * user + 1; the selected users already on that version or past it are left alone, and dropped from the selection,
+     * so that nobody goes back. This is for when the limit is too low for {@link #limitApprox(int)} to infect any
+     * whole component.
+     *
+     * @param userId long id of the starting user
+     * @param limit  int number of users to infect
+     * @return PartialInfection the users that moved, in slots (see {@link #id(int)}), valid until the next partial
+     * infection
+     * @throws IllegalStateException if the edges are not kept
+     */
+    PartialInfection infectPartial(long userId, int limit) throws NoSuchUserException {
+        int uid = checked(userId);
+        if (partial == null)
+            partial = new PartialInfection(adjacency());
+        final int v = versions.of(uid) + 1;
+        partial.run(uid, limit);
+        int n = partial.retain(new PartialInfection.Filter() {
+            @Override
+            public boolean keep(int u) {
+                return versions.of(u) < v;
+            }
+        });
+        if (n > 0) { // the users themselves, selecting them again on a replay could pick others
+            journal(Journal.SELECTED, n, userId, v);
+            for (int i = 0; i < n; i += 2)
+                journal(Journal.MEMBERS, 0, id(partial.member(i)), i + 1 < n ? id(partial.member(i + 1)) : -1);
+            commit();
+        }
+        int[] users = new int[n];
+        for (int i = 0; i < n; i++)
+            users[i] = partial.member(i);
+        moveUp(uid, v, users);
+        return partial;
+    }
+
+    /**
+     * Moves the selected users to the given version and records the infection, an entry of the history for each
+     * version they came from, oldest version first.
+     */
+    private void moveUp(int uid, int v, int[] users) {
+        IntLongMap from = new IntLongMap(4);
+        for (int u : users) {
+            int old = versions.of(u);
+            from.put(old, from.get(old, 0) + 1);
+            versions.set(u, v);
+        }
+        int[] olds = from.keyArray();
+        Arrays.sort(olds);
+        int root = forest.find(uid);
+        for (int old : olds)
+            versions.history().record(root, old, v, (int) from.get(old, 0));
+    }
+
+    /**
+     * @param version int a version
+     * @return long number of users on it, in O(1)
+     */
+    long population(int version) {
+        return versions.population(version);
+    }
+
+    /**
+     * @return History every infection so far, oldest first, whole components and partial ones; {@link #id(int)}
+     * gives the user id of a root in it
+     */
+    History history() {
+        return versions.history();
+    }
+
+    /**
+     * @param uid long id of a user
+     * @return int[] the entries of the {@link #history()} that reached the group the user is in now, or a group that
+     * merged into it since, oldest first
+     */
+    int[] historyOf(long uid) throws NoSuchUserException {
+        int root = forest.find(checked(uid));
+        History h = versions.history();
+        int[] entries = new int[h.size()];
+        int n = 0;
+        for (int i = 0; i < h.size(); i++)
+            if (forest.find(h.root(i)) == root)
+                entries[n++] = i;
+        return Arrays.copyOf(entries, n);
+    }
+
+    /**
+     * Sets the biggest limit the reachable-sizes index covers. The index takes about 4 bytes per unit of the cap.
+     *
+     * @param cap int the new cap
+     */
+    void setIndexCap(int cap) {
+        if (cap < 0)
+            throw new IllegalArgumentException("invalid cap: " + cap);
+        indexCap = cap;
+        index = null;
+    }
+
+    /**
+     * @return String how big the reachable-sizes index is and what it took to build it
+     */
+    String indexStats() {
+        if (index == null || indexedAt != modCount)
+            return "The reachable-sizes index (cap: " + indexCap + ") is not built";
+        return "The reachable-sizes index covers totals up to " + index.cap() + " (cap: " + indexCap + "), takes "
+                + index.bytes() + " bytes and was built in " + indexNanos / 1000000 + " ms";
+    }
+
+    /**
+     * @return SubsetSum the reachable-sizes index, built if the components changed since it was last built
+     */
+    private SubsetSum reachableSizes() {
+        if (index == null || indexedAt != modCount) {
+            long start = System.nanoTime();
+            index = sizeTable(indexCap);
+            indexNanos = System.nanoTime() - start;
+            indexedAt = modCount;
+        }
+        return index;
+    }
+
+    /**
+     * Groups the components that are not bigger than the cap by size and builds the subset-sum table over them.
+     */
+    private SubsetSum sizeTable(int cap) {
+        long start = System.nanoTime();
+        SizeIndex bySize = forest.bySize(); // the histogram is already there, no pass over the users
+        int n = 0;
+        long sum = 0;
+        for (int size = bySize.atLeast(1); size >= 0 && size <= cap; size = bySize.atLeast(size + 1)) {
+            n += 1;
+            sum += (long) size * bySize.count(size);
+        }
+        int[] sizes = new int[n], counts = new int[n];
+        for (int size = bySize.atLeast(1), c = 0; c < n; size = bySize.atLeast(size + 1)) {
+            sizes[c] = size;
+            counts[c++] = bySize.count(size);
+        }
+        SubsetSum table = new SubsetSum(sizes, counts, n, (int) Math.min(cap, sum)); // no total beyond the sum is reachable
+        Metrics.get().table(table.bytes(), System.nanoTime() - start);
+        return table;
+    }
+
+    /**
+     * Picks actual components for a selection the table reconstructs.
+     */
+    private Set<Component> pick(SubsetSum table, int total) {
+        Set<Component> set = new HashSet<>();
+        int[] picked = table.select(total); // number of components to infect from each size class
+        SizeIndex bySize = forest.bySize();
+        for (int size = bySize.atLeast(1); size >= 0 && size <= table.cap() && total > 0; size = bySize.atLeast(size + 1)) {
+            int c = table.sizeClass(size);
+            for (int r = bySize.first(size); c >= 0 && r >= 0 && picked[c] > 0; r = bySize.next(r)) {
+                picked[c] -= 1;
+                total -= size;
+                set.add(component(r));
+            }
         }
         return set;
     }
@@ -160,60 +1032,188 @@ class ComponentBuilder {
     /**
      * Processes a line of the form: 1 2,3,4 from the graph.conf file.
      *
-     * @param uid  int user id, the user who coaches a class
-     * @param sids int[] ids of the users who are coached by the uid
+     * @param uid   int user id, the user who coaches a class
+     * @param sids  int[] ids of the users who are coached by the uid
+     * @param count int number of ids in sids that belong to this line
      */
-    private void processLine(int uid, int[] sids) {
-        Component group;
-        if (vertices[uid] == null) {
-            User nu = new User(uid);
-            vertices[uid] = nu;
-            group = new Component(nu);
-            components.add(group);
-        } else {
-            group = vertices[uid].getComponent();
-        }
-        for (int sid : sids) {
-            if (vertices[sid] == null) {
-                User nm = new User(sid);
-                vertices[sid] = nm;
-                group.addMember(nm);
-            } else {
-                Component other = vertices[sid].getComponent();
-                if (other != group) { //reference comparison!
-                    group.merge(other);
-                    components.remove(other);
-                }
+    private void processLine(int uid, int[] sids, int count) {
+        addUser(uid);
+        parsedLines += 1;
+        parsedEdges += count;
+        for (int i = 0; i < count; i++) {
+            int sid = sids[i];
+            addUser(sid);
+            // everyone is on version 1 while a graph is read, so the forest is merged without the versions
+            if (forest.union(uid, sid) >= 0) { // a no-op when both are already in the same component
+                modCount += 1;
+                parsedUnions += 1;
             }
+            if (collected != null)
+                collected.add(uid, sid);
         }
 //        System.out.println("processed line for uid: " + uid + ", sids: " + Arrays.toString(sids));
 //        System.out.println(this.componentsToString());
     }
 
-    // Methods to facilitate Unit Testing
-    int getNumberOfVertices() {
-        return vertices.length - 1;
+    private void init(int n) {
+        modCount += 1;
+        journal = null; // a new graph, attach the journal again to replay it
+        journalId = journaled = 0;
+        parsedLines = parsedEdges = parsedUnions = 0;
+        edges = null;
+        partial = null;
+        splitter = null;
+        collected = keepEdges ? new Adjacency.Builder() : null;
+        if (sparse) {
+            ids = new LongIntMap(n);
+            external = new long[n + 1];
+        }
+        forest.close();
+        versions.close();
+        forest = new UnionFind(n + 1); // to use more straightforward indexing where index = user's id
+        versions = new Versions(forest);
+        slots = n + 1;
     }
-    int getNumberOfComponents() {
-        return components.size();
+
+    private String summary() {
+        return "Done! Processed: " + (slots - 1) + " vertices, formed: " + forest.count() + " component(s)"
+                + (edges == null ? "" : ", kept: " + edges.edges() + " edge(s) in " + edges.bytes() + " bytes");
     }
 
-    // Methods to facilitate Unit Testing
+    private void layOutEdges() {
+        if (collected != null)
+            edges = Adjacency.Builder.build(forest.capacity(), Collections.singletonList(collected));
+        collected = null;
+    }
+
+    private Adjacency adjacency() {
+        if (edges == null)
+            throw new IllegalStateException("the edges are not kept");
+        return edges;
+    }
+
+    private boolean addUser(int uid) {
+        if (!forest.add(uid))
+            return false;
+        versions.add(uid, 1);
+        modCount += 1;
+        return true;
+    }
+
+    /**
+     * Makes room for user ids below the given number, growing the arrays by half at least, so that a stream of new
+     * users costs O(1) per user on average.
+     */
+    private void ensureSlots(int n) {
+        if (n > forest.capacity()) {
+            int capacity = Math.max(n, forest.capacity() + (forest.capacity() >> 1));
+            if (sparse)
+                external = Arrays.copyOf(external, capacity);
+            forest.grow(capacity);
+            versions.grow(capacity);
+            if (edges != null)
+                edges.grow(capacity);
+            partial = null; // their bitmaps are too small now
+            splitter = null;
+        }
+        slots = Math.max(slots, n);
+    }
 
-    private List<Component> sortComponents(Comparator<Component> cmp) {
-        List<Component> list = new ArrayList<>(components.size());
-        for (Component c : components) {
-            list.add(c);
+    /**
+     * @param id long a sparse user id
+     * @return int its slot, the next free one if the id is new; the slot becomes a user when it is added
+     */
+    private int intern(long id) {
+        int slot = ids.get(id, -1);
+        if (slot < 0) {
+            slot = slots;
+            ensureSlots(slot + 1);
+            external[slot] = id;
+            ids.put(id, slot);
         }
-        Collections.sort(list, cmp); // now list is sorted according to the given comparator
-        return list;
+        return slot;
+    }
+
+    /**
+     * @return int the slot of the given user id, made room for if the user is new
+     * @throws IllegalArgumentException if a dense id does not fit the forest
+     */
+    private int enroll(long id) {
+        if (sparse)
+            return intern(id);
+        int slot = dense(id, slots);
+        ensureSlots(slot + 1);
+        return slot;
+    }
+
+    /**
+     * @param id    long a dense user id
+     * @param slots int the slots in use
+     * @return int its slot
+     * @throws IllegalArgumentException if the id would grow the forest further than {@link #ID_HEADROOM} allows
+     */
+    static int dense(long id, int slots) {
+        long limit = Math.min(Integer.MAX_VALUE - 1L, 2L * slots + ID_HEADROOM);
+        if (id < 0 || id >= limit)
+            throw new IllegalArgumentException("invalid user id: " + id + ", dense ids go up to " + (limit - 1)
+                    + " with " + slots + " slots, see -Dkai.ids.headroom");
+        return (int) id;
+    }
+
+    private int parseId(String token) {
+        return sparse ? intern(Long.parseLong(token)) : Integer.valueOf(token);
+    }
+
+    private long[] ids(int[] slots) {
+        long[] a = new long[slots.length];
+        for (int i = 0; i < slots.length; i++)
+            a[i] = id(slots[i]);
+        return a;
+    }
+
+    private Component component(int root) {
+        return new Component(forest, versions, external, root);
+    }
+
+    /**
+     * @param uid long id of a user
+     * @return int the slot of the user, -1 if there is no such user
+     */
+    private int slotOf(long uid) {
+        int slot = sparse ? ids.get(uid, -1) : (uid >= 0 && uid < slots ? (int) uid : -1);
+        return slot >= 0 && forest.contains(slot) ? slot : -1;
     }
 
-    private void print2da(int[][] a) {
-        for (int i = 0; i < a.length; i++) {
-            for (int j = 0; j < a[i].length; j++)
-                System.out.printf("%3d ", a[i][j]);
-            System.out.println();
+    /**
+     * Validates the given user id.
+     *
+     * @param uid long id of a user
+     * @return int the slot of the user
+     * @throws NoSuchUserException if there is no such user
+     */
+    private int checked(long uid) throws NoSuchUserException {
+        int slot;
+        if (sparse) {
+            slot = ids.get(uid, -1);
+        } else {
+            if (uid < 0 || uid >= slots)
+                throw new NoSuchUserException("invalid user id: " + uid + ", user ids up to " + (slots - 1) + " are available");
+            slot = (int) uid;
         }
+        if (slot < 0 || !forest.contains(slot))
+            throw new NoSuchUserException("no such user: " + uid + ", the user does not appear in the graph");
+        return slot;
+    }
+
+    boolean keepsEdges() {
+        return keepEdges;
+    }
+
+    // Methods to facilitate Unit Testing
+    int getNumberOfVertices() {
+        return slots - 1;
+    }
+    int getNumberOfComponents() {
+        return forest.count();
     }
-}
\ No newline at end of file
+}
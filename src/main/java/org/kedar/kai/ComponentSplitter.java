@@ -0,0 +1,124 @@
+package org.kedar.kai;
+
+import java.util.Arrays;
+
+/**
+ * Finds out whether removing a coach/student edge splits a component, by searching from both ends of the removed
+ * edge at once. Two breadth-first searches over the remaining edges, in both directions, take turns; the one that
+ * has seen fewer users goes next. Either they meet, and the component stays whole, or one of them runs out of
+ * users first, and what it has seen is a component of its own. That side is never bigger than the other, so the
+ * search costs O(size of the smaller part) -- a removal that cuts a few users off a 10M-user component only looks at
+ * those few users, and one that does not split anything stops as soon as the two searches meet.
+ * <p>
+ * Like {@link PartialInfection}, an instance is meant to be reused: the bitmaps and the queues are allocated once
+ * and a run only clears the bits the last one set.
+ * </p>
+ *
+ * @author kedar
+ */
+final class ComponentSplitter {
+    private final Adjacency edges;
+    private final long[] seenA;
+    private final long[] seenB;
+    private int[] queueA;
+    private int[] queueB;
+    private int na;
+    private int nb;
+    private boolean closedA; // which side ran out, if any
+
+    ComponentSplitter(Adjacency edges) {
+        this.edges = edges;
+        int capacity = edges.capacity();
+        this.seenA = new long[(capacity >>> 6) + 1];
+        this.seenB = new long[(capacity >>> 6) + 1];
+        this.queueA = new int[16];
+        this.queueB = new int[16];
+    }
+
+    /**
+     * Searches from both ends of an edge that was just removed.
+     *
+     * @param a int one end
+     * @param b int the other end
+     * @return int 0 if a and b are still connected, otherwise the number of users in the part that got cut off, see
+     * {@link #cutOff()}
+     */
+    int run(int a, int b) {
+        clear();
+        queueA = see(seenA, queueA, na++, a);
+        queueB = see(seenB, queueB, nb++, b);
+        int ha = 0, hb = 0;
+        while (true) {
+            if (ha == na) {
+                closedA = true;
+                return na;
+            }
+            if (hb == nb) {
+                closedA = false;
+                return nb;
+            }
+            if (na <= nb) {
+                if (expand(queueA[ha++], true))
+                    return 0;
+            } else {
+                if (expand(queueB[hb++], false))
+                    return 0;
+            }
+        }
+    }
+
+    /**
+     * @return long[] bitmap of the users of the part that got cut off by the last run, if it returned more than 0
+     */
+    long[] cutOff() {
+        return closedA ? seenA : seenB;
+    }
+
+    /**
+     * Visits the neighbours of a user on one side.
+     *
+     * @return boolean true if the two sides met
+     */
+    private boolean expand(int u, boolean sideA) {
+        long[] mine = sideA ? seenA : seenB, theirs = sideA ? seenB : seenA;
+        for (int e = edges.firstOut(u); e != Adjacency.END; e = edges.nextOut(u, e))
+            if (visit(edges.target(e), mine, theirs, sideA))
+                return true;
+        for (int e = edges.firstIn(u); e != Adjacency.END; e = edges.nextIn(u, e))
+            if (visit(edges.target(e), mine, theirs, sideA))
+                return true;
+        return false;
+    }
+
+    private boolean visit(int w, long[] mine, long[] theirs, boolean sideA) {
+        if ((theirs[w >>> 6] & (1L << w)) != 0)
+            return true;
+        if ((mine[w >>> 6] & (1L << w)) != 0)
+            return false;
+        if (sideA)
+            queueA = see(seenA, queueA, na++, w);
+        else
+            queueB = see(seenB, queueB, nb++, w);
+        return false;
+    }
+
+    /**
+     * Clears only the bits the last run set.
+     */
+    private void clear() {
+        for (int i = 0; i < na; i++)
+            seenA[queueA[i] >>> 6] = 0;
+        for (int i = 0; i < nb; i++)
+            seenB[queueB[i] >>> 6] = 0;
+        na = 0;
+        nb = 0;
+    }
+
+    private static int[] see(long[] seen, int[] queue, int at, int u) {
+        seen[u >>> 6] |= 1L << u;
+        if (at == queue.length)
+            queue = Arrays.copyOf(queue, queue.length * 2);
+        queue[at] = u;
+        return queue;
+    }
+}
@@ -0,0 +1,341 @@
+package org.kedar.kai;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A query layer over a {@link ComponentBuilder} that any number of threads can use at once. The builder itself is
+ * plain mutable state, and even its reads write: finding a root compresses the path to it. So the builder is only
+ * touched with the lock of this layer held, and the predictions and versions are answered from a read-optimized copy
+ * of it instead, a {@link Frozen} graph, published with a single reference swap:
+ * <ul>
+ * <li>The components of a frozen graph never change. Every user points straight to its root and the members of each
+ * component are laid out next to each other, so <code>predict</code> is two array reads and a {@link Group} is
+ * handed out without copying anything. Nothing a reader does ever blocks, and a reader that works on the graph it
+ * picked up, start to end, never sees a half-merged component.</li>
+ * <li>The changes are serialized on the lock and made to the builder first. An infection then sets the version of
+ * the component in the frozen graph, one int per root in an {@link AtomicIntegerArray}; a link, an unlink, a partial
+ * infection or a setup freezes the builder again and publishes the new graph, in O(users).</li>
+ * <li>A reload builds the next builder off to the side, without the lock, while the queries and the infections go on
+ * against the old one. The infections made in the meantime are kept, and made again on the new builder before it is
+ * published; with a {@link Journal} they are in it already, and it is replayed on the new builder instead.</li>
+ * </ul>
+ *
+ * @author kedar
+ */
+final class ConcurrentQueries {
+    private final AtomicReference<Frozen> current = new AtomicReference<>();
+    private ComponentBuilder builder;  // only touched with the lock held
+    private List<long[]> missed;       // the infections since a reload started, null if none is running
+
+    /**
+     * @param builder ComponentBuilder whose current state is served first, no other thread may update it
+     */
+    ConcurrentQueries(ComponentBuilder builder) {
+        this.builder = builder;
+        publish();
+    }
+
+    /**
+     * @return ComponentBuilder the builder, for a sequence of commands that holds the lock of this layer
+     */
+    synchronized ComponentBuilder builder() {
+        return builder;
+    }
+
+    /**
+     * @return Frozen the graph that is served now, for a sequence of queries that must see the same graph
+     */
+    Frozen graph() {
+        return current.get();
+    }
+
+    int predict(long uid) throws NoSuchUserException {
+        return current.get().group(uid).size();
+    }
+
+    int version(long uid) throws NoSuchUserException {
+        return current.get().version(uid);
+    }
+
+    Group getComponent(long uid) throws NoSuchUserException {
+        return current.get().group(uid);
+    }
+
+    /**
+     * @param uid long id of a user
+     * @return int the version the component of the user moved to
+     */
+    synchronized int infect(long uid) throws NoSuchUserException {
+        builder.infect(uid);
+        int v = builder.getUserVersion(uid);
+        moved(uid, v);
+        if (missed != null)
+            missed.add(new long[]{uid});
+        return v;
+    }
+
+    /**
+     * See {@link ComponentBuilder#infectBatch(long[], int)}.
+     */
+    synchronized BatchReport infectBatch(long[] uids, int count) {
+        BatchReport report = builder.infectBatch(uids, count);
+        for (int i = 0; i < report.groups(); i++)
+            moved(report.group(i, 0), (int) report.group(i, 2));
+        if (missed != null)
+            missed.add(Arrays.copyOf(uids, count));
+        return report;
+    }
+
+    /**
+     * See {@link ComponentBuilder#infectPartial(long, int)}.
+     */
+    synchronized PartialInfection infectPartial(long uid, int limit) throws NoSuchUserException {
+        try {
+            return builder.infectPartial(uid, limit);
+        } finally {
+            publish();
+        }
+    }
+
+    /**
+     * See {@link ComponentBuilder#link(long, long, LinkReport)}.
+     */
+    synchronized void link(long coach, long student, LinkReport report) {
+        try {
+            builder.link(coach, student, report);
+        } finally {
+            publish();
+        }
+    }
+
+    /**
+     * See {@link ComponentBuilder#unlink(long, long)}.
+     */
+    synchronized int unlink(long coach, long student) throws NoSuchUserException {
+        try {
+            return builder.unlink(coach, student);
+        } finally {
+            publish();
+        }
+    }
+
+    /**
+     * See {@link ComponentBuilder#apply(File)}, the lines linked before a malformed one are published too.
+     */
+    synchronized LinkReport apply(File file) throws IOException {
+        try {
+            return builder.apply(file);
+        } finally {
+            publish();
+        }
+    }
+
+    /**
+     * Starts keeping the infections, for the builder a reload is building, see {@link #reloaded(ComponentBuilder)}.
+     */
+    synchronized void reloading() {
+        missed = new ArrayList<>();
+    }
+
+    /**
+     * Serves the given builder from now on, once the infections made since {@link #reloading()} are made again on
+     * it, or the journal is replayed on it if there is one. The old builder is closed.
+     *
+     * @param next ComponentBuilder a builder no other thread is updating, null if the reload failed
+     * @throws IOException if the journal can't be replayed, the old builder is still served then
+     */
+    synchronized void reloaded(ComponentBuilder next) throws IOException {
+        List<long[]> infections = missed;
+        missed = null;
+        if (next == null)
+            return;
+        Journal journal = Journal.get();
+        if (journal != null) {
+            next.attach(journal); // the infections since the reload started are in it, with everything else
+        } else if (infections != null) {
+            for (long[] uids : infections)
+                next.infectBatch(uids, uids.length);
+        }
+        builder.close();
+        builder = next;
+        publish();
+    }
+
+    /**
+     * Freezes the current state of the builder and serves it from now on.
+     */
+    private synchronized void publish() {
+        current.set(new Frozen(builder));
+    }
+
+    /**
+     * Sets the version of the component of the given user in the frozen graph, it is frozen again if the user is not
+     * in it, which does not happen while every change goes through this layer.
+     */
+    private void moved(long uid, int version) {
+        try {
+            current.get().moved(uid, version);
+        } catch (NoSuchUserException e) {
+            publish();
+        }
+    }
+
+    /**
+     * The components and the versions of a builder, frozen. Only the versions of whole components change from then
+     * on, see {@link #moved(long, int)}.
+     */
+    static final class Frozen {
+        private final int[] label;     // the root of each slot, -1 for a slot that is not a user
+        private final int[] offsets;   // the members of root r are members[offsets[r] .. offsets[r + 1])
+        private final int[] members;
+        private final int[] frozenVersion; // the version of each user when it was frozen
+        private final AtomicIntegerArray infected; // per root: 0, or the version of the whole component
+        private final int components;
+        private final long[] ids;        // the user id of each slot, null if the ids are the slots
+        private final LongIntMap slots;  // the slot of each user id, null if the ids are the slots
+
+        Frozen(ComponentBuilder builder) {
+            int capacity = builder.getNumberOfVertices() + 1;
+            label = new int[capacity];
+            frozenVersion = new int[capacity];
+            offsets = new int[capacity + 1];
+            ids = builder.isSparse() ? new long[capacity] : null;
+            slots = builder.isSparse() ? new LongIntMap(capacity) : null;
+            int users = 0;
+            for (int i = 0; i < capacity; i++) {
+                int root = builder.label(i);
+                label[i] = root;
+                if (root >= 0) {
+                    if (ids != null) {
+                        ids[i] = builder.id(i);
+                        slots.put(ids[i], i);
+                    }
+                    frozenVersion[i] = builder.storedVersion(i);
+                    offsets[root + 1] += 1;
+                    users += 1;
+                }
+            }
+            int roots = 0;
+            for (int r = 0; r < capacity; r++) {
+                if (offsets[r + 1] > 0)
+                    roots += 1;
+                offsets[r + 1] += offsets[r];
+            }
+            members = new int[users];
+            int[] fill = Arrays.copyOf(offsets, capacity);
+            for (int i = 0; i < capacity; i++) // in increasing order, so the members of each component come out sorted
+                if (label[i] >= 0)
+                    members[fill[label[i]]++] = i;
+            infected = new AtomicIntegerArray(capacity);
+            components = roots;
+        }
+
+        int vertices() {
+            return label.length - 1;
+        }
+
+        int components() {
+            return components;
+        }
+
+        /**
+         * @param uid long id of a user
+         * @return Group the component of the user
+         */
+        Group group(long uid) throws NoSuchUserException {
+            return new Group(this, label[slot(uid)]);
+        }
+
+        int version(long uid) throws NoSuchUserException {
+            int slot = slot(uid);
+            int v = infected.get(label[slot]);
+            return v != 0 ? v : frozenVersion[slot];
+        }
+
+        /**
+         * Moves the whole component of the given user to the given version, with the lock of the layer held.
+         */
+        private void moved(long uid, int version) throws NoSuchUserException {
+            infected.set(label[slot(uid)], version);
+        }
+
+        private int slot(long uid) throws NoSuchUserException {
+            int slot;
+            if (slots != null) {
+                slot = slots.get(uid, -1);
+            } else {
+                if (uid < 0 || uid >= label.length)
+                    throw new NoSuchUserException("invalid user id: " + uid + ", user ids up to " + (label.length - 1) + " are available");
+                slot = (int) uid;
+            }
+            if (slot < 0 || label[slot] < 0)
+                throw new NoSuchUserException("no such user: " + uid + ", the user does not appear in the graph");
+            return slot;
+        }
+
+        private long id(int slot) {
+            return ids != null ? ids[slot] : slot;
+        }
+    }
+
+    /**
+     * A component of a frozen graph: its members never change, its version does.
+     */
+    static final class Group {
+        private final Frozen graph;
+        private final int root;
+
+        private Group(Frozen graph, int root) {
+            this.graph = graph;
+            this.root = root;
+        }
+
+        /**
+         * @return int the slot of the root, which is its user id unless the ids are sparse; it tells the components
+         * of a graph apart and indexes arrays well
+         */
+        int identifier() {
+            return root;
+        }
+
+        int size() {
+            return graph.offsets[root + 1] - graph.offsets[root];
+        }
+
+        /**
+         * @param i int 0 up to {@link #size()}
+         * @return long the id of the i-th member, in increasing order of slots, which is the order of the ids unless
+         * the ids are sparse
+         */
+        long member(int i) {
+            return graph.id(graph.members[graph.offsets[root] + i]);
+        }
+
+        long[] members() {
+            long[] a = new long[size()];
+            for (int i = 0; i < a.length; i++)
+                a[i] = member(i);
+            return a;
+        }
+
+        /**
+         * @return int the version of the identifier, which is the version of every member unless some of them were
+         * on other versions when the graph was frozen and the component was not infected since
+         */
+        int version() {
+            int v = graph.infected.get(root);
+            return v != 0 ? v : graph.frozenVersion[root];
+        }
+
+        @Override
+        public String toString() {
+            return "Id user: " + graph.id(root) + ", #users: " + size() + ", version: " + version();
+        }
+    }
+}
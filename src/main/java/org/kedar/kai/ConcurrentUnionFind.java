@@ -0,0 +1,64 @@
+package org.kedar.kai;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A lock-free disjoint-set forest for the parallel ingestion, see {@link ParallelLoader}. There is only a parent
+ * array: a root is always linked under a root with a smaller index, so every parent chain strictly decreases and no
+ * interleaving of compare-and-set operations can create a cycle. Finds halve the path they walk, also with a
+ * compare-and-set, which keeps the trees shallow without any lock.
+ * <p>
+ * There is no size and no member list here; once all the workers are done the forest is copied into a
+ * {@link UnionFind} that has them.
+ * </p>
+ *
+ * @author kedar
+ */
+final class ConcurrentUnionFind {
+    private final AtomicIntegerArray parent; // parent + 1, so that 0 marks a slot that is not a user
+
+    ConcurrentUnionFind(int capacity) {
+        this.parent = new AtomicIntegerArray(capacity);
+    }
+
+    int capacity() {
+        return parent.length();
+    }
+
+    void add(int i) {
+        if (parent.get(i) == 0)
+            parent.compareAndSet(i, 0, i + 1);
+    }
+
+    boolean contains(int i) {
+        return parent.get(i) != 0;
+    }
+
+    int find(int i) {
+        while (true) {
+            int p = parent.get(i) - 1;
+            if (p == i)
+                return i;
+            int gp = parent.get(p) - 1;
+            if (gp != p)
+                parent.compareAndSet(i, p + 1, gp + 1); // path halving, harmless if someone got there first
+            i = gp;
+        }
+    }
+
+    void union(int a, int b) {
+        while (true) {
+            a = find(a);
+            b = find(b);
+            if (a == b)
+                return;
+            if (a < b) {
+                int t = a;
+                a = b;
+                b = t;
+            }
+            if (parent.compareAndSet(a, a + 1, b + 1)) // fails if a stopped being a root meanwhile, then retry
+                return;
+        }
+    }
+}
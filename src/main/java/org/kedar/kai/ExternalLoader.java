@@ -0,0 +1,434 @@
+package org.kedar.kai;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sets up a graph that does not fit in the heap, and writes it as a {@link Snapshot} instead of keeping it: the
+ * components, every user on version 1 and, if asked for, the edges. The heap it takes is fixed by configuration,
+ * whatever the number of edges:
+ * <ul>
+ * <li>graph.conf is streamed once, through {@link GraphScanner}, into a semi-external union-find: the int parent
+ * of each slot and nothing else, in an {@link IntColumn}, so with <code>-Dkai.columns=mapped:dir</code> not even
+ * that is on the heap. The roots are linked by index, the smaller one wins, and the finds halve the paths.</li>
+ * <li>The edges are collected in runs of <code>-Dkai.external.run</code> edges (4M by default, 8 bytes each), each
+ * run sorted and written to a temp file, then the runs are merged {@link #FAN_IN} at a time, in as many passes
+ * as it takes, straight into the rows of the snapshot.</li>
+ * </ul>
+ * The snapshot is written with positioned writes through small direct buffers. Only writing it is out of core:
+ * <code>restore</code> (or {@link Snapshot#load(File)}) memory-maps it, but loads the graph into the usual columns
+ * and edge arrays to query it, with the memory that takes. The runs go into the directory of the snapshot, which is
+ * assumed to have room for about 8 bytes per edge. Sparse ids are not supported: their map grows with the users.
+ *
+ * @author kedar
+ */
+final class ExternalLoader {
+    static final int RUN_EDGES = Integer.getInteger("kai.external.run", 1 << 22);
+    static final int FAN_IN = 64;                 // runs merged at a time
+    private static final int BUFFER_BYTES = 1 << 16; // per run being read or file being written
+
+    private final int runEdges;
+    private final boolean keepEdges;
+    private IntColumn parent; // per slot: -1 if it is not a user, the parent otherwise
+    private int slots;        // the number of vertices + 1, or more if the graph has bigger ids
+    private long[] run;       // coach << 32 | student, the edges of the run being collected
+    private int nrun;
+    private final List<File> runs = new ArrayList<>();
+    private File dir;
+    long lines; // what the last load parsed
+    long edges;
+    long unions;
+    int vertices; // what the last load wrote
+    long components;
+
+    ExternalLoader(boolean keepEdges) {
+        this(keepEdges, RUN_EDGES);
+    }
+
+    /**
+     * @param keepEdges boolean false to only write the components
+     * @param runEdges  int edges sorted in memory at a time
+     */
+    ExternalLoader(boolean keepEdges, int runEdges) {
+        if (runEdges < 1)
+            throw new IllegalArgumentException("invalid run size: " + runEdges);
+        this.keepEdges = keepEdges;
+        this.runEdges = runEdges;
+    }
+
+    /**
+     * @param graph    File the graph.conf file, with dense ids
+     * @param snapshot File to write, it is overwritten
+     * @return long number of bytes written
+     * @throws IOException              if the graph can't be read or is malformed, or the snapshot or the runs can't
+     *                                  be written
+     * @throws IllegalArgumentException if an id is far past the number of vertices, see
+     *                                  {@link ComponentBuilder#ID_HEADROOM}
+     */
+    long load(File graph, File snapshot) throws IOException {
+        if (ComponentBuilder.SPARSE_IDS)
+            throw new IOException("an out-of-core setup needs dense ids, with the number of vertices on the first line");
+        long start = System.nanoTime();
+        lines = edges = unions = components = 0;
+        vertices = 0;
+        dir = snapshot.getAbsoluteFile().getParentFile();
+        run = keepEdges ? new long[runEdges] : null;
+        nrun = 0;
+        try {
+            GraphScanner.scan(graph, new GraphScanner.Sink() {
+                @Override
+                public void header(int vertices) {
+                    parent = IntColumn.of(vertices + 1);
+                    parent.fill(0, vertices + 1, -1);
+                    slots = vertices + 1;
+                }
+
+                @Override
+                public void line(int uid, int[] sids, int count) {
+                    try {
+                        enroll(uid);
+                        lines += 1;
+                        edges += count;
+                        for (int i = 0; i < count; i++) {
+                            enroll(sids[i]);
+                            union(uid, sids[i]);
+                            if (run != null && uid != sids[i]) // coaching oneself does not connect anything
+                                collect(uid, sids[i]);
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            });
+            if (run != null && nrun > 0)
+                spill();
+            run = null;
+            while (runs.size() > FAN_IN) { // merge the first ones into one more run, until one pass can take them all
+                List<File> some = new ArrayList<>(runs.subList(0, FAN_IN));
+                runs.subList(0, FAN_IN).clear();
+                File merged = File.createTempFile("edges", ".run", dir);
+                try (Out out = new Out(merged)) {
+                    merge(some, out);
+                }
+                runs.add(merged);
+            }
+            long bytes = write(snapshot);
+            Metrics.get().setup(lines, edges, unions, System.nanoTime() - start);
+            return bytes;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            for (File f : runs)
+                f.delete();
+            runs.clear();
+            run = null;
+            if (parent != null)
+                parent.close();
+            parent = null;
+        }
+    }
+
+    /**
+     * Makes the given slot a user, a set of its own, unless it is one already. Ids past the number of vertices
+     * make room for themselves, the way they do in a link, and are refused past the same bound.
+     */
+    private void enroll(int u) {
+        ComponentBuilder.dense(u, slots);
+        if (u >= parent.length()) {
+            int old = parent.length();
+            parent.grow(Math.max(u + 1, old + (old >> 1)));
+            parent.fill(old, parent.length(), -1);
+        }
+        slots = Math.max(slots, u + 1);
+        if (parent.get(u) < 0)
+            parent.set(u, u);
+    }
+
+    private int find(int u) {
+        int p;
+        while ((p = parent.get(u)) != u) {
+            int gp = parent.get(p);
+            parent.set(u, gp); // path halving: every other node skips its parent
+            u = gp;
+        }
+        return u;
+    }
+
+    private void union(int a, int b) {
+        int ra = find(a), rb = find(b);
+        if (ra == rb)
+            return;
+        if (ra < rb)
+            parent.set(rb, ra);
+        else
+            parent.set(ra, rb);
+        unions += 1;
+    }
+
+    private void collect(int coach, int student) throws IOException {
+        run[nrun++] = (long) coach << 32 | student;
+        if (nrun == run.length)
+            spill();
+    }
+
+    /**
+     * Sorts the edges of the run, drops the duplicates and writes it to a temp file.
+     */
+    private void spill() throws IOException {
+        Arrays.sort(run, 0, nrun);
+        File f = File.createTempFile("edges", ".run", dir);
+        runs.add(f);
+        try (Out out = new Out(f)) {
+            for (int i = 0; i < nrun; i++)
+                if (i == 0 || run[i] != run[i - 1])
+                    out.edge(run[i]);
+        }
+        nrun = 0;
+    }
+
+    /**
+     * Merges sorted runs into one sorted stream without duplicates, with a binary heap of the runs keyed by their
+     * current edge.
+     */
+    private static void merge(List<File> inputs, EdgeSink out) throws IOException {
+        int k = inputs.size();
+        In[] in = new In[k];
+        int[] heap = new int[k];
+        long[] head = new long[k];
+        int n = 0;
+        try {
+            for (int i = 0; i < k; i++) {
+                in[i] = new In(inputs.get(i));
+                if (in[i].hasNext()) {
+                    head[i] = in[i].next();
+                    heap[n] = i;
+                    up(heap, head, n++);
+                }
+            }
+            long last = -1;
+            while (n > 0) {
+                int r = heap[0];
+                long e = head[r];
+                if (e != last)
+                    out.edge(e);
+                last = e;
+                if (in[r].hasNext()) {
+                    head[r] = in[r].next();
+                } else {
+                    heap[0] = heap[--n];
+                }
+                down(heap, head, n);
+            }
+        } finally {
+            for (In i : in)
+                if (i != null)
+                    i.close();
+            for (File f : inputs)
+                f.delete();
+        }
+    }
+
+    private static void up(int[] heap, long[] head, int i) {
+        while (i > 0) {
+            int p = (i - 1) >>> 1;
+            if (head[heap[p]] <= head[heap[i]])
+                return;
+            int t = heap[p];
+            heap[p] = heap[i];
+            heap[i] = t;
+            i = p;
+        }
+    }
+
+    private static void down(int[] heap, long[] head, int n) {
+        int i = 0;
+        while (2 * i + 1 < n) {
+            int c = 2 * i + 1;
+            if (c + 1 < n && head[heap[c + 1]] < head[heap[c]])
+                c += 1;
+            if (head[heap[i]] <= head[heap[c]])
+                return;
+            int t = heap[c];
+            heap[c] = heap[i];
+            heap[i] = t;
+            i = c;
+        }
+    }
+
+    /**
+     * Writes the snapshot: the labels and the versions in one pass over the slots, then the rows from the last
+     * merge, with the offsets and the targets written side by side at their places in the file.
+     */
+    private long write(File snapshot) throws IOException {
+        if (parent == null)
+            throw new IOException("the first line should contain the number of vertices");
+        final int capacity = slots;
+        vertices = capacity - 1;
+        try (RandomAccessFile raf = new RandomAccessFile(snapshot, "rw");
+             FileChannel channel = raf.getChannel()) {
+            channel.truncate(0);
+            Out head = new Out(channel, 0);
+            head.putInt(Snapshot.MAGIC);
+            head.putInt(Snapshot.FORMAT);
+            head.putInt(capacity);
+            for (int i = 0; i < capacity; i++) {
+                int label = parent.get(i) < 0 ? -1 : find(i);
+                if (label == i)
+                    components += 1;
+                head.putInt(label);
+            }
+            for (int i = 0; i < capacity; i++)
+                head.putInt(parent.get(i) < 0 ? 0 : 1);
+            long countAt = head.position();
+            head.putInt(-1);
+            head.flush();
+            long end = countAt + 4;
+            if (keepEdges) {
+                final Out offsets = new Out(channel, end);
+                final Out targets = new Out(channel, end + 4L * (capacity + 1));
+                final int[] row = {0}; // the next row whose offset is to be written
+                final long[] m = {0};
+                merge(runs, new EdgeSink() {
+                    @Override
+                    public void edge(long e) throws IOException {
+                        int coach = (int) (e >>> 32);
+                        for (; row[0] <= coach; row[0]++)
+                            offsets.putInt((int) m[0]);
+                        targets.putInt((int) e);
+                        m[0] += 1;
+                    }
+                });
+                runs.clear();
+                if (m[0] >= Integer.MAX_VALUE)
+                    throw new IOException("too many edges: " + m[0]);
+                for (; row[0] <= capacity; row[0]++)
+                    offsets.putInt((int) m[0]);
+                offsets.flush();
+                targets.putInt(0); // the ids are the slots
+                targets.flush();
+                end = targets.position();
+                Out count = new Out(channel, countAt);
+                count.putInt((int) m[0]);
+                count.flush();
+            } else {
+                Out sparse = new Out(channel, end);
+                sparse.putInt(0);
+                sparse.flush();
+                end = sparse.position();
+            }
+            Out journal = new Out(channel, end);
+            for (int i = 0; i < 4; i++)
+                journal.putInt(0); // no journal records included: its id and count, two longs
+            journal.flush();
+            end = journal.position();
+            channel.force(false);
+            return end;
+        }
+    }
+
+    /**
+     * Receives edges, in order.
+     */
+    private interface EdgeSink {
+        void edge(long e) throws IOException;
+    }
+
+    /**
+     * Writes little-endian ints and longs from the given position of a channel on, through a small direct buffer.
+     */
+    private static final class Out implements EdgeSink, AutoCloseable {
+        private final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        private final FileChannel channel;
+        private final RandomAccessFile raf; // null if the channel is someone else's
+        private long position;
+
+        Out(FileChannel channel, long position) {
+            this.channel = channel;
+            this.raf = null;
+            this.position = position;
+        }
+
+        Out(File file) throws IOException {
+            this.raf = new RandomAccessFile(file, "rw");
+            this.channel = raf.getChannel();
+            this.position = 0;
+        }
+
+        void putInt(int v) throws IOException {
+            if (buf.remaining() < 4)
+                flush();
+            buf.putInt(v);
+        }
+
+        @Override
+        public void edge(long e) throws IOException {
+            if (buf.remaining() < 8)
+                flush();
+            buf.putLong(e);
+        }
+
+        /**
+         * @return long the position in the file of what is written next
+         */
+        long position() {
+            return position + buf.position();
+        }
+
+        void flush() throws IOException {
+            buf.flip();
+            while (buf.hasRemaining())
+                position += channel.write(buf, position);
+            buf.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+            if (raf != null)
+                raf.close();
+        }
+    }
+
+    /**
+     * Reads the edges of a run back, through a small direct buffer.
+     */
+    private static final class In implements AutoCloseable {
+        private final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+
+        In(File file) throws IOException {
+            raf = new RandomAccessFile(file, "r");
+            channel = raf.getChannel();
+            buf.limit(0);
+        }
+
+        boolean hasNext() throws IOException {
+            if (buf.remaining() >= 8)
+                return true;
+            buf.compact();
+            while (buf.position() < 8 && channel.read(buf) > 0) {
+                // a read may return fewer bytes than a whole edge
+            }
+            buf.flip();
+            return buf.remaining() >= 8;
+        }
+
+        long next() {
+            return buf.getLong();
+        }
+
+        @Override
+        public void close() throws IOException {
+            raf.close();
+        }
+    }
+}
@@ -1,18 +1,45 @@
 package org.kedar.kai;
 
 import java.io.*;
-import java.util.BitSet;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
- * Generates a graph.conf file with given vertices, edges and max number of edges per vertex.
- * The edges are created at random.
+ * Generates a graph.conf file. There are two ways to call it:
+ * <pre>
+ *     GenGraph nvertices nedges nmax-edges-per-node
+ *     GenGraph --vertices n --components k [--sizes uniform|powerlaw[:alpha]|giants[:g]] [--degree d] [--seed s]
+ *              [--threads t] [--out file]
+ * </pre>
+ * The first one creates the edges at random, whatever components come out of it. The second one controls the
+ * components: it lays out k components whose sizes follow the given distribution and connects the members of each
+ * of them with a random tree plus random extra edges, d students per user on average. That one streams: the graph is
+ * made in chunks of {@link #CHUNK} users on all the cores and written out in order, so the memory does not depend on
+ * the size of the graph, only on the number of components. Each chunk draws from its own {@link SplittableRandom},
+ * split off the seed in chunk order, so the same seed gives the same file on any number of threads.
  * Created by kedar on 12/2/14.
  */
 public class GenGraph {
+    static final int CHUNK = 1 << 16; // users per chunk of work
+
     public static void main(String[] args) throws IOException {
+        if (args.length > 0 && args[0].startsWith("--")) {
+            Spec spec = Spec.parse(args);
+            OutputStream out = spec.out == null ? System.out : new FileOutputStream(spec.out);
+            try (OutputStream buffered = new BufferedOutputStream(out, 1 << 20)) {
+                stream(spec, buffered);
+            }
+            return;
+        }
         if(args.length != 3)
-            throw new IllegalArgumentException("required 3 args: nvertices, nedges, nmax-edges-per-node");
+            throw new IllegalArgumentException("required 3 args: nvertices, nedges, nmax-edges-per-node, or --vertices n --components k ...");
         int n = Integer.valueOf(args[0]);
         int m = Integer.valueOf(args[1]);
         int d = Integer.valueOf(args[2]);
@@ -28,48 +55,282 @@ public class GenGraph {
      * @throws IOException
      */
     private static void buildBasic(int n, int m, int d) throws IOException {
-//        System.out.printf("n=%d, m=%d, max=%d %n", n, m, d);
-        BitSet[] lines = new BitSet[n+1];
-        for (int i = 1; i < lines.length; i++)
-            lines[i] = new BitSet(d+1);
-        Random r = new Random(System.currentTimeMillis());
-        int mm = 0; //number of edges so far
+        generate(n, m, d, System.currentTimeMillis(), new PrintStream(new BufferedOutputStream(System.out, 1 << 20)));
+    }
+
+    /**
+     * Generates a random graph into the given stream, in the graph.conf format, and closes it. The same seed gives
+     * the same graph, which is what the benchmarks need. The edges are kept as packed (from, to) pairs in one long
+     * array that is sorted to drop the duplicates, 8 bytes per edge, so that graphs of 10M vertices fit in memory.
+     * @param n    int number of vertices
+     * @param m    int number of edges, at most n * d
+     * @param d    int number of maximum edges from a particular vertex
+     * @param seed long seed of the random number generator
+     * @param out  PrintStream where the graph goes
+     */
+    static void generate(int n, int m, int d, long seed, PrintStream out) {
+        if (n < 2 && m > 0 || (long) m > (long) Math.min(d, n - 1) * n)
+            throw new IllegalArgumentException("can't have " + m + " edges with " + n + " vertices and at most " + d + " per vertex");
+        Random r = new Random(seed);
+        long[] edges = new long[m];
+        int[] degree = new int[n + 1];
+        int mm = 0; //number of distinct edges so far
         while (mm < m) {
-            int from = r.nextInt(n);
-            int to = r.nextInt(n);
-//            System.out.printf("%d->%d%n", from, to);
-            if (from == to)
-                continue;
-            if (lines[from+1].cardinality() >= d)
-                continue; //redo
-            if (lines[from+1].get(to+1))
-                continue; //redo
-            lines[from+1].set(to+1);
-            mm += 1;
+            for (int i = mm; i < m; ) {
+                int from = r.nextInt(n) + 1;
+                int to = r.nextInt(n) + 1;
+                if (from == to || degree[from] >= d)
+                    continue; //redo
+                degree[from] += 1;
+                edges[i++] = (long) from << 32 | to;
+            }
+            Arrays.sort(edges);
+            mm = 0; // squeeze out the duplicates, they are generated again
+            for (int i = 0; i < m; i++) {
+                if (i > 0 && edges[i] == edges[i - 1])
+                    degree[(int) (edges[i] >>> 32)] -= 1;
+                else
+                    edges[mm++] = edges[i];
+            }
         }
-        write(System.out, n, lines);
+        write(out, n, edges);
     }
 
-    private static void write(PrintStream out, int n, BitSet[] lines) throws IOException {
+    private static void write(PrintStream out, int n, long[] edges) {
         out.println(n);
-        int i = 1;
-        while(i < lines.length) {
-            BitSet line = lines[i];
+        int e = 0;
+        for (int i = 1; i <= n; i++) {
             out.print(i);
             out.print(' ');
-            boolean firstDone = false;
-            for (int j = 1; j < line.length(); j++) {
-                if (line.get(j)) {
-                    if (!firstDone)
-                        firstDone = true;
-                    else
-                        out.print(',');
-                    out.print(j);
-                }
+            for (boolean first = true; e < edges.length && (int) (edges[e] >>> 32) == i; e++, first = false) {
+                if (!first)
+                    out.print(',');
+                out.print((int) edges[e]);
             }
             out.println();
-            i += 1;
         }
         out.close();
     }
+
+    /**
+     * Streams the graph the spec describes into the given stream, see the class comment. At most 2 chunks per thread
+     * are in memory at a time.
+     *
+     * @param spec Spec what to generate
+     * @param out  OutputStream where the graph goes, it is not closed
+     * @return long number of edges written
+     */
+    static long stream(final Spec spec, OutputStream out) throws IOException {
+        final int[] sizes = spec.sizes();
+        final int[] starts = new int[sizes.length + 1]; // component c is [starts[c], starts[c + 1]) of the layout
+        for (int c = 0; c < sizes.length; c++)
+            starts[c + 1] = starts[c] + sizes[c];
+        final Scramble ids = new Scramble(spec.vertices, spec.seed);
+        SplittableRandom seeds = new SplittableRandom(spec.seed);
+        out.write((spec.vertices + "\n").getBytes("US-ASCII"));
+        ExecutorService pool = Executors.newFixedThreadPool(spec.threads);
+        Deque<Future<Chunk>> window = new ArrayDeque<>();
+        long edges = 0;
+        try {
+            for (int from = 0; from < spec.vertices || !window.isEmpty(); ) {
+                while (from < spec.vertices && window.size() < 2 * spec.threads) {
+                    final int start = from, end = (int) Math.min(spec.vertices, (long) from + CHUNK);
+                    final SplittableRandom random = seeds.split(); // in chunk order, whatever the threads do
+                    window.add(pool.submit(() -> new Chunk(start, end, starts, ids, spec.degree, random)));
+                    from = end;
+                }
+                Chunk chunk = window.poll().get();
+                chunk.bytes.writeTo(out);
+                edges += chunk.edges;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while generating");
+        } catch (ExecutionException e) {
+            throw new IOException("could not generate the graph", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return edges;
+    }
+
+    /**
+     * The lines of the users in [start, end) of the layout. The member at position i of a component coaches a random
+     * earlier member (a random recursive tree, so the component is connected) and a random number of random other
+     * members, degree - 1 on average.
+     */
+    private static final class Chunk {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(CHUNK * 16);
+        private long edges;
+
+        Chunk(int start, int end, int[] starts, Scramble ids, int degree, SplittableRandom random) {
+            byte[] line = new byte[64];
+            int[] students = new int[2 * degree + 1];
+            int c = Arrays.binarySearch(starts, start);
+            if (c < 0)
+                c = -c - 2;
+            for (int x = start; x < end; x++) {
+                while (x >= starts[c + 1])
+                    c += 1;
+                int first = starts[c], size = starts[c + 1] - first, i = x - first;
+                int n = 0;
+                if (i > 0)
+                    students[n++] = first + random.nextInt(i);
+                for (int extra = size > 1 && degree > 1 ? random.nextInt(2 * degree - 1) : 0; extra > 0; extra--) {
+                    int s = first + random.nextInt(size);
+                    if (s != x && !contains(students, n, s))
+                        students[n++] = s;
+                }
+                if (n == 0 && size > 1)
+                    continue; // the root of a tree, it is somebody's student already
+                int len = put(line, 0, ids.id(x));
+                for (int k = 0; k < n; k++) {
+                    line[len++] = (byte) (k == 0 ? ' ' : ',');
+                    if (len + 11 > line.length)
+                        line = Arrays.copyOf(line, line.length * 2);
+                    len = put(line, len, ids.id(students[k]));
+                }
+                line[len++] = '\n';
+                bytes.write(line, 0, len);
+                edges += n;
+            }
+        }
+
+        private static boolean contains(int[] a, int n, int v) {
+            for (int k = 0; k < n; k++)
+                if (a[k] == v)
+                    return true;
+            return false;
+        }
+
+        /**
+         * Writes the decimal digits of a positive int at the given position.
+         *
+         * @return int the position after the digits
+         */
+        private static int put(byte[] buf, int at, int v) {
+            int digits = 1;
+            for (int t = v; t >= 10; t /= 10)
+                digits += 1;
+            for (int k = at + digits - 1; k >= at; k--, v /= 10)
+                buf[k] = (byte) ('0' + v % 10);
+            return at + digits;
+        }
+    }
+
+    /**
+     * A permutation of the layout positions onto the user ids 1..n, x -> (a * x + b) mod n + 1 with a coprime to n,
+     * so that the members of a component are spread over the id space instead of sitting next to each other.
+     */
+    private static final class Scramble {
+        private final long n, a, b;
+
+        Scramble(int n, long seed) {
+            this.n = n;
+            SplittableRandom r = new SplittableRandom(~seed);
+            long a = n <= 1 ? 1 : 1 + r.nextLong(n - 1);
+            while (gcd(a, n) != 1)
+                a += 1;
+            this.a = a % Math.max(1, n);
+            this.b = n <= 1 ? 0 : r.nextLong(n);
+        }
+
+        int id(int x) {
+            return (int) ((a * x + b) % n) + 1;
+        }
+
+        private static long gcd(long x, long y) {
+            while (y != 0) {
+                long t = x % y;
+                x = y;
+                y = t;
+            }
+            return x;
+        }
+    }
+
+    /**
+     * What {@link #stream(Spec, OutputStream)} generates.
+     */
+    static final class Spec {
+        int vertices;
+        int components;
+        String sizes = "uniform";
+        int degree = 2;
+        long seed = 42;
+        int threads = Runtime.getRuntime().availableProcessors();
+        File out;
+
+        static Spec parse(String[] args) {
+            Spec spec = new Spec();
+            for (int i = 0; i + 1 < args.length; i += 2) {
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "--vertices": spec.vertices = Integer.parseInt(value); break;
+                    case "--components": spec.components = Integer.parseInt(value); break;
+                    case "--sizes": spec.sizes = value; break;
+                    case "--degree": spec.degree = Integer.parseInt(value); break;
+                    case "--seed": spec.seed = Long.parseLong(value); break;
+                    case "--threads": spec.threads = Integer.parseInt(value); break;
+                    case "--out": spec.out = new File(value); break;
+                    default: throw new IllegalArgumentException("unknown option: " + args[i]);
+                }
+            }
+            if (args.length % 2 != 0)
+                throw new IllegalArgumentException("option without a value: " + args[args.length - 1]);
+            if (spec.vertices < 1 || spec.components < 1 || spec.components > spec.vertices || spec.degree < 1 || spec.threads < 1)
+                throw new IllegalArgumentException("need 1 <= components <= vertices, degree >= 1 and threads >= 1");
+            return spec;
+        }
+
+        /**
+         * @return int[] the size of each component, in decreasing order; they add up to the number of vertices
+         */
+        int[] sizes() {
+            String[] kind = sizes.split(":");
+            double[] weights = new double[components];
+            switch (kind[0]) {
+                case "uniform":
+                    Arrays.fill(weights, 1);
+                    break;
+                case "powerlaw": { // Zipf: the r-th biggest has a share proportional to r^-alpha
+                    double alpha = kind.length > 1 ? Double.parseDouble(kind[1]) : 2;
+                    for (int r = 0; r < components; r++)
+                        weights[r] = Math.pow(r + 1, -alpha);
+                    break;
+                }
+                case "giants": { // a few giants with 80% of the users, the rest share the other 20% evenly
+                    int g = Math.min(components, kind.length > 1 ? Integer.parseInt(kind[1]) : 1);
+                    for (int r = 0; r < components; r++)
+                        weights[r] = r < g ? 0.8 / g : 0.2 / (components - g);
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException("unknown size distribution: " + sizes);
+            }
+            return apportion(weights, vertices);
+        }
+
+        /**
+         * Splits the total in proportion to the weights, at least 1 each, by largest remainder.
+         */
+        static int[] apportion(double[] weights, int total) {
+            int k = weights.length;
+            double sum = 0;
+            for (double w : weights)
+                sum += w;
+            int[] sizes = new int[k];
+            long assigned = 0;
+            for (int r = 0; r < k; r++) {
+                sizes[r] = Math.max(1, (int) Math.floor((total - k) * weights[r] / sum) + 1);
+                assigned += sizes[r];
+            }
+            // what is left over is at most k, give it out from the biggest down, a user at a time
+            for (int r = 0; assigned < total; r = (r + 1) % k) {
+                sizes[r] += 1;
+                assigned += 1;
+            }
+            return sizes;
+        }
+    }
 }
@@ -0,0 +1,260 @@
+package org.kedar.kai;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Scans the bytes of a graph.conf file straight into ints, without creating a String, a tokenizer or a boxed
+ * Integer per line. The format is the one {@link ComponentBuilder#process(java.io.BufferedReader)} reads: the first
+ * line holds the number of vertices, each subsequent line is a coach id followed by the student ids, separated
+ * by blanks or commas. Blank lines are skipped and a line that starts with a <code>#</code> ends the graph.
+ * <p>
+ * The scanner is a small state machine, so the input can be fed to it in as many pieces as needed: a file
+ * bigger than what a single mapping can cover (2 GB) is simply mapped and fed window by window. The ids of a
+ * line are collected in a buffer that is reused for every line and handed to the {@link Sink}.
+ * </p>
+ * <p>
+ * A graph with sparse 64-bit ids has no header line; every id is turned into a dense slot by an {@link Ids} as soon
+ * as it is read, so the sink sees ints either way.
+ * </p>
+ *
+ * @author kedar
+ */
+final class GraphScanner {
+
+    /**
+     * Receives what the scanner finds. The students array is owned by the scanner and is only valid during the call.
+     */
+    interface Sink {
+        void header(int vertices);
+
+        void line(int uid, int[] sids, int count);
+    }
+
+    /**
+     * Maps the ids of a graph with sparse 64-bit ids to dense slots.
+     */
+    interface Ids {
+        int slot(long id);
+    }
+
+    private static final long WINDOW = 1L << 30; // bytes mapped at a time
+    private static final long LONG_PREFIX = Long.MAX_VALUE / 10; // a bigger number can't take another digit
+
+    private final Sink sink;
+    private final Ids ids;  // null if the ids are the slots
+    private final long maxId;
+    private int coach = -1;          // first id of the current line, -1 until it is seen
+    private int[] sids = new int[16]; // the rest of the ids of the current line
+    private int nsids = 0;
+    private long number = 0;
+    private boolean inNumber = false;
+    private boolean atLineStart = true;
+    private boolean headerDone = false;
+    private boolean stopped = false;
+    private long lineNo = 1;
+
+    GraphScanner(Sink sink) {
+        this(sink, true);
+    }
+
+    /**
+     * @param sink       Sink that receives the lines
+     * @param withHeader boolean false if the input is a piece of a graph that starts after the header line
+     */
+    GraphScanner(Sink sink, boolean withHeader) {
+        this(sink, withHeader, null);
+    }
+
+    /**
+     * @param sink       Sink that receives the lines
+     * @param withHeader boolean false if the input has no header line
+     * @param ids        Ids that maps 64-bit ids to slots, null if the ids are ints and are the slots
+     */
+    GraphScanner(Sink sink, boolean withHeader, Ids ids) {
+        this.sink = sink;
+        this.headerDone = !withHeader;
+        this.ids = ids;
+        this.maxId = ids == null ? Integer.MAX_VALUE : Long.MAX_VALUE;
+    }
+
+    /**
+     * Memory-maps the given file and scans it.
+     *
+     * @param file File the graph.conf file
+     * @param sink Sink that receives the header and the lines
+     * @return long number of the line the scan ended at
+     * @throws IOException if the file can't be read or is malformed
+     */
+    static long scan(File file, Sink sink) throws IOException {
+        return scan(file, new GraphScanner(sink));
+    }
+
+    /**
+     * Memory-maps the given file, which has sparse 64-bit ids and no header line, and scans it.
+     *
+     * @param file File the graph file
+     * @param sink Sink that receives the lines, with slots for ids
+     * @param ids  Ids that maps the ids to slots
+     * @return long number of the line the scan ended at
+     * @throws IOException if the file can't be read or is malformed
+     */
+    static long scan(File file, Sink sink, Ids ids) throws IOException {
+        return scan(file, new GraphScanner(sink, false, ids));
+    }
+
+    /**
+     * Reads all the user ids of the given file: ids separated by blanks, commas or new lines, the way the lines of a
+     * graph without a header are read, so a list of ids costs no more than the longs it ends up in.
+     *
+     * @param file File a list of user ids
+     * @return long[] the ids, in order, duplicates included
+     * @throws IOException if the file can't be read or is malformed
+     */
+    static long[] readIds(File file) throws IOException {
+        IdList list = new IdList();
+        scan(file, new GraphScanner(list, false, list));
+        return list.ids();
+    }
+
+    /**
+     * @param buf ByteBuffer a list of user ids, see {@link #readIds(File)}
+     * @return long[] the ids, in order, duplicates included
+     * @throws IOException if the list is malformed
+     */
+    static long[] readIds(ByteBuffer buf) throws IOException {
+        IdList list = new IdList();
+        GraphScanner scanner = new GraphScanner(list, false, list);
+        scanner.feed(buf);
+        scanner.finish();
+        return list.ids();
+    }
+
+    private static long scan(File file, GraphScanner scanner) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            long length = channel.size();
+            for (long pos = 0; pos < length && !scanner.stopped; pos += WINDOW) {
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(WINDOW, length - pos));
+                scanner.feed(window);
+            }
+        }
+        scanner.finish();
+        return scanner.lineNo;
+    }
+
+    /**
+     * Scans the remaining bytes of the given buffer.
+     *
+     * @param buf ByteBuffer the next piece of input
+     * @return false if a line starting with # was seen and the rest of the input is to be ignored
+     * @throws IOException if the input is malformed
+     */
+    boolean feed(ByteBuffer buf) throws IOException {
+        int end = buf.limit();
+        for (int i = buf.position(); i < end && !stopped; i++) {
+            byte b = buf.get(i);
+            if (b >= '0' && b <= '9') {
+                if (number >= LONG_PREFIX && (number > LONG_PREFIX || b > '7'))
+                    throw malformed("id too big");
+                number = number * 10 + (b - '0');
+                if (number > maxId)
+                    throw malformed("id too big");
+                inNumber = true;
+                atLineStart = false;
+            } else if (b == ' ' || b == ',' || b == '\t' || b == '\r') {
+                endNumber();
+                atLineStart = false;
+            } else if (b == '\n') {
+                endLine();
+                lineNo += 1;
+            } else if (b == '#' && atLineStart && headerDone) {
+                stopped = true;
+            } else {
+                throw malformed("unexpected character: '" + (char) b + "'");
+            }
+        }
+        buf.position(end);
+        return !stopped;
+    }
+
+    /**
+     * Flushes the last line, which need not be terminated by a new line.
+     */
+    void finish() throws IOException {
+        if (!stopped)
+            endLine();
+        if (!headerDone)
+            throw new IOException("the first line should contain the number of vertices");
+    }
+
+    private void endNumber() {
+        if (!inNumber)
+            return;
+        int id = ids == null || !headerDone ? (int) number : ids.slot(number);
+        if (coach < 0) {
+            coach = id;
+        } else {
+            if (nsids == sids.length)
+                sids = Arrays.copyOf(sids, nsids * 2);
+            sids[nsids++] = id;
+        }
+        number = 0;
+        inNumber = false;
+    }
+
+    private void endLine() throws IOException {
+        endNumber();
+        atLineStart = true;
+        if (coach < 0)
+            return; // blank line
+        if (!headerDone) {
+            if (nsids != 0)
+                throw malformed("the first line should contain the number of vertices alone");
+            headerDone = true;
+            sink.header(coach);
+        } else {
+            sink.line(coach, sids, nsids);
+        }
+        coach = -1;
+        nsids = 0;
+    }
+
+    private IOException malformed(String what) {
+        return new IOException("malformed graph at line " + lineNo + ": " + what);
+    }
+
+    /**
+     * Collects every id the scanner reads, as it is read, and ignores the lines.
+     */
+    private static final class IdList implements Sink, Ids {
+        private long[] ids = new long[64];
+        private int n;
+
+        @Override
+        public void header(int vertices) {
+            throw new AssertionError("a list of ids has no header");
+        }
+
+        @Override
+        public void line(int uid, int[] sids, int count) {
+        }
+
+        @Override
+        public int slot(long id) {
+            if (n == ids.length)
+                ids = Arrays.copyOf(ids, n * 2);
+            ids[n++] = id;
+            return 0;
+        }
+
+        long[] ids() {
+            return Arrays.copyOf(ids, n);
+        }
+    }
+}
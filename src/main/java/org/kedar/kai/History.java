@@ -0,0 +1,78 @@
+package org.kedar.kai;
+
+import java.util.Arrays;
+
+/**
+ * The log of the infections, oldest first: for each one the root of the component it reached, the version it moved
+ * the users from and to, how many users moved and when. The entries are kept in five primitive arrays that double
+ * as needed, 24 bytes per infection, so a rollout of thousands of groups costs next to nothing to remember. The root
+ * is a slot of the {@link UnionFind} forest at the time; the component it was the root of may have merged into
+ * another one since.
+ *
+ * @author kedar
+ */
+final class History {
+    private int[] roots = new int[16];
+    private int[] from = new int[16];
+    private int[] to = new int[16];
+    private int[] users = new int[16];
+    private long[] times = new long[16];
+    private int size;
+
+    /**
+     * @param root  int the root of the component that was infected
+     * @param from  int the version the users were on, a partial infection records an entry for each one
+     * @param to    int the version they moved to
+     * @param users int number of users that moved
+     */
+    void record(int root, int from, int to, int users) {
+        if (size == roots.length) {
+            int n = size * 2;
+            roots = Arrays.copyOf(roots, n);
+            this.from = Arrays.copyOf(this.from, n);
+            this.to = Arrays.copyOf(this.to, n);
+            this.users = Arrays.copyOf(this.users, n);
+            times = Arrays.copyOf(times, n);
+        }
+        roots[size] = root;
+        this.from[size] = from;
+        this.to[size] = to;
+        this.users[size] = users;
+        times[size] = System.currentTimeMillis();
+        size += 1;
+    }
+
+    /**
+     * @return int number of infections so far
+     */
+    int size() {
+        return size;
+    }
+
+    int root(int i) {
+        return roots[i];
+    }
+
+    int from(int i) {
+        return from[i];
+    }
+
+    int to(int i) {
+        return to[i];
+    }
+
+    int users(int i) {
+        return users[i];
+    }
+
+    /**
+     * @return long when the i-th infection happened, in milliseconds since the epoch
+     */
+    long time(int i) {
+        return times[i];
+    }
+
+    long bytes() {
+        return 24L * roots.length;
+    }
+}
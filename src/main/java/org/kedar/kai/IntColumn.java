@@ -0,0 +1,156 @@
+package org.kedar.kai;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * One int per user slot, for the per-user columns of the {@link UnionFind} forest and the {@link Versions}. Where
+ * the ints live is picked once per process with <code>-Dkai.columns</code>:
+ * <ul>
+ * <li><code>heap</code>, the default: a plain int array.</li>
+ * <li><code>direct</code>: a direct buffer outside the heap. The garbage collector never copies or scans it, so a
+ * graph of hundreds of millions of users neither needs a heap that big nor makes the collections slower.</li>
+ * <li><code>mapped:dir</code>: a file in the given directory, mapped into memory. The OS pages it in and out as
+ * needed, so the columns can be bigger than the memory. The file is scratch space: its channel is closed and its
+ * name unlinked as soon as it is mapped, so no descriptor stays open and nothing is left behind, even after a
+ * crash. The space goes back to the disk with the mapping.</li>
+ * </ul>
+ * On the heap, an access costs a null check over the bare array. A buffer holds at most 2 GB, i.e. about 500M
+ * slots. A column that is not needed any more is {@link #close() closed}, so that a long-running shell or server
+ * does not hold on to the columns of every graph it loaded: its buffer, and with it the memory outside the heap or
+ * the scratch space, goes back at the next collection instead of whenever the owner happens to be collected.
+ *
+ * @author kedar
+ */
+final class IntColumn implements Closeable {
+    static final String MODE = System.getProperty("kai.columns", "heap");
+    private static final String MAPPED = "mapped:";
+
+    private final String mode;
+    private int[] heap;    // null unless the column is on the heap
+    private IntBuffer off; // null if the column is on the heap
+    private File scratch;  // the file of a mapped column the OS would not unlink while mapped, null otherwise
+    private int length;
+
+    /**
+     * @param length int number of ints, all 0
+     * @param mode   String where they live, see the modes above
+     */
+    IntColumn(int length, String mode) {
+        this.length = length;
+        this.mode = mode;
+        if (mode.equals("heap"))
+            heap = new int[length];
+        else
+            off = allocate(length);
+    }
+
+    /**
+     * @param length int number of ints, all 0
+     * @return IntColumn a column where the mode says
+     */
+    static IntColumn of(int length) {
+        return new IntColumn(length, MODE);
+    }
+
+    int length() {
+        return length;
+    }
+
+    int get(int i) {
+        return heap != null ? heap[i] : off.get(i);
+    }
+
+    void set(int i, int v) {
+        if (heap != null)
+            heap[i] = v;
+        else
+            off.put(i, v);
+    }
+
+    void add(int i, int delta) {
+        set(i, get(i) + delta);
+    }
+
+    /**
+     * Makes room for more ints, the new ones are 0.
+     *
+     * @param n int the new length
+     */
+    void grow(int n) {
+        if (n <= length)
+            return;
+        if (heap != null) {
+            heap = Arrays.copyOf(heap, n);
+        } else {
+            IntBuffer bigger = allocate(n);
+            IntBuffer old = off.duplicate();
+            old.clear();
+            bigger.put(old).clear();
+            off = bigger;
+        }
+        length = n;
+    }
+
+    void fill(int from, int to, int v) {
+        if (heap != null) {
+            Arrays.fill(heap, from, to, v);
+        } else {
+            for (int i = from; i < to; i++)
+                off.put(i, v);
+        }
+    }
+
+    /**
+     * @return long bytes taken by the column, on the heap or off it
+     */
+    long bytes() {
+        return 4L * length;
+    }
+
+    boolean offHeap() {
+        return off != null;
+    }
+
+    /**
+     * Lets go of the ints, the column can't be used afterwards.
+     */
+    @Override
+    public void close() {
+        heap = null;
+        off = null;
+        if (scratch != null && scratch.delete())
+            scratch = null;
+    }
+
+    private IntBuffer allocate(int n) {
+        if (n > Integer.MAX_VALUE / 4)
+            throw new IllegalArgumentException("too many slots for a column off the heap: " + n);
+        if (!mode.startsWith(MAPPED))
+            return ByteBuffer.allocateDirect(4 * n).order(ByteOrder.nativeOrder()).asIntBuffer();
+        File dir = new File(mode.substring(MAPPED.length()));
+        try {
+            File f = File.createTempFile("column", ".ints", dir);
+            IntBuffer ints;
+            try (RandomAccessFile raf = new RandomAccessFile(f, "rw");
+                 FileChannel channel = raf.getChannel()) { // the mapping outlives the channel
+                ints = channel.map(FileChannel.MapMode.READ_WRITE, 0, 4L * n).order(ByteOrder.nativeOrder()).asIntBuffer();
+            }
+            if (scratch != null && scratch.delete()) // the file of the last mapping, after a grow
+                scratch = null;
+            if (!f.delete() && scratch == null) // on Windows a mapped file stays, until close
+                scratch = f;
+            return ints;
+        } catch (IOException e) {
+            throw new UncheckedIOException("could not map a column of " + n + " ints in: " + dir, e);
+        }
+    }
+}
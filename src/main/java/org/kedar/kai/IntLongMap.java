@@ -0,0 +1,137 @@
+package org.kedar.kai;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash map from non-negative ints to longs, in two primitive arrays: no entry objects and no
+ * boxing. Linear probing, with deletion by shifting the following entries back, so there are no tombstones and a
+ * lookup never walks past the end of its cluster. The table doubles when it gets 2/3 full.
+ *
+ * @author kedar
+ */
+final class IntLongMap {
+    private static final int FREE = -1;
+
+    private int[] keys;
+    private long[] values;
+    private int size;
+    private int mask;
+
+    IntLongMap() {
+        this(16);
+    }
+
+    /**
+     * @param expected int number of entries the map should hold without growing
+     */
+    IntLongMap(int expected) {
+        int n = Integer.highestOneBit(Math.max(4, expected * 3 / 2)) << 1;
+        keys = new int[n];
+        values = new long[n];
+        Arrays.fill(keys, FREE);
+        mask = n - 1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean containsKey(int key) {
+        return slot(key) >= 0;
+    }
+
+    /**
+     * @param key     int a non-negative key
+     * @param missing long what to return if the key is not there
+     * @return long the value of the key, or missing
+     */
+    long get(int key, long missing) {
+        int i = slot(key);
+        return i >= 0 ? values[i] : missing;
+    }
+
+    void put(int key, long value) {
+        int i = mix(key) & mask;
+        while (keys[i] != FREE) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size * 3 > keys.length * 2)
+            rehash(keys.length * 2);
+    }
+
+    /**
+     * @param key int a key
+     * @return boolean true if the key was there
+     */
+    boolean remove(int key) {
+        int i = slot(key);
+        if (i < 0)
+            return false;
+        size -= 1;
+        for (int j = (i + 1) & mask; keys[j] != FREE; j = (j + 1) & mask) {
+            int home = mix(keys[j]) & mask;
+            // move the entry at j into the hole at i, unless its home lies cyclically in (i, j]
+            if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+        }
+        keys[i] = FREE;
+        return true;
+    }
+
+    /**
+     * @return int[] the keys, in no particular order
+     */
+    int[] keyArray() {
+        int[] a = new int[size];
+        for (int i = 0, n = 0; i < keys.length; i++)
+            if (keys[i] != FREE)
+                a[n++] = keys[i];
+        return a;
+    }
+
+    void clear() {
+        Arrays.fill(keys, FREE);
+        size = 0;
+    }
+
+    /**
+     * @return long bytes taken by the table
+     */
+    long bytes() {
+        return 12L * keys.length;
+    }
+
+    private int slot(int key) {
+        for (int i = mix(key) & mask; keys[i] != FREE; i = (i + 1) & mask)
+            if (keys[i] == key)
+                return i;
+        return -1;
+    }
+
+    private void rehash(int n) {
+        int[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new int[n];
+        values = new long[n];
+        Arrays.fill(keys, FREE);
+        mask = n - 1;
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++)
+            if (oldKeys[i] != FREE)
+                put(oldKeys[i], oldValues[i]);
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9; // Fibonacci hashing, spreads consecutive ids over the table
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,448 @@
+package org.kedar.kai;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * A write-ahead journal of what changed the versions and the graph after a setup: infections, partial infections,
+ * links and unlinks, so that a crash or the next setup does not lose the rollout decisions. It is replayed on top of
+ * the graph that gets loaded, see {@link ComponentBuilder#attach(Journal)}. The records of an operation are committed
+ * before it changes anything, so the journal never lacks a change that was made.
+ * <p>
+ * The file is a header and fixed-size records, appended through a {@link FileChannel}. The records of an operation
+ * are collected in a direct buffer, which grows to hold them, and written when the operation is done, with one write
+ * and at most one fsync however many records it made (group commit: an <code>apply</code> or an
+ * <code>infect-batch</code> costs one fsync). Only an operation of more than {@link #MAX_PENDING} records, an
+ * <code>apply</code> of a delta with millions of edges, has its records written in several pieces of that many; they
+ * are still synced once, at the end, and go between a {@link #BEGIN} and an {@link #END} marker, so that the pieces
+ * of an operation that never finished are cut off when the journal is opened, as a torn record is. A write that fails
+ * takes the journal back to its last commit, nothing of the operation stays in it.
+ * When the fsync happens is up to <code>-Dkai.journal.sync</code>:
+ * </p>
+ * <ul>
+ * <li><code>always</code>, the default: on every commit, an operation is on disk when it returns.</li>
+ * <li>a number of milliseconds: at most that often. A commit syncs if the last fsync is that old, and a daemon thread
+ * syncs, that often, whatever the commits wrote since, so a quiet journal is not left unsynced until the next command:
+ * a crash loses at most about that long.</li>
+ * <li><code>never</code>: when the OS gets to it, a crash of the process loses nothing, a crash of the box may.</li>
+ * </ul>
+ * <pre>
+ *     magic   : int, "KAIJ"
+ *     format  : int, 1
+ *     id      : long, random, a new one on every reset, so a snapshot knows whose records it includes
+ *     records : 32 bytes each: type int, arg int, a long, b long, CRC32 of those 24 bytes int, 0 int
+ * </pre>
+ * Everything is little-endian. A record that was torn by a crash fails its checksum; it and what follows are cut off
+ * when the journal is opened. Replaying reads the records in big sequential chunks, a million of them in well under a
+ * second.
+ *
+ * @author kedar
+ */
+final class Journal implements Closeable {
+    static final int MAGIC = 0x4B41494A;
+    static final int FORMAT = 1;
+    static final int INFECT = 1;  // a: user id
+    static final int PARTIAL = 2; // a: user id, arg: limit, the selection is made again: older journals only
+    static final int LINK = 3;    // a: coach id, b: student id
+    static final int UNLINK = 4;  // a: coach id, b: student id
+    static final int USER = 5;    // a: user id, a user of its own
+    static final int SELECTED = 6; // a: user id, arg: number of users, b: their new version; the MEMBERS follow
+    static final int MEMBERS = 7;  // a, b: two of the users of a SELECTED, b is -1 if only one is left
+    static final int BEGIN = 8;    // the records up to the END are one operation, written in pieces
+    static final int END = 9;
+    static final int RECORD_BYTES = 32;
+    private static final int HEADER_BYTES = 16;
+    private static final int CHUNK_RECORDS = 1 << 15; // 1 MB read at a time by a replay
+    private static final int PENDING_RECORDS = 1024;  // what the buffer of an operation starts with
+    static final int MAX_PENDING = 1 << 21;           // and grows up to, 64 MB
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final long syncMillis; // 0: on every commit, -1: never
+    private final int maxPending;
+    private ByteBuffer pending; // the records of the operation in progress
+    private final ByteBuffer marker = pending(1);
+    private final CRC32 crc = new CRC32();
+    private long id;
+    private long records;   // on file, written or not yet synced
+    private long committed; // on file when the operation in progress started
+    private boolean spilled; // the operation in progress wrote pieces already, after a BEGIN
+    private boolean stale;   // a rollback could not cut the file, the next write does
+    private long lastSync;
+    private long syncs;    // fsyncs done, a commit that finds nothing to sync does not count
+    private boolean unsynced; // records were written since the last fsync
+    private final ScheduledExecutorService flusher; // null unless the policy is a number of milliseconds
+
+    /**
+     * The process-wide journal, opened from <code>-Dkai.journal=file</code>, null if there is none.
+     */
+    private static Journal journal;
+
+    static synchronized Journal get() throws IOException {
+        String path = System.getProperty("kai.journal");
+        if (journal == null && path != null)
+            journal = new Journal(new File(path), System.getProperty("kai.journal.sync", "always"));
+        return journal;
+    }
+
+    /**
+     * Opens the given journal, or starts it if the file does not exist or is empty.
+     *
+     * @param file File the journal
+     * @param sync String always, never or a number of milliseconds, see above
+     * @throws IOException if the file can't be opened or is not a journal
+     */
+    Journal(File file, String sync) throws IOException {
+        this(file, sync, MAX_PENDING);
+    }
+
+    /**
+     * @param maxPending int number of records an operation is written in pieces of, past that many
+     */
+    Journal(File file, String sync, int maxPending) throws IOException {
+        this.maxPending = maxPending;
+        this.pending = pending(Math.min(PENDING_RECORDS, maxPending));
+        this.syncMillis = "always".equals(sync) ? 0 : "never".equals(sync) ? -1 : parseMillis(sync);
+        this.file = file;
+        this.raf = new RandomAccessFile(file, "rw");
+        this.channel = raf.getChannel();
+        try {
+            if (channel.size() == 0) {
+                start();
+            } else {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                read(header, 0);
+                if (header.getInt(0) != MAGIC || header.getInt(4) != FORMAT)
+                    throw new IOException("not a journal: " + file);
+                id = header.getLong(8);
+                records = validRecords();
+                committed = records;
+                channel.truncate(HEADER_BYTES + records * RECORD_BYTES); // a torn tail or an unfinished operation goes
+            }
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        lastSync = System.currentTimeMillis();
+        flusher = syncMillis > 0 ? flusher() : null;
+    }
+
+    long id() {
+        return id;
+    }
+
+    /**
+     * @return long number of records, including the ones not committed yet
+     */
+    long records() {
+        return records + pending.position() / RECORD_BYTES;
+    }
+
+    synchronized long syncs() {
+        return syncs;
+    }
+
+    File file() {
+        return file;
+    }
+
+    /**
+     * Adds a record, it is written by the next {@link #commit()}. If the operation outgrows the buffer, what it has
+     * so far is written, after a {@link #BEGIN} marker the first time.
+     *
+     * @throws IOException if a piece could not be written, the journal is back to its last commit then
+     */
+    void append(int type, int arg, long a, long b) throws IOException {
+        if (pending.remaining() < RECORD_BYTES) {
+            if (pending.capacity() < RECORD_BYTES * maxPending) {
+                ByteBuffer bigger = pending(Math.min(2 * pending.capacity() / RECORD_BYTES, maxPending));
+                pending.flip();
+                pending = bigger.put(pending);
+            } else {
+                try {
+                    if (!spilled) {
+                        marker.clear();
+                        put(marker, BEGIN, 0, 0, 0);
+                        write(marker);
+                        spilled = true;
+                    }
+                    write(pending);
+                } catch (IOException e) {
+                    rollback();
+                    throw e;
+                }
+            }
+        }
+        put(pending, type, arg, a, b);
+    }
+
+    /**
+     * Writes the records appended since the last commit, followed by an {@link #END} marker if the operation was
+     * written in pieces, and syncs them if the policy says so.
+     *
+     * @throws IOException if they could not be written, the journal is back to its last commit then
+     */
+    synchronized void commit() throws IOException {
+        boolean wrote = pending.position() > 0 || spilled;
+        try {
+            if (spilled) {
+                if (pending.remaining() < RECORD_BYTES)
+                    write(pending);
+                put(pending, END, 0, 0, 0);
+            }
+            write(pending);
+        } catch (IOException e) {
+            rollback();
+            throw e;
+        }
+        spilled = false;
+        committed = records;
+        if (pending.capacity() > RECORD_BYTES * PENDING_RECORDS) // a big operation does not keep its buffer
+            pending = pending(Math.min(PENDING_RECORDS, maxPending));
+        unsynced |= wrote;
+        long now = System.currentTimeMillis();
+        if (syncMillis == 0 || (syncMillis > 0 && now - lastSync >= syncMillis))
+            sync(now);
+    }
+
+    /**
+     * Empties the journal and gives it a new id, for when the graph it applies to is gone.
+     */
+    synchronized void reset() throws IOException {
+        pending.clear();
+        spilled = false;
+        stale = false;
+        channel.truncate(0);
+        start();
+        unsynced = false;
+    }
+
+    /**
+     * Receives the records of a replay.
+     */
+    interface Target {
+        void apply(int type, int arg, long a, long b);
+    }
+
+    /**
+     * Reads the records from the given one on, in chunks, and hands them to the target, in order. The
+     * {@link #BEGIN} and {@link #END} markers are not handed over, nor counted.
+     *
+     * @param from   long number of the first record to replay
+     * @param target Target that applies them
+     * @return long number of records replayed
+     */
+    long replay(long from, Target target) throws IOException {
+        commit();
+        ByteBuffer chunk = ByteBuffer.allocateDirect(RECORD_BYTES * CHUNK_RECORDS).order(ByteOrder.LITTLE_ENDIAN);
+        long done = 0;
+        for (long r = Math.max(0, from); r < records; ) {
+            int n = (int) Math.min(CHUNK_RECORDS, records - r);
+            chunk.clear();
+            chunk.limit(n * RECORD_BYTES);
+            read(chunk, HEADER_BYTES + r * RECORD_BYTES);
+            for (int i = 0; i < n; i++) {
+                int at = i * RECORD_BYTES, type = chunk.getInt(at);
+                if (type == BEGIN || type == END)
+                    continue;
+                target.apply(type, chunk.getInt(at + 4), chunk.getLong(at + 8), chunk.getLong(at + 16));
+                done += 1;
+            }
+            r += n;
+        }
+        return done;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (flusher != null)
+            flusher.shutdownNow();
+        try {
+            commit();
+            channel.force(false);
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Journal: " + file + ", id: " + Long.toHexString(id) + ", " + records() + " record(s), "
+                + (HEADER_BYTES + records() * RECORD_BYTES) + " bytes, fsync: "
+                + (syncMillis == 0 ? "always" : syncMillis < 0 ? "never" : "every " + syncMillis + " ms")
+                + ", " + syncs() + " fsync(s) so far";
+    }
+
+    private void start() throws IOException {
+        id = new Random().nextLong();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(FORMAT).putLong(id);
+        header.flip();
+        while (header.hasRemaining())
+            channel.write(header, HEADER_BYTES - header.remaining());
+        channel.force(true);
+        records = 0;
+        committed = 0;
+    }
+
+    /**
+     * Forces what was written since the last fsync to disk, if anything was.
+     */
+    private synchronized void sync(long now) throws IOException {
+        if (!unsynced)
+            return;
+        channel.force(false);
+        unsynced = false;
+        lastSync = now;
+        syncs += 1;
+    }
+
+    private ScheduledExecutorService flusher() {
+        ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "kai-journal-sync");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sync(System.currentTimeMillis());
+                } catch (IOException e) {
+                    // still unsynced, the next commit or the next run tries again
+                }
+            }
+        }, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+        return flusher;
+    }
+
+    private void write(ByteBuffer buf) throws IOException {
+        buf.flip();
+        long pos = HEADER_BYTES + records * RECORD_BYTES;
+        if (stale) {
+            channel.truncate(pos);
+            stale = false;
+        }
+        int n = buf.remaining() / RECORD_BYTES;
+        while (buf.hasRemaining())
+            pos += channel.write(buf, pos);
+        records += n;
+        buf.clear();
+    }
+
+    /**
+     * Takes the journal back to its last commit, for an operation whose records could not all be written: none of
+     * them stay in it.
+     */
+    private void rollback() {
+        pending.clear();
+        spilled = false;
+        records = committed;
+        try {
+            channel.truncate(HEADER_BYTES + committed * RECORD_BYTES);
+        } catch (IOException e) {
+            stale = true; // what is past the last commit is cut before anything else is written, or when opened
+        }
+    }
+
+    private void put(ByteBuffer buf, int type, int arg, long a, long b) {
+        int at = buf.position();
+        buf.putInt(type).putInt(arg).putLong(a).putLong(b);
+        buf.putInt(checksum(buf, at)).putInt(0);
+    }
+
+    private static ByteBuffer pending(int records) {
+        return ByteBuffer.allocateDirect(RECORD_BYTES * records).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * @return long number of whole records from the start that pass their checksums, up to the last finished
+     * operation: a {@link #BEGIN} without its {@link #END}, or a {@link #SELECTED} without all of its
+     * {@link #MEMBERS}, does not count
+     */
+    private long validRecords() throws IOException {
+        long whole = (channel.size() - HEADER_BYTES) / RECORD_BYTES;
+        ByteBuffer chunk = ByteBuffer.allocateDirect(RECORD_BYTES * CHUNK_RECORDS).order(ByteOrder.LITTLE_ENDIAN);
+        long open = -1;        // the first record of an operation that is not finished yet
+        boolean begun = false; // it started with a BEGIN
+        long members = 0;      // the MEMBERS records the last SELECTED still lacks
+        for (long r = 0; r < whole; ) {
+            int n = (int) Math.min(CHUNK_RECORDS, whole - r);
+            chunk.clear();
+            chunk.limit(n * RECORD_BYTES);
+            read(chunk, HEADER_BYTES + r * RECORD_BYTES);
+            for (int i = 0; i < n; i++) {
+                int at = i * RECORD_BYTES;
+                if (chunk.getInt(at + 24) != checksum(chunk, at))
+                    return open >= 0 ? open : r + i;
+                switch (chunk.getInt(at)) {
+                    case BEGIN:
+                        open = r + i;
+                        begun = true;
+                        break;
+                    case END:
+                        open = -1;
+                        begun = false;
+                        break;
+                    case SELECTED:
+                        members = (chunk.getInt(at + 4) + 1) / 2;
+                        if (!begun)
+                            open = members > 0 ? r + i : -1;
+                        break;
+                    case MEMBERS:
+                        if (--members == 0 && !begun)
+                            open = -1;
+                        break;
+                }
+            }
+            r += n;
+        }
+        return open >= 0 ? open : whole;
+    }
+
+    private int checksum(ByteBuffer buf, int at) {
+        int position = buf.position(), limit = buf.limit();
+        buf.limit(at + 24);
+        buf.position(at);
+        crc.reset();
+        crc.update(buf);
+        buf.limit(limit);
+        buf.position(position);
+        return (int) crc.getValue();
+    }
+
+    private void read(ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, pos);
+            if (n < 0)
+                throw new IOException("truncated journal: " + file);
+            pos += n;
+        }
+    }
+
+    private static long parseMillis(String sync) {
+        try {
+            long ms = Long.parseLong(sync);
+            if (ms > 0)
+                return ms;
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("invalid journal sync policy: " + sync + ", it should be always, never or milliseconds");
+    }
+}
@@ -0,0 +1,69 @@
+package org.kedar.kai;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A latency histogram with a bucket per power of two of nanoseconds: bucket b counts the latencies in
+ * [2^b, 2^(b+1)). The buckets are allocated up front and recording is two adds and an increment, without a lock
+ * or an allocation, so it can sit on a hot path. The percentiles are as good as the buckets, i.e. within a factor
+ * of 2, which is what is needed to spot a regression.
+ *
+ * @author kedar
+ */
+final class LatencyHistogram {
+    private final AtomicLongArray buckets = new AtomicLongArray(64);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    void record(long nanos) {
+        if (nanos < 1)
+            nanos = 1;
+        buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(nanos));
+        count.increment();
+        sum.add(nanos);
+    }
+
+    long count() {
+        return count.sum();
+    }
+
+    long meanNanos() {
+        long n = count.sum();
+        return n == 0 ? 0 : sum.sum() / n;
+    }
+
+    /**
+     * @param p double a fraction, e.g. 0.99
+     * @return long the upper bound of the bucket the p-th latency falls in, 0 if nothing was recorded
+     */
+    long percentileNanos(double p) {
+        long n = 0;
+        for (int b = 0; b < 64; b++)
+            n += buckets.get(b);
+        long rank = (long) Math.ceil(p * n), seen = 0;
+        for (int b = 0; b < 64 && n > 0; b++) {
+            seen += buckets.get(b);
+            if (seen >= rank)
+                return b == 63 ? Long.MAX_VALUE : 1L << (b + 1);
+        }
+        return 0;
+    }
+
+    void reset() {
+        for (int b = 0; b < 64; b++)
+            buckets.set(b, 0);
+        count.reset();
+        sum.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "n=" + count() + " mean=" + micros(meanNanos()) + " p50<" + micros(percentileNanos(0.5))
+                + " p99<" + micros(percentileNanos(0.99)) + " max<" + micros(percentileNanos(1));
+    }
+
+    private static String micros(long nanos) {
+        return nanos == Long.MAX_VALUE ? "inf" : String.format("%.1fus", nanos / 1000.0);
+    }
+}
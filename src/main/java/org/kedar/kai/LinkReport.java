@@ -0,0 +1,60 @@
+package org.kedar.kai;
+
+import java.util.Arrays;
+
+/**
+ * What linking a batch of coach/student edges into an already built graph did, see
+ * {@link ComponentBuilder#link(long, long, LinkReport)}. Merging two components that are on different versions is a
+ * conflict: the users keep the versions they had, so the merged component is on mixed versions until it is infected
+ * again. Every conflict is recorded as the ids of the two roots and their versions, in a packed long array.
+ *
+ * @author kedar
+ */
+final class LinkReport {
+    private static final int SHOWN = 10; // conflicts spelled out by toString
+
+    int edges;    // edges asked for
+    int added;    // edges that were not there already
+    int newUsers;
+    int merges;
+    long nanos;
+    private long[] conflicts = new long[0]; // root, version, other root, other version ...
+    private int nconflicts;
+
+    void conflict(long root, int version, long otherRoot, int otherVersion) {
+        if (4 * nconflicts + 4 > conflicts.length)
+            conflicts = Arrays.copyOf(conflicts, Math.max(16, conflicts.length * 2));
+        int at = 4 * nconflicts++;
+        conflicts[at] = root;
+        conflicts[at + 1] = version;
+        conflicts[at + 2] = otherRoot;
+        conflicts[at + 3] = otherVersion;
+    }
+
+    int conflicts() {
+        return nconflicts;
+    }
+
+    /**
+     * @param i    int 0 up to {@link #conflicts()}
+     * @param what int 0: root, 1: its version, 2: the other root, 3: its version
+     */
+    long conflict(int i, int what) {
+        return conflicts[4 * i + what];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Linked ").append(edges).append(" edge(s), ").append(added).append(" new, ")
+                .append(newUsers).append(" new user(s), ").append(merges).append(" merge(s), ")
+                .append(nconflicts).append(" version conflict(s) in ").append(nanos / 1000).append(" us");
+        for (int i = 0; i < Math.min(SHOWN, nconflicts); i++) {
+            sb.append(String.format("%n  group %d (version %d) merged with group %d (version %d)",
+                    conflict(i, 0), conflict(i, 1), conflict(i, 2), conflict(i, 3)));
+        }
+        if (nconflicts > SHOWN)
+            sb.append(String.format("%n  ... and %d more", nconflicts - SHOWN));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,95 @@
+package org.kedar.kai;
+
+import java.util.Arrays;
+
+/**
+ * An open-addressing hash map from longs to non-negative ints, in two primitive arrays: no entry objects and no
+ * boxing. This is what maps sparse 64-bit user ids to the dense slots the rest of the code works on. Any long is a
+ * valid key; a free entry is told apart by its value, which is never negative for an entry in use. Linear probing,
+ * the table doubles when it gets 2/3 full. There is no removal, a user never goes away.
+ *
+ * @author kedar
+ */
+final class LongIntMap {
+    private static final int FREE = -1;
+
+    private long[] keys;
+    private int[] values;
+    private int size;
+    private int mask;
+
+    LongIntMap() {
+        this(16);
+    }
+
+    /**
+     * @param expected int number of entries the map should hold without growing
+     */
+    LongIntMap(int expected) {
+        int n = Integer.highestOneBit(Math.max(4, expected * 3 / 2)) << 1;
+        keys = new long[n];
+        values = new int[n];
+        Arrays.fill(values, FREE);
+        mask = n - 1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @param key     long a key
+     * @param missing int what to return if the key is not there
+     * @return int the value of the key, or missing
+     */
+    int get(long key, int missing) {
+        for (int i = mix(key) & mask; values[i] != FREE; i = (i + 1) & mask)
+            if (keys[i] == key)
+                return values[i];
+        return missing;
+    }
+
+    /**
+     * @param key   long a key
+     * @param value int a non-negative value
+     */
+    void put(long key, int value) {
+        int i = mix(key) & mask;
+        while (values[i] != FREE) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size * 3 > keys.length * 2)
+            rehash(keys.length * 2);
+    }
+
+    /**
+     * @return long bytes taken by the table
+     */
+    long bytes() {
+        return 12L * keys.length;
+    }
+
+    private void rehash(int n) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new long[n];
+        values = new int[n];
+        Arrays.fill(values, FREE);
+        mask = n - 1;
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++)
+            if (oldValues[i] != FREE)
+                put(oldKeys[i], oldValues[i]);
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L; // Fibonacci hashing, the high bits depend on all the bits of the key
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,180 @@
+package org.kedar.kai;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The counters of the process: what the setups parsed, the unions and the merge work, what the limit~/limit=
+ * tables took, and a {@link LatencyHistogram} per command. They are shown by the shell's <code>stats</code> command
+ * and over JMX, see {@link MetricsMBean}.
+ * <p>
+ * Nothing is recorded per line or per edge: a setup counts in plain local fields and adds them up here once, and
+ * the other events are coarse (a merge, a table, a command), so the counters cost nothing on the hot paths. They are
+ * {@link LongAdder}s, so that the threads of the {@link ParallelLoader} and the {@link QueryServer} do not contend.
+ * </p>
+ *
+ * @author kedar
+ */
+final class Metrics implements MetricsMBean {
+    static final String NAME = "org.kedar.kai:type=Metrics";
+    private static final Metrics GLOBAL = register(new Metrics());
+
+    private final LongAdder lines = new LongAdder();
+    private final LongAdder edges = new LongAdder();
+    private final LongAdder unions = new LongAdder();
+    private final LongAdder relabeled = new LongAdder();
+    private final LongAdder tables = new LongAdder();
+    private volatile long lastSetupNanos;
+    private volatile long lastSetupLines;
+    private volatile long lastTableBytes;
+    private volatile long lastTableNanos;
+    private final Map<String, LatencyHistogram> commands = new ConcurrentHashMap<>();
+
+    static Metrics get() {
+        return GLOBAL;
+    }
+
+    /**
+     * Records a setup.
+     *
+     * @param lines  long lines parsed
+     * @param edges  long coach/student pairs parsed
+     * @param unions long unions that merged two components
+     * @param nanos  long how long it took
+     */
+    void setup(long lines, long edges, long unions, long nanos) {
+        this.lines.add(lines);
+        this.edges.add(edges);
+        this.unions.add(unions);
+        lastSetupLines = lines;
+        lastSetupNanos = nanos;
+    }
+
+    void unions(long n) {
+        unions.add(n);
+    }
+
+    /**
+     * @param n long users whose component or version bookkeeping was rewritten by a merge or a split
+     */
+    void relabeled(long n) {
+        relabeled.add(n);
+    }
+
+    void table(long bytes, long nanos) {
+        tables.increment();
+        lastTableBytes = bytes;
+        lastTableNanos = nanos;
+    }
+
+    /**
+     * @param command String the name of a command
+     * @param nanos   long how long it took
+     */
+    void command(String command, long nanos) {
+        commands.computeIfAbsent(command, k -> new LatencyHistogram()).record(nanos);
+    }
+
+    @Override
+    public long getLinesParsed() {
+        return lines.sum();
+    }
+
+    @Override
+    public long getEdgesParsed() {
+        return edges.sum();
+    }
+
+    @Override
+    public long getUnions() {
+        return unions.sum();
+    }
+
+    @Override
+    public long getUsersRelabeled() {
+        return relabeled.sum();
+    }
+
+    @Override
+    public long getLastSetupMillis() {
+        return lastSetupNanos / 1000000;
+    }
+
+    @Override
+    public long getLastSetupLinesPerSecond() {
+        long nanos = lastSetupNanos;
+        return nanos == 0 ? 0 : (long) (lastSetupLines * 1e9 / nanos);
+    }
+
+    @Override
+    public long getLimitTables() {
+        return tables.sum();
+    }
+
+    @Override
+    public long getLastLimitTableBytes() {
+        return lastTableBytes;
+    }
+
+    @Override
+    public long getLastLimitTableMillis() {
+        return lastTableNanos / 1000000;
+    }
+
+    /**
+     * @return Map the histogram of each command that ran, by name
+     */
+    Map<String, LatencyHistogram> latencies() {
+        return new TreeMap<>(commands);
+    }
+
+    @Override
+    public String[] getCommandLatencies() {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, LatencyHistogram> e : latencies().entrySet())
+            lines.add(e.getKey() + ": " + e.getValue());
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    @Override
+    public void reset() {
+        lines.reset();
+        edges.reset();
+        unions.reset();
+        relabeled.reset();
+        tables.reset();
+        lastSetupNanos = lastSetupLines = lastTableBytes = lastTableNanos = 0;
+        for (LatencyHistogram h : commands.values())
+            h.reset();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Lines parsed: ").append(getLinesParsed()).append(", edges: ").append(getEdgesParsed())
+                .append(", unions: ").append(getUnions()).append(", users relabeled: ").append(getUsersRelabeled()).append('\n');
+        sb.append("Last setup: ").append(getLastSetupMillis()).append(" ms, ")
+                .append(getLastSetupLinesPerSecond()).append(" lines/s\n");
+        sb.append("Limit tables built: ").append(getLimitTables()).append(", the last one took ")
+                .append(getLastLimitTableMillis()).append(" ms and ").append(getLastLimitTableBytes()).append(" bytes\n");
+        for (String line : getCommandLatencies())
+            sb.append(line).append('\n');
+        return sb.toString();
+    }
+
+    private static Metrics register(Metrics metrics) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, new ObjectName(NAME));
+        } catch (JMException | SecurityException e) {
+            // no JMX then, the stats command still works
+        }
+        return metrics;
+    }
+}
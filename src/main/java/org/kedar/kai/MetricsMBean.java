@@ -0,0 +1,33 @@
+package org.kedar.kai;
+
+/**
+ * What {@link Metrics} shows over JMX, as <code>org.kedar.kai:type=Metrics</code>.
+ *
+ * @author kedar
+ */
+public interface MetricsMBean {
+    long getLinesParsed();
+
+    long getEdgesParsed();
+
+    long getUnions();
+
+    long getUsersRelabeled();
+
+    long getLastSetupMillis();
+
+    long getLastSetupLinesPerSecond();
+
+    long getLimitTables();
+
+    long getLastLimitTableBytes();
+
+    long getLastLimitTableMillis();
+
+    /**
+     * @return String[] one line per command: its name, the number of calls and the latency percentiles
+     */
+    String[] getCommandLatencies();
+
+    void reset();
+}
@@ -0,0 +1,237 @@
+package org.kedar.kai;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Loads a graph.conf on several cores. The part of the file after the header line is cut into byte ranges that
+ * start and end at line boundaries, and a pool of workers scans them with a {@link GraphScanner} each, doing the
+ * unions on a shared, lock-free {@link ConcurrentUnionFind}. Each range collects its own edges, which are laid out
+ * together at the end. Union is commutative and associative, so the order in
+ * which the workers get to the lines does not matter: the components are exactly the ones a sequential
+ * {@link ComponentBuilder#process(File)} forms.
+ * <p>
+ * The only wrinkle is the <code>#</code> line that ends the graph: a worker can't know whether a line it is
+ * about to union comes after such a line in an earlier range. So there are two parallel passes: the first one
+ * only looks for the first line that starts with a <code>#</code>, the second one parses everything before it.
+ * The first pass is a plain byte scan and costs a fraction of the second.
+ * </p>
+ *
+ * @author kedar
+ */
+final class ParallelLoader {
+    private static final long MAX_CHUNK = 256L << 20; // stays well below what one mapping can cover
+    private static final long MIN_CHUNK = 1L << 20;
+
+    private final int threads;
+    private final long chunkBytes; // 0 to derive it from the file size
+    private final LongAdder lines = new LongAdder(); // what the last load parsed, added up once per range
+    private final LongAdder edges = new LongAdder();
+
+    ParallelLoader(int threads) {
+        this(threads, 0);
+    }
+
+    ParallelLoader(int threads, long chunkBytes) {
+        if (threads < 1)
+            throw new IllegalArgumentException("need at least one thread, not: " + threads);
+        this.threads = threads;
+        this.chunkBytes = chunkBytes;
+    }
+
+    /**
+     * Loads the given file into the given builder, replacing what it had.
+     *
+     * @param file    File the graph.conf file
+     * @param builder ComponentBuilder that adopts the components
+     * @throws IOException if the file can't be read or is malformed
+     */
+    void load(File file, ComponentBuilder builder) throws IOException {
+        lines.reset();
+        edges.reset();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             final FileChannel channel = raf.getChannel()) {
+            long length = channel.size();
+            long[] header = readHeader(channel, length); // {vertices, offset of the first line after the header}
+            final ConcurrentUnionFind cuf = new ConcurrentUnionFind((int) header[0] + 1);
+            long[] bounds = split(channel, header[1], length);
+            long end = firstHashLine(pool, channel, bounds);
+            List<Callable<Void>> parsers = new ArrayList<>();
+            List<Adjacency.Builder> edges = new ArrayList<>();
+            for (int c = 0; c + 1 < bounds.length && bounds[c] < end; c++) {
+                final long from = bounds[c], to = Math.min(bounds[c + 1], end);
+                final Adjacency.Builder collected = builder.keepsEdges() ? new Adjacency.Builder() : null;
+                if (collected != null)
+                    edges.add(collected);
+                parsers.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        parse(channel, from, to, cuf, collected);
+                        return null;
+                    }
+                });
+            }
+            for (Future<Void> f : pool.invokeAll(parsers))
+                f.get();
+            builder.adopt(cuf, edges);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while loading: " + file, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException("failed to load: " + file, e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    long lines() {
+        return lines.sum();
+    }
+
+    long edges() {
+        return edges.sum();
+    }
+
+    private void parse(FileChannel channel, long from, long to, final ConcurrentUnionFind cuf,
+                       final Adjacency.Builder collected) throws IOException {
+        final long[] counts = new long[2]; // lines, edges of this range
+        GraphScanner scanner = new GraphScanner(new GraphScanner.Sink() {
+            @Override
+            public void header(int vertices) {
+                throw new AssertionError("a chunk has no header");
+            }
+
+            @Override
+            public void line(int uid, int[] sids, int count) {
+                counts[0] += 1;
+                counts[1] += count;
+                cuf.add(uid);
+                for (int i = 0; i < count; i++) {
+                    cuf.add(sids[i]);
+                    cuf.union(uid, sids[i]);
+                    if (collected != null)
+                        collected.add(uid, sids[i]);
+                }
+            }
+        }, false);
+        scanner.feed(channel.map(FileChannel.MapMode.READ_ONLY, from, to - from));
+        scanner.finish();
+        lines.add(counts[0]);
+        edges.add(counts[1]);
+    }
+
+    /**
+     * Cuts [start, length) into ranges that begin right after a new line.
+     *
+     * @return long[] the boundaries, the first one is start and the last one is length
+     */
+    private long[] split(FileChannel channel, long start, long length) throws IOException {
+        long chunk = chunkBytes > 0 ? chunkBytes : Math.max(MIN_CHUNK, Math.min(MAX_CHUNK, (length - start) / (threads * 4L)));
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(start);
+        long b = start;
+        while (true) {
+            b = nextLineStart(channel, b + chunk, length);
+            if (b >= length)
+                break;
+            bounds.add(b);
+        }
+        bounds.add(length);
+        long[] a = new long[bounds.size()];
+        for (int i = 0; i < a.length; i++)
+            a[i] = bounds.get(i);
+        return a;
+    }
+
+    /**
+     * @return long the offset of the first line that starts at or after pos, or length if there is none
+     */
+    static long nextLineStart(FileChannel channel, long pos, long length) throws IOException {
+        if (pos >= length)
+            return length;
+        while (pos < length) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, pos - 1, Math.min(MIN_CHUNK, length - pos + 1));
+            for (int i = 0; i < buf.limit(); i++) {
+                if (buf.get(i) == '\n')
+                    return pos + i;
+            }
+            pos += buf.limit() - 1;
+        }
+        return length;
+    }
+
+    /**
+     * The first pass: finds the earliest line that starts with a # in parallel.
+     *
+     * @return long its offset, or the offset of the end of the last range if there is none
+     */
+    static long firstHashLine(ExecutorService pool, final FileChannel channel, long[] bounds)
+            throws InterruptedException, ExecutionException {
+        List<Callable<Long>> scanners = new ArrayList<>();
+        for (int c = 0; c + 1 < bounds.length; c++) {
+            final long from = bounds[c], to = bounds[c + 1];
+            scanners.add(new Callable<Long>() {
+                @Override
+                public Long call() throws IOException {
+                    MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+                    boolean atLineStart = true;
+                    for (int i = 0; i < buf.limit(); i++) {
+                        byte b = buf.get(i);
+                        if (b == '#' && atLineStart)
+                            return from + i;
+                        atLineStart = b == '\n';
+                    }
+                    return -1L;
+                }
+            });
+        }
+        for (Future<Long> f : pool.invokeAll(scanners)) // in file order, so the first hit is the earliest
+            if (f.get() >= 0)
+                return f.get();
+        return bounds[bounds.length - 1];
+    }
+
+    /**
+     * Reads the header line with a sequential scanner.
+     *
+     * @return long[] the number of vertices and the offset where the lines after the header begin
+     */
+    static long[] readHeader(FileChannel channel, long length) throws IOException {
+        final long[] header = new long[2];
+        header[0] = -1;
+        GraphScanner scanner = new GraphScanner(new GraphScanner.Sink() {
+            @Override
+            public void header(int vertices) {
+                header[0] = vertices;
+            }
+
+            @Override
+            public void line(int uid, int[] sids, int count) {
+                throw new AssertionError("only the header is scanned here");
+            }
+        });
+        long pos = 0;
+        while (header[0] < 0 && pos < length) {
+            long next = nextLineStart(channel, pos + 1, length);
+            scanner.feed(channel.map(FileChannel.MapMode.READ_ONLY, pos, next - pos));
+            pos = next;
+        }
+        scanner.finish();
+        header[1] = pos;
+        return header;
+    }
+}
@@ -0,0 +1,189 @@
+package org.kedar.kai;
+
+import java.util.Arrays;
+
+/**
+ * Picks exactly N users of a component around a starting user, for when even the smallest whole component is
+ * bigger than the limit. The selection grows breadth-first over the coach/student edges of an {@link Adjacency}
+ * store, a classroom -- a coach and all the students of the coach -- at a time, so that as few coach/student pairs
+ * as possible end up on different versions:
+ * <ol>
+ * <li>For every selected user, its own classroom and the classrooms it is a student in are tried, once each. A
+ * classroom that fits in what is left of the limit is selected whole, one that does not is deferred.</li>
+ * <li>When nothing else fits, the deferred classrooms are filled one member at a time, in the order they were
+ * deferred, until the limit is reached.</li>
+ * <li>If the limit is still not reached, a plain breadth-first pass over the selection takes single users.</li>
+ * </ol>
+ * The selection is either the limit or the whole component, whichever is smaller.
+ * <p>
+ * An instance is meant to be reused: the visited bitmaps, the queue and the other lists are allocated once for the
+ * whole graph, and a run only clears the bits it set. So repeated runs, even on a 10M-user component, do not
+ * allocate anything.
+ * </p>
+ *
+ * @author kedar
+ */
+final class PartialInfection {
+    private final Adjacency edges;
+    private final long[] selected; // bitmap of the selected users
+    private final long[] tried;    // bitmap of the coaches whose classroom was tried
+    private int[] queue;           // the selected users, in the order they were selected
+    private int count;
+    private int[] coaches;         // the coaches whose classroom was tried, deferred or not
+    private int ncoaches;
+    private int[] deferred;        // the coaches whose classroom did not fit
+    private int ndeferred;
+    private int limit;
+
+    PartialInfection(Adjacency edges) {
+        this.edges = edges;
+        int capacity = edges.capacity();
+        this.selected = new long[(capacity >>> 6) + 1];
+        this.tried = new long[(capacity >>> 6) + 1];
+        this.queue = new int[16];
+        this.coaches = new int[16];
+        this.deferred = new int[16];
+    }
+
+    /**
+     * Selects up to limit users around the given one. The selection stays valid until the next run.
+     *
+     * @param start int a user
+     * @param limit int the number of users to select
+     * @return int the number of users selected
+     */
+    int run(int start, int limit) {
+        clear();
+        this.limit = limit;
+        if (limit <= 0)
+            return 0;
+        select(start);
+        for (int head = 0; head < count && count < limit; head++) {
+            int u = queue[head];
+            classroom(u);
+            for (int e = edges.firstIn(u); e != Adjacency.END && count < limit; e = edges.nextIn(u, e))
+                classroom(edges.target(e));
+        }
+        for (int d = 0; d < ndeferred && count < limit; d++) {
+            int c = deferred[d];
+            select(c);
+            for (int e = edges.firstOut(c); e != Adjacency.END && count < limit; e = edges.nextOut(c, e))
+                select(edges.target(e));
+        }
+        for (int head = 0; head < count && count < limit; head++) {
+            int u = queue[head];
+            for (int e = edges.firstOut(u); e != Adjacency.END && count < limit; e = edges.nextOut(u, e))
+                select(edges.target(e));
+            for (int e = edges.firstIn(u); e != Adjacency.END && count < limit; e = edges.nextIn(u, e))
+                select(edges.target(e));
+        }
+        return count;
+    }
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * @param i int 0 up to {@link #size()}
+     * @return int the i-th selected user
+     */
+    int member(int i) {
+        return queue[i];
+    }
+
+    /**
+     * Drops the selected users the filter does not keep, the others keep their order.
+     *
+     * @param filter Filter which users stay selected
+     * @return int the number of users still selected
+     */
+    int retain(Filter filter) {
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            int u = queue[i];
+            if (filter.keep(u))
+                queue[n++] = u;
+            else
+                selected[u >>> 6] &= ~(1L << u);
+        }
+        count = n;
+        return n;
+    }
+
+    /**
+     * Decides which selected users stay selected, see {@link #retain(Filter)}.
+     */
+    interface Filter {
+        boolean keep(int u);
+    }
+
+    boolean isSelected(int u) {
+        return (selected[u >>> 6] & (1L << u)) != 0;
+    }
+
+    /**
+     * @return long the number of coach/student pairs the selection splits, i.e. edges with one end selected
+     */
+    long cutEdges() {
+        long cut = 0;
+        for (int i = 0; i < count; i++) {
+            int u = queue[i];
+            for (int e = edges.firstOut(u); e != Adjacency.END; e = edges.nextOut(u, e))
+                if (!isSelected(edges.target(e)))
+                    cut += 1;
+            for (int e = edges.firstIn(u); e != Adjacency.END; e = edges.nextIn(u, e))
+                if (!isSelected(edges.target(e)))
+                    cut += 1;
+        }
+        return cut;
+    }
+
+    /**
+     * Selects the classroom of the given coach whole if it fits, defers it otherwise. Each classroom is tried once.
+     */
+    private void classroom(int c) {
+        if ((tried[c >>> 6] & (1L << c)) != 0)
+            return;
+        tried[c >>> 6] |= 1L << c;
+        coaches = push(coaches, ncoaches++, c);
+        int missing = isSelected(c) ? 0 : 1;
+        for (int e = edges.firstOut(c); e != Adjacency.END; e = edges.nextOut(c, e))
+            if (!isSelected(edges.target(e)))
+                missing += 1;
+        if (missing > limit - count) {
+            deferred = push(deferred, ndeferred++, c);
+            return;
+        }
+        select(c);
+        for (int e = edges.firstOut(c); e != Adjacency.END; e = edges.nextOut(c, e))
+            select(edges.target(e));
+    }
+
+    private void select(int u) {
+        if (isSelected(u))
+            return;
+        selected[u >>> 6] |= 1L << u;
+        queue = push(queue, count++, u);
+    }
+
+    /**
+     * Clears only the bits the last run set.
+     */
+    private void clear() {
+        for (int i = 0; i < count; i++)
+            selected[queue[i] >>> 6] = 0;
+        for (int i = 0; i < ncoaches; i++)
+            tried[coaches[i] >>> 6] = 0;
+        count = 0;
+        ncoaches = 0;
+        ndeferred = 0;
+    }
+
+    private static int[] push(int[] a, int at, int v) {
+        if (at == a.length)
+            a = Arrays.copyOf(a, a.length * 2);
+        a[at] = v;
+        return a;
+    }
+}
@@ -0,0 +1,417 @@
+package org.kedar.kai;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The machine-readable side of the shell: one command per line in, one line out, for the batch mode and the
+ * {@link QueryServer}. The commands are the shell's, but for help, cls and <code>groups summary</code>, which are for
+ * people, and the listing of all the groups with their members, which does not fit a line. A reply is either
+ * <pre>
+ *     ok [value ...]
+ *     error message
+ * </pre>
+ * with the values separated by single spaces:
+ * <ul>
+ * <li><code>setup [file]</code>, <code>psetup [threads]</code>, <code>ssetup [processes]</code>,
+ * <code>restore file</code>: ok, number of vertices, number of components, after the journal was replayed if there
+ * is one</li>
+ * <li><code>xsetup file</code>: ok, number of vertices, number of components, number of bytes of the snapshot it
+ * wrote; the graph that is served stays, restore the file to serve it</li>
+ * <li><code>predict uid</code>: ok, number of users that would be infected</li>
+ * <li><code>predict-batch uid ...</code>, <code>infect-batch uid ...</code> (or a file name instead of the ids): ok,
+ * number of users in all the groups, number of groups, number of unknown ids, then one root:size:version per
+ * group</li>
+ * <li><code>version uid</code>: ok, the version of the user</li>
+ * <li><code>infect uid</code>: ok, the new version, number of users infected</li>
+ * <li><code>limit~ n</code>: ok, the total, then the identifiers of the groups that add up to it</li>
+ * <li><code>limit= n</code>: ok 0 if it is not possible, ok 1 then the identifiers of the groups otherwise</li>
+ * <li><code>link coach student</code>: ok, number of merges, number of version conflicts</li>
+ * <li><code>unlink coach student</code>: ok, -1, 0 or the number of users split off, see
+ * {@link ComponentBuilder#unlink(long, long)}</li>
+ * <li><code>limit&lt; uid n</code>: ok, number of users infected, their new version, number of coach-student pairs
+ * split</li>
+ * <li><code>apply file</code>: ok, number of edges, of edges added, of new users, of merges, of version conflicts</li>
+ * <li><code>snapshot file</code>: ok, number of bytes written</li>
+ * <li><code>groups</code>: ok, number of groups; <code>groups top k</code>, <code>groups page n</code>: ok, number of
+ * groups listed, then one id:size:version per group</li>
+ * <li><code>students uid</code>, <code>coaches uid</code>: ok, number of users, then their ids</li>
+ * <li><code>population version</code>: ok, number of users on that version</li>
+ * <li><code>history [uid]</code>: ok, number of infections, then one group:from:to:users:millis per infection, all of
+ * them or the ones that reached the group of the user</li>
+ * <li><code>stats</code>: ok, then name=value pairs of the {@link Metrics}, with the p50/p99 latency of each command
+ * in microseconds</li>
+ * <li><code>journal [reset]</code>: ok, the id of the {@link Journal} in hex, number of records, number of fsyncs</li>
+ * </ul>
+ * The graph is served through {@link ConcurrentQueries}, so that the commands can come from any thread:
+ * <code>predict</code> and <code>version</code> are answered from its frozen graph without a lock, the other commands
+ * hold its lock, and a load is swapped in by whichever thread built it, see {@link #adopt(Loaded)}.
+ *
+ * @author kedar
+ */
+final class QueryProtocol {
+    private final ConcurrentQueries queries;
+
+    QueryProtocol(ComponentBuilder builder) {
+        this.queries = new ConcurrentQueries(builder);
+    }
+
+    ConcurrentQueries queries() {
+        return queries;
+    }
+
+    /**
+     * @param line String a command
+     * @return String the reply, without the line separator
+     */
+    String execute(String line) {
+        if (loads(line)) {
+            loading();
+            return adopt(load(line));
+        }
+        long start = System.nanoTime();
+        String[] args = line.trim().split("\\s+");
+        String cmd = args[0].toLowerCase();
+        String reply = run(cmd, args);
+        if (!reply.startsWith("error unknown"))
+            Metrics.get().command(cmd, System.nanoTime() - start);
+        return reply;
+    }
+
+    /**
+     * @return boolean true if the command replaces the graph: setup, psetup, ssetup or restore; or it is an xsetup,
+     * which only writes a snapshot but takes as long
+     */
+    static boolean loads(String line) {
+        switch (name(line)) {
+            case Shell.SETUP:
+            case Shell.PSETUP:
+            case Shell.SSETUP:
+            case Shell.XSETUP:
+            case Shell.RESTORE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return boolean true if the command infects whole components: infect or infect-batch, which can go on while a
+     * load runs, see {@link ConcurrentQueries#reloading()}
+     */
+    static boolean infects(String line) {
+        String name = name(line);
+        return Shell.INFECT.equals(name) || Shell.INFECT_BATCH.equals(name);
+    }
+
+    /**
+     * @return boolean true if the command replaces or changes the graph or the versions
+     */
+    static boolean changes(String line) {
+        switch (name(line)) {
+            case Shell.INFECT:
+            case Shell.INFECT_BATCH:
+            case Shell.LIMIT_PARTIAL:
+            case Shell.LINK:
+            case Shell.UNLINK:
+            case Shell.APPLY:
+                return true;
+            case Shell.JOURNAL:
+                return line.trim().split("\\s+").length > 1; // journal reset
+            default:
+                return loads(line);
+        }
+    }
+
+    /**
+     * Starts a load: the infections from now on are made again on the graph it builds, see
+     * {@link ConcurrentQueries#reloading()}.
+     */
+    void loading() {
+        queries.reloading();
+    }
+
+    /**
+     * The first half of a load command: builds the new graph off to the side, and does not touch the graph that is
+     * served. The server runs it on a worker thread while the other commands go on against the old graph, and then
+     * hands the result to {@link #adopt(Loaded)}, on the same thread.
+     *
+     * @param line String a command that {@link #loads(String)}
+     * @return Loaded the new graph, or the reply if there is none: the error that stopped it, or what an xsetup wrote
+     */
+    static Loaded load(String line) {
+        long start = System.nanoTime();
+        String[] args = line.trim().split("\\s+");
+        String cmd = args[0].toLowerCase();
+        try {
+            ComponentBuilder b;
+            switch (cmd) {
+                case Shell.SETUP:
+                    b = new ComponentBuilder();
+                    b.process(new File(args.length > 1 ? args[1] : "graph.conf"));
+                    break;
+                case Shell.PSETUP: {
+                    int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+                    b = new ComponentBuilder();
+                    if (threads > 1)
+                        b.process(new File("graph.conf"), threads);
+                    else
+                        b.process(new File("graph.conf"));
+                    break;
+                }
+                case Shell.SSETUP:
+                    b = new ComponentBuilder(false);
+                    b.processSharded(new File("graph.conf"), args.length > 1 ? Integer.parseInt(args[1])
+                            : Runtime.getRuntime().availableProcessors());
+                    break;
+                case Shell.XSETUP: {
+                    ExternalLoader loader = new ExternalLoader(true);
+                    long bytes = loader.load(new File("graph.conf"), new File(args[1]));
+                    return new Loaded(cmd, null, ok(loader.vertices + " " + loader.components + " " + bytes), start);
+                }
+                case Shell.RESTORE:
+                    b = Snapshot.load(new File(args[1]));
+                    break;
+                default:
+                    throw new IllegalArgumentException("not a load: " + cmd);
+            }
+            return new Loaded(cmd, b, null, start);
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            return new Loaded(cmd, null, error("invalid arguments for: " + cmd), start);
+        } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+            return new Loaded(cmd, null, error(e.getMessage()), start);
+        } catch (RuntimeException | OutOfMemoryError e) { // the server waits for every load to end, one way or another
+            return new Loaded(cmd, null, error("could not load: " + e), start);
+        }
+    }
+
+    /**
+     * The second half of a load command: serves the new graph from now on, if there is one, with the journal
+     * replayed on top, or the infections made since {@link #loading()} if there is no journal. Safe from any thread.
+     *
+     * @param loaded Loaded what {@link #load(String)} built
+     * @return String the reply to the load command
+     */
+    String adopt(Loaded loaded) {
+        try {
+            queries.reloaded(loaded.graph);
+        } catch (IOException | IllegalArgumentException e) {
+            loaded.graph.close();
+            return error("could not replay the journal: " + e.getMessage());
+        }
+        if (loaded.graph == null) {
+            if (!loaded.reply.startsWith("error"))
+                Metrics.get().command(loaded.cmd, System.nanoTime() - loaded.start);
+            return loaded.reply;
+        }
+        Metrics.get().command(loaded.cmd, System.nanoTime() - loaded.start);
+        ConcurrentQueries.Frozen graph = queries.graph();
+        return ok(graph.vertices() + " " + graph.components());
+    }
+
+    /**
+     * A graph that was loaded and is not served yet, or the reply of a load that has none to serve.
+     */
+    static final class Loaded {
+        private final String cmd;
+        private final ComponentBuilder graph;
+        private final String reply; // null if there is a graph
+        private final long start;
+
+        private Loaded(String cmd, ComponentBuilder graph, String reply, long start) {
+            this.cmd = cmd;
+            this.graph = graph;
+            this.reply = reply;
+            this.start = start;
+        }
+    }
+
+    private String run(String cmd, String[] args) {
+        try {
+            switch (cmd) {
+                case Shell.PREDICT: // from the frozen graph, without the lock
+                    return ok(queries.predict(Long.parseLong(args[1])));
+                case Shell.VERSION:
+                    return ok(queries.version(Long.parseLong(args[1])));
+                default:
+                    synchronized (queries) {
+                        return locked(cmd, args, queries.builder());
+                    }
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            return error("invalid arguments for: " + cmd);
+        } catch (NoSuchUserException | IOException | UncheckedIOException | IllegalArgumentException | IllegalStateException e) {
+            return error(e.getMessage()); // a journal that can't be written fails the command before it changes anything
+        }
+    }
+
+    /**
+     * Runs the commands that use the builder, with the lock of the queries held; the changes go through the queries,
+     * which publish them.
+     */
+    private String locked(String cmd, String[] args, ComponentBuilder builder) throws NoSuchUserException, IOException {
+        switch (cmd) {
+            case Shell.PREDICT_BATCH:
+            case Shell.INFECT_BATCH: {
+                long[] uids = Shell.batchIds(line(args));
+                return ok(batch(cmd.equals(Shell.PREDICT_BATCH) ? builder.predictBatch(uids, uids.length)
+                        : queries.infectBatch(uids, uids.length)));
+            }
+            case Shell.INFECT: {
+                long uid = Long.parseLong(args[1]);
+                return ok(queries.infect(uid) + " " + builder.predict(uid));
+            }
+            case Shell.LIMIT_APPROX:
+                return ok(groups(builder.limitApprox(Integer.parseInt(args[1]))));
+            case Shell.LIMIT_EXACT: {
+                Set<Component> infected = builder.limitExact(Integer.parseInt(args[1]));
+                return infected == null ? ok(0) : ok("1 " + groups(infected));
+            }
+            case Shell.LIMIT_PARTIAL: {
+                long uid = Long.parseLong(args[1]);
+                PartialInfection infected = queries.infectPartial(uid, Integer.parseInt(args[2]));
+                return ok(infected.size() + " " + builder.getUserVersion(uid) + " " + infected.cutEdges());
+            }
+            case Shell.LINK: {
+                LinkReport report = new LinkReport();
+                queries.link(Long.parseLong(args[1]), Long.parseLong(args[2]), report);
+                return ok(report.merges + " " + report.conflicts());
+            }
+            case Shell.UNLINK:
+                return ok(queries.unlink(Long.parseLong(args[1]), Long.parseLong(args[2])));
+            case Shell.APPLY: {
+                LinkReport report = queries.apply(new File(args[1]));
+                return ok(report.edges + " " + report.added + " " + report.newUsers + " " + report.merges + " " + report.conflicts());
+            }
+            case Shell.SNAPSHOT:
+                return ok(Snapshot.save(builder, new File(args[1])));
+            case Shell.GROUPS:
+                if (args.length == 1)
+                    return ok(builder.getNumberOfComponents());
+                if ("top".equals(args[1]))
+                    return ok(list(builder.largest(Integer.parseInt(args[2]))));
+                if ("page".equals(args[1])) {
+                    int page = Integer.parseInt(args[2]);
+                    if (page < 1)
+                        throw new IllegalArgumentException("no such page: " + page);
+                    return ok(list(builder.components((long) (page - 1) * Shell.GROUPS_PAGE, Shell.GROUPS_PAGE)));
+                }
+                return error("no such mode: " + args[1]);
+            case Shell.STUDENTS:
+                return ok(ids(builder.students(Long.parseLong(args[1]))));
+            case Shell.COACHES:
+                return ok(ids(builder.coaches(Long.parseLong(args[1]))));
+            case Shell.POPULATION:
+                return ok(builder.population(Integer.parseInt(args[1])));
+            case Shell.HISTORY:
+                return ok(history(builder, args.length > 1 ? builder.historyOf(Long.parseLong(args[1])) : null));
+            case Shell.STATS:
+                return ok(stats(Metrics.get()));
+            case Shell.JOURNAL:
+                return journal(builder, args.length > 1 && "reset".equals(args[1]));
+            default:
+                return error("unknown command: " + cmd);
+        }
+    }
+
+    private static String journal(ComponentBuilder builder, boolean reset) throws IOException {
+        Journal journal = Journal.get();
+        if (journal == null)
+            return error("there is no journal, start with -Dkai.journal=<file>");
+        if (reset) {
+            journal.reset();
+            builder.attach(journal);
+        }
+        return ok(Long.toHexString(journal.id()) + " " + journal.records() + " " + journal.syncs());
+    }
+
+    private static String stats(Metrics m) {
+        StringBuilder sb = new StringBuilder()
+                .append("lines=").append(m.getLinesParsed())
+                .append(" edges=").append(m.getEdgesParsed())
+                .append(" unions=").append(m.getUnions())
+                .append(" relabeled=").append(m.getUsersRelabeled())
+                .append(" setup_ms=").append(m.getLastSetupMillis())
+                .append(" lines_per_s=").append(m.getLastSetupLinesPerSecond())
+                .append(" tables=").append(m.getLimitTables())
+                .append(" table_bytes=").append(m.getLastLimitTableBytes())
+                .append(" table_ms=").append(m.getLastLimitTableMillis());
+        for (Map.Entry<String, LatencyHistogram> e : m.latencies().entrySet())
+            sb.append(' ').append(e.getKey()).append("_p50_us=").append(e.getValue().percentileNanos(0.5) / 1000)
+                    .append(' ').append(e.getKey()).append("_p99_us=").append(e.getValue().percentileNanos(0.99) / 1000);
+        return sb.toString();
+    }
+
+    private static String history(ComponentBuilder builder, int[] entries) {
+        History h = builder.history();
+        int n = entries == null ? h.size() : entries.length;
+        StringBuilder sb = new StringBuilder().append(n);
+        for (int j = 0; j < n; j++) {
+            int i = entries == null ? j : entries[j];
+            sb.append(' ').append(builder.id(h.root(i))).append(':').append(h.from(i)).append(':').append(h.to(i))
+                    .append(':').append(h.users(i)).append(':').append(h.time(i));
+        }
+        return sb.toString();
+    }
+
+    private static String batch(BatchReport report) {
+        StringBuilder sb = new StringBuilder()
+                .append(report.users).append(' ').append(report.groups()).append(' ').append(report.unknown);
+        for (int i = 0; i < report.groups(); i++)
+            sb.append(' ').append(report.group(i, 0)).append(':').append(report.group(i, 1)).append(':').append(report.group(i, 2));
+        return sb.toString();
+    }
+
+    /**
+     * @return String the arguments of a command, the command left out
+     */
+    private static String line(String[] args) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 1; i < args.length; i++)
+            sb.append(i > 1 ? " " : "").append(args[i]);
+        return sb.toString();
+    }
+
+    /**
+     * @return String the number of groups, then id:size:version for each one
+     */
+    private static String list(List<Component> groups) {
+        StringBuilder sb = new StringBuilder().append(groups.size());
+        for (Component group : groups)
+            sb.append(' ').append(group.identifier().id).append(':').append(group.size()).append(':').append(group.getVersion());
+        return sb.toString();
+    }
+
+    private static String ids(long[] ids) {
+        StringBuilder sb = new StringBuilder().append(ids.length);
+        for (long id : ids)
+            sb.append(' ').append(id);
+        return sb.toString();
+    }
+
+    private static String name(String line) {
+        return line.trim().split("\\s+", 2)[0].toLowerCase();
+    }
+
+    private static String groups(Set<Component> infected) {
+        long total = 0;
+        StringBuilder ids = new StringBuilder();
+        for (Component group : infected) {
+            total += group.size();
+            ids.append(' ').append(group.identifier().id);
+        }
+        return total + ids.toString();
+    }
+
+    private static String ok(Object value) {
+        return "ok " + value;
+    }
+
+    private static String error(String message) {
+        return "error " + message;
+    }
+}
@@ -0,0 +1,290 @@
+package org.kedar.kai;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Serves the {@link QueryProtocol} on a localhost TCP port, so that other processes can push queries without
+ * starting a JVM per query. A client writes commands, one per line, and reads one reply line per command, in order;
+ * it can pipeline as many commands as it likes without waiting for the replies.
+ * <p>
+ * There is a single thread with an NIO selector over all the connections. The commands take microseconds, so that
+ * thread answers thousands of queries per second.
+ * </p>
+ * <p>
+ * The loads (setup, restore and the like) take seconds, so they run on a worker thread instead, see
+ * {@link QueryProtocol#load(String)}, and the new graph is swapped in on that thread too, by
+ * {@link QueryProtocol#adopt(QueryProtocol.Loaded)} through the {@link ConcurrentQueries} of the protocol: the selector thread goes on answering <code>predict</code> and
+ * <code>version</code> from the frozen graph meanwhile, even while the journal is replayed on the new graph, and the
+ * other commands take their turn on the lock. The infections of the other connections go on against the old graph and
+ * are made again on the new one before it is served, so none is lost. A command that would otherwise change the graph
+ * or the versions waits, with the commands its connection sent after it, until the new graph is in, and then runs
+ * against it. The connection that asked for the load waits for it too, so its next commands see the new graph, as
+ * they would in the batch mode.
+ * </p>
+ *
+ * @author kedar
+ */
+final class QueryServer implements Closeable {
+    private static final int READ_BYTES = 64 * 1024;
+    private static final int MAX_LINE = 1 << 20; // a client that sends a longer line is dropped
+
+    private final QueryProtocol protocol;
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final ExecutorService loader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "kai-loader");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+    private final ConcurrentLinkedQueue<Runnable> loaded = new ConcurrentLinkedQueue<>(); // run on the selector thread
+    private SelectionKey loading;  // the connection whose load is running, null if none is
+    private final List<SelectionKey> parked = new ArrayList<>(); // the connections that wait for it
+    private volatile boolean running = true;
+
+    /**
+     * Binds the port, the commands are served by {@link #serve()}.
+     *
+     * @param protocol QueryProtocol the commands are run by
+     * @param port     int a port on localhost, 0 for any free one
+     */
+    QueryServer(QueryProtocol protocol, int port) throws IOException {
+        this.protocol = protocol;
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    int port() {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * Serves the connections until {@link #close()} is called.
+     */
+    void serve() throws IOException {
+        ByteBuffer in = ByteBuffer.allocateDirect(READ_BYTES);
+        try {
+            while (running) {
+                selector.select();
+                for (Runnable r; (r = loaded.poll()) != null; )
+                    r.run();
+                for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    try {
+                        if (!key.isValid())
+                            continue;
+                        if (key.isAcceptable())
+                            accept();
+                        else {
+                            if (key.isReadable())
+                                read(key, in);
+                            if (key.isValid() && key.isWritable())
+                                write(key);
+                        }
+                    } catch (IOException e) {
+                        drop(key); // this client is gone, the others are not
+                    }
+                }
+            }
+        } finally {
+            loader.shutdownNow();
+            for (SelectionKey key : selector.keys())
+                key.channel().close();
+            selector.close();
+        }
+    }
+
+    /**
+     * Stops serving, from any thread.
+     */
+    @Override
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    private void accept() throws IOException {
+        SocketChannel client = server.accept();
+        if (client == null)
+            return;
+        client.configureBlocking(false);
+        client.register(selector, SelectionKey.OP_READ, new Connection());
+    }
+
+    private void read(SelectionKey key, ByteBuffer in) throws IOException {
+        SocketChannel client = (SocketChannel) key.channel();
+        Connection c = (Connection) key.attachment();
+        in.clear();
+        int n = client.read(in);
+        if (n < 0) {
+            if (c.length > 0) // the last command may not end with a line separator
+                c.queued.add(new String(c.line, 0, c.length, StandardCharsets.US_ASCII));
+            c.length = 0;
+            c.closing = true; // answer what was asked, then close
+            run(key);
+            return;
+        }
+        in.flip();
+        while (in.hasRemaining()) {
+            byte b = in.get();
+            if (b == '\n') {
+                String line = new String(c.line, 0, c.length, StandardCharsets.US_ASCII).trim();
+                c.length = 0;
+                if (!line.isEmpty())
+                    c.queued.add(line);
+            } else {
+                if (c.length == MAX_LINE) {
+                    drop(key);
+                    return;
+                }
+                c.append(b);
+            }
+        }
+        run(key);
+    }
+
+    /**
+     * Runs the commands the connection sent, in order, up to one that has to wait for a load.
+     */
+    private void run(SelectionKey key) {
+        Connection c = (Connection) key.attachment();
+        while (!c.waiting && !c.queued.isEmpty()) {
+            String line = c.queued.peek();
+            if (loading != null && QueryProtocol.changes(line) && !QueryProtocol.infects(line)) {
+                c.waiting = true;
+                parked.add(key);
+                break;
+            }
+            c.queued.poll();
+            if (QueryProtocol.loads(line)) {
+                c.waiting = true;
+                loading = key;
+                protocol.loading();
+                load(line);
+                break;
+            }
+            c.reply(protocol.execute(line));
+        }
+        interest(key);
+    }
+
+    private void load(final String line) {
+        loader.execute(new Runnable() {
+            @Override
+            public void run() {
+                final String reply = protocol.adopt(QueryProtocol.load(line));
+                loaded.add(new Runnable() {
+                    @Override
+                    public void run() {
+                        loaded(reply);
+                    }
+                });
+                selector.wakeup();
+            }
+        });
+    }
+
+    /**
+     * Answers the connection that asked for the load, once the new graph is in, and resumes the ones that waited.
+     */
+    private void loaded(String reply) {
+        SelectionKey key = loading;
+        loading = null;
+        List<SelectionKey> resumed = new ArrayList<>();
+        resumed.add(key);
+        resumed.addAll(parked);
+        parked.clear();
+        ((Connection) key.attachment()).reply(reply);
+        for (SelectionKey k : resumed) {
+            ((Connection) k.attachment()).waiting = false;
+            if (k.isValid())
+                run(k); // may start the next load, and park the rest again
+        }
+    }
+
+    /**
+     * Reads while the connection may send more, writes while there are replies, and closes once it is all done.
+     */
+    private void interest(SelectionKey key) {
+        if (!key.isValid())
+            return;
+        Connection c = (Connection) key.attachment();
+        boolean writing = c.out.position() > 0;
+        if (c.closing && !writing && !c.waiting && c.queued.isEmpty())
+            drop(key);
+        else
+            key.interestOps((c.closing || c.waiting ? 0 : SelectionKey.OP_READ) | (writing ? SelectionKey.OP_WRITE : 0));
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        SocketChannel client = (SocketChannel) key.channel();
+        Connection c = (Connection) key.attachment();
+        c.out.flip();
+        client.write(c.out);
+        c.out.compact();
+        if (c.out.position() == 0)
+            interest(key);
+    }
+
+    private static void drop(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException ignored) {
+            // closing a broken connection, nothing left to do
+        }
+    }
+
+    /**
+     * The state of one client: the line being read and the replies not written yet.
+     */
+    private static final class Connection {
+        private byte[] line = new byte[256];
+        private int length;
+        private ByteBuffer out = ByteBuffer.allocate(4096);
+        private final ArrayDeque<String> queued = new ArrayDeque<>(); // commands read and not run yet
+        private boolean waiting; // for a load, the queued commands run after it
+        private boolean closing;
+
+        private void append(byte b) {
+            if (length == line.length)
+                line = Arrays.copyOf(line, line.length * 2);
+            line[length++] = b;
+        }
+
+        private void reply(String s) {
+            byte[] bytes = (s + "\n").getBytes(StandardCharsets.US_ASCII);
+            if (out.remaining() < bytes.length) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + bytes.length));
+                out.flip();
+                bigger.put(out);
+                out = bigger;
+            }
+            out.put(bytes);
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package org.kedar.kai;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Loads a graph.conf in several worker processes instead of threads, so that the parsing is not bound to one JVM.
+ * The coordinator cuts the lines after the header into as many byte ranges as there are shards, the way
+ * {@link ParallelLoader} does, and starts a JVM per range (this class's {@link #main(String[])}, with
+ * <code>-Dkai.shard.jvm</code> for its options). Each worker scans its range into a union-find of its own, over the
+ * users it sees only, and writes a summary file: every user it saw and the root of that user's local component.
+ * <p>
+ * A user that appears in several shards is what the shards have in common, so the coordinator gets the global
+ * components by uniting each user with its local root, for all the summaries, on a {@link ConcurrentUnionFind} it
+ * then hands to {@link ComponentBuilder#adopt(ConcurrentUnionFind, List)}. Connectivity only depends on which users
+ * end up together, so the components are exactly the ones {@link ComponentBuilder#process(File)} forms. The
+ * summaries are about 8 bytes per user a shard sees, whatever the number of edges; the edges themselves are not
+ * collected.
+ * </p>
+ * <p>
+ * The processes talk through files in a temp directory only, so it all runs on one box, and a worker could as well
+ * be started by hand. A summary is little-endian:
+ * </p>
+ * <pre>
+ *     magic  : int, "KAIU"
+ *     lines  : long, lines parsed
+ *     edges  : long, edges parsed
+ *     users  : int, number of users seen
+ *     pairs  : int[2 * users], each user id followed by the id of its local root
+ * </pre>
+ *
+ * @author kedar
+ */
+final class ShardedLoader {
+    static final int MAGIC = 0x4B414955;
+    private static final int HEADER_BYTES = 24;
+    private static final long MAX_SCAN = 256L << 20; // bytes the search for a # line maps at a time
+    private static final int WINDOW_PAIRS = 1 << 25;  // 256 MB of a summary mapped at a time
+
+    private final int shards;
+    private long lines; // what the last load parsed
+    private long edges;
+
+    ShardedLoader(int shards) {
+        if (shards < 1)
+            throw new IllegalArgumentException("need at least one shard, not: " + shards);
+        this.shards = shards;
+    }
+
+    /**
+     * Loads the given file into the given builder, replacing what it had.
+     *
+     * @param file    File the graph.conf file, with dense ids
+     * @param builder ComponentBuilder that adopts the components
+     * @throws IOException if the file can't be read or is malformed, or a worker fails
+     */
+    void load(File file, ComponentBuilder builder) throws IOException {
+        lines = edges = 0;
+        File dir = Files.createTempDirectory("shards").toFile();
+        ExecutorService pool = Executors.newFixedThreadPool(shards);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            long length = channel.size();
+            long[] header = ParallelLoader.readHeader(channel, length); // {vertices, offset of the first line after the header}
+            long end = ParallelLoader.firstHashLine(pool, channel,
+                    bounds(channel, header[1], length, (int) Math.max(shards, (length - header[1]) / MAX_SCAN + 1)));
+            long[] bounds = bounds(channel, header[1], end, shards);
+            List<Process> workers = new ArrayList<>();
+            List<File> summaries = new ArrayList<>();
+            try {
+                for (int s = 0; s < shards; s++) {
+                    if (bounds[s] >= bounds[s + 1])
+                        continue; // an empty range, the lines are too few
+                    File summary = new File(dir, "shard-" + s + ".summary");
+                    summaries.add(summary);
+                    workers.add(start(file, bounds[s], bounds[s + 1], summary, new File(dir, "shard-" + s + ".log")));
+                }
+                for (int w = 0; w < workers.size(); w++) {
+                    if (workers.get(w).waitFor() != 0)
+                        throw new IOException("shard worker " + w + " failed: " + log(summaries.get(w)));
+                }
+            } finally {
+                for (Process p : workers)
+                    p.destroy();
+            }
+            ConcurrentUnionFind cuf = new ConcurrentUnionFind((int) header[0] + 1);
+            for (File summary : summaries)
+                merge(summary, cuf);
+            builder.adopt(cuf, Collections.<Adjacency.Builder>emptyList());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while loading: " + file, e);
+        } catch (ExecutionException e) {
+            throw new IOException("failed to load: " + file, e.getCause());
+        } finally {
+            pool.shutdownNow();
+            File[] files = dir.listFiles();
+            for (File f : files == null ? new File[0] : files)
+                f.delete();
+            dir.delete();
+        }
+    }
+
+    long lines() {
+        return lines;
+    }
+
+    long edges() {
+        return edges;
+    }
+
+    /**
+     * Cuts [start, end) into the given number of ranges that begin right after a new line, some of them possibly
+     * empty.
+     *
+     * @return long[] the boundaries, the first one is start and the last one is end
+     */
+    private static long[] bounds(FileChannel channel, long start, long end, int parts) throws IOException {
+        long[] bounds = new long[parts + 1];
+        bounds[0] = start;
+        for (int s = 1; s < parts; s++)
+            bounds[s] = Math.max(bounds[s - 1], ParallelLoader.nextLineStart(channel, start + (end - start) * s / parts, end));
+        bounds[parts] = end;
+        return bounds;
+    }
+
+    private static Process start(File file, long from, long to, File summary, File log) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        String options = System.getProperty("kai.shard.jvm", "").trim();
+        if (!options.isEmpty())
+            command.addAll(Arrays.asList(options.split("\\s+")));
+        command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), ShardedLoader.class.getName(),
+                file.getAbsolutePath(), Long.toString(from), Long.toString(to), summary.getAbsolutePath()));
+        return new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log).start();
+    }
+
+    private static String log(File summary) throws IOException {
+        File log = new File(summary.getParentFile(), summary.getName().replace(".summary", ".log"));
+        return log.exists() ? new String(Files.readAllBytes(log.toPath())).trim() : "no log";
+    }
+
+    /**
+     * Unites every user of the summary with its local root.
+     */
+    private void merge(File summary, ConcurrentUnionFind cuf) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(summary, "r");
+             FileChannel channel = raf.getChannel()) {
+            if (channel.size() < HEADER_BYTES)
+                throw new IOException("not a shard summary: " + summary);
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt() != MAGIC)
+                throw new IOException("not a shard summary: " + summary);
+            lines += header.getLong();
+            edges += header.getLong();
+            int users = header.getInt();
+            if (channel.size() != HEADER_BYTES + 8L * users)
+                throw new IOException("malformed shard summary: " + summary);
+            for (int done = 0; done < users; ) {
+                int n = Math.min(WINDOW_PAIRS, users - done);
+                IntBuffer pairs = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES + 8L * done, 8L * n)
+                        .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+                for (int i = 0; i < n; i++) {
+                    int u = pairs.get(), root = pairs.get();
+                    if (u >= cuf.capacity() || root >= cuf.capacity())
+                        throw new IOException("user id: " + Math.max(u, root) + " is past the number of vertices: " + (cuf.capacity() - 1));
+                    cuf.add(u);
+                    cuf.add(root);
+                    cuf.union(u, root);
+                }
+                done += n;
+            }
+        }
+    }
+
+    /**
+     * The union-find of one shard, over the users it sees only: each new user id gets the next local slot.
+     */
+    static final class Shard implements GraphScanner.Sink {
+        private final LongIntMap local = new LongIntMap();
+        private int[] user = new int[1024];   // local slot -> user id
+        private int[] parent = new int[1024]; // local slots
+        private int[] size = new int[1024];
+        private int n;
+        long lines;
+        long edges;
+
+        @Override
+        public void header(int vertices) {
+            throw new AssertionError("a shard has no header");
+        }
+
+        @Override
+        public void line(int uid, int[] sids, int count) {
+            lines += 1;
+            edges += count;
+            int u = slot(uid);
+            for (int i = 0; i < count; i++)
+                union(u, slot(sids[i]));
+        }
+
+        int users() {
+            return n;
+        }
+
+        /**
+         * Writes the summary, see {@link ShardedLoader}.
+         */
+        void write(File out) throws IOException {
+            ByteBuffer buf = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+            try (RandomAccessFile raf = new RandomAccessFile(out, "rw");
+                 FileChannel channel = raf.getChannel()) {
+                channel.truncate(0);
+                buf.putInt(MAGIC).putLong(lines).putLong(edges).putInt(n);
+                for (int i = 0; i < n; i++) {
+                    if (buf.remaining() < 8)
+                        drain(buf, channel);
+                    buf.putInt(user[i]).putInt(user[find(i)]);
+                }
+                drain(buf, channel);
+                channel.force(false);
+            }
+        }
+
+        private int slot(int uid) {
+            int s = local.get(uid, -1);
+            if (s < 0) {
+                if (n == user.length) {
+                    user = Arrays.copyOf(user, n * 2);
+                    parent = Arrays.copyOf(parent, n * 2);
+                    size = Arrays.copyOf(size, n * 2);
+                }
+                s = n++;
+                user[s] = uid;
+                parent[s] = s;
+                size[s] = 1;
+                local.put(uid, s);
+            }
+            return s;
+        }
+
+        private int find(int i) {
+            while (parent[i] != i) {
+                parent[i] = parent[parent[i]]; // path halving
+                i = parent[i];
+            }
+            return i;
+        }
+
+        private void union(int a, int b) {
+            a = find(a);
+            b = find(b);
+            if (a == b)
+                return;
+            if (size[a] < size[b]) {
+                int t = a;
+                a = b;
+                b = t;
+            }
+            parent[b] = a;
+            size[a] += size[b];
+        }
+
+        private static void drain(ByteBuffer buf, FileChannel channel) throws IOException {
+            buf.flip();
+            while (buf.hasRemaining())
+                channel.write(buf);
+            buf.clear();
+        }
+    }
+
+    /**
+     * The entry point of a worker process: scans a range of a graph.conf and writes its summary.
+     *
+     * @param args graph.conf, the offset of the first byte, the offset past the last byte, the summary to write
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 4) {
+            System.err.println("usage: ShardedLoader <graph.conf> <from> <to> <summary>");
+            System.exit(2);
+        }
+        long from = Long.parseLong(args[1]), to = Long.parseLong(args[2]);
+        Shard shard = new Shard();
+        try (RandomAccessFile raf = new RandomAccessFile(args[0], "r");
+             FileChannel channel = raf.getChannel()) {
+            GraphScanner scanner = new GraphScanner(shard, false);
+            for (long pos = from; pos < to; pos += Integer.MAX_VALUE) // a range can be bigger than one mapping
+                scanner.feed(channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(Integer.MAX_VALUE, to - pos)));
+            scanner.finish();
+        }
+        shard.write(new File(args[3]));
+    }
+}
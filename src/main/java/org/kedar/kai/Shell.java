@@ -1,6 +1,10 @@
 package org.kedar.kai;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
 import java.util.NoSuchElementException;
 import java.util.Scanner;
 import java.util.Set;
@@ -11,42 +15,113 @@ import java.util.Set;
  * <ul>
  * <ol>cls:     Clears the screen.</ol>
  * <ol>setup:   Sets up the testbed from a file named graph.conf.</ol>
+ * <ol>psetup:  Like setup, but parses graph.conf on the given number of threads (all cores by default) and reports
+ * the speedup over the last setup.</ol>
+ * <ol>ssetup:  Like psetup, but parses graph.conf in the given number of worker processes (all cores by default),
+ * without the edges, see {@link ShardedLoader}.</ol>
+ * <ol>xsetup:  Sets up graph.conf out of core, with a heap that does not grow with the edges, into the given snapshot
+ * file, see {@link ExternalLoader}. The testbed is left as it is, restore the file to query it.</ol>
+ * <ol>link:    Accepts a coach id and a student id and links them in the current testbed, without a setup.</ol>
+ * <ol>unlink:  Accepts a coach id and a student id and removes the edge between them, splitting their group if that
+ * was the last path between the two.</ol>
+ * <ol>apply:   Accepts a file name and links all the coach/student lines in it (graph.conf lines, without the first
+ * one) in the current testbed.</ol>
+ * <ol>snapshot: Saves the components and the versions of all the users into the given binary file.</ol>
+ * <ol>restore: Loads the testbed from a file that snapshot wrote, instead of setting it up from graph.conf.</ol>
  * <ol>version: Accepts a user-id and returns the version that user is on. Versions start at 1 and
  * increment by 1 on infection (no semver here ;)). </ol>
  * <ol>infect:  Accepts the starting user id and that user + all users connected to that user are infected. Each infected user's
  * current version is incremented by 1.</ol>
  * <ol>predict: Accepts the starting user id and predicts the number of infected users should the starting user id be
  * infected by the infect command.</ol>
+ * <ol>predict-batch: Accepts user ids, or the name of a file that lists them, and predicts them at once: the distinct
+ * groups they are in, each once, and the number of users in all of them.</ol>
+ * <ol>infect-batch: Like predict-batch, but infects the groups, each once however many of its members are listed.</ol>
+ * <ol>students: Accepts a user id and prints the ids of the users that user coaches.</ol>
+ * <ol>coaches: Accepts a user id and prints the ids of the users who coach that user.</ol>
  * <ol>groups: Prints some details of current connected components. A group's id is denoted by the user-id of the user that
- * is its temporary identifier.</ol>
+ * is its temporary identifier. <code>groups top k</code> prints the k biggest ones, <code>groups page n</code> the n-th
+ * hundred and <code>groups summary</code> only counts them by size.</ol>
  * <ol>limit~: Accepts a number that denotes the maximum number of users that could be affected. The command then
  * comes up with one possible selection of groups that infects approximately that many users. The printed groups give the
  * 'approximate limited infection'.</ol>
+ * <ol>limit&lt;: Accepts a user id and a number N, and infects exactly N users around that user (or the whole group, if
+ * it is smaller), a classroom at a time, so that few coaches and students end up on different versions. For limits
+ * below the size of every group.</ol>
  * <ol>limit=: Accepts a number that denotes the maximum number of users that could be infected. The command then
  * prints 0 if it is not possible and 1, followed by the group-ids that may yield such 'exact limited infection'.
  * The policy implemented is: a connected component is either infected or not. </ol>
+ * <ol>population: Accepts a version and prints how many users are on it, from counters kept as the versions
+ * change.</ol>
+ * <ol>history: Prints every infection so far, oldest first: when, the group, the versions and the number of users.
+ * <code>history uid</code> prints only the ones that reached the group of that user.</ol>
+ * <ol>stats:   Prints the counters of the process: lines parsed, unions, merge work, the limit tables and the
+ * latency percentiles of every command, see {@link Metrics}. <code>stats reset</code> zeroes them.</ol>
+ * <ol>journal: Prints where the infections and the graph changes are journaled, see {@link Journal}.
+ * <code>journal reset</code> empties it, right after a snapshot for one.</ol>
  * <ol>help:    Prints this message.</ol>
  * <ol>quit:    Quits the program. </ol>
  * </ul>
+ * Without a console, or with <code>--batch [file]</code>, the commands are read from stdin (or the file) instead and
+ * every reply is a single machine-readable line, see {@link QueryProtocol}. With <code>--serve [port]</code>, the
+ * same commands are served on a localhost port, see {@link QueryServer}.
  *
  * @author kedar
  */
 public class Shell {
     static final String SETUP = "setup";
+    static final String PSETUP = "psetup";
+    static final String XSETUP = "xsetup";
+    static final String SSETUP = "ssetup";
+    static final String LINK = "link";
+    static final String UNLINK = "unlink";
+    static final String APPLY = "apply";
+    static final String SNAPSHOT = "snapshot";
+    static final String RESTORE = "restore";
     static final String VERSION = "version";
     static final String INFECT = "infect";
     static final String PREDICT = "predict";
+    static final String PREDICT_BATCH = "predict-batch";
+    static final String INFECT_BATCH = "infect-batch";
     static final String GROUPS = "groups";
+    static final String STUDENTS = "students";
+    static final String COACHES = "coaches";
     static final String LIMIT_EXACT = "limit=";
     static final String LIMIT_APPROX = "limit~";
+    static final String LIMIT_PARTIAL = "limit<";
+    static final String POPULATION = "population";
+    static final String HISTORY = "history";
+    static final String STATS = "stats";
+    static final String JOURNAL = "journal";
     static final String HELP = "help";
     static final String QUIT = "quit";
     static final String CLS = "cls";
 
+    static final String BATCH_FLAG = "--batch";
+    static final String SERVE_FLAG = "--serve";
+    static final int DEFAULT_PORT = 7070;
+
+    static final int GROUPS_PAGE = 100;
+
+    private static final String[] COMMANDS = {SETUP, PSETUP, SSETUP, XSETUP, LINK, UNLINK, APPLY, SNAPSHOT, RESTORE, VERSION,
+            INFECT, PREDICT, PREDICT_BATCH, INFECT_BATCH, GROUPS, STUDENTS, COACHES, LIMIT_EXACT, LIMIT_APPROX, LIMIT_PARTIAL, POPULATION, HISTORY, STATS, JOURNAL};
+
+    private static long setupNanos = 0; // how long the last sequential setup took
+
     public static void main(String[] args) throws IOException {
+        if (args.length > 0 && BATCH_FLAG.equals(args[0])) {
+            batch(args.length > 1 ? new FileReader(args[1]) : new InputStreamReader(System.in));
+            return;
+        }
+        if (args.length > 0 && SERVE_FLAG.equals(args[0])) {
+            serve(args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT);
+            return;
+        }
         Console console = System.console();
-        if (console == null)
-            System.exit(1);
+        if (console == null) { // piped in, there is no one to talk to
+            batch(new InputStreamReader(System.in));
+            return;
+        }
         PrintWriter writer = console.writer();
         greet(writer);
         printPrompt(writer);
@@ -54,22 +129,148 @@ public class Shell {
         String cmd;
         ComponentBuilder builder = new ComponentBuilder();
         while ((cmd = reader.readLine()) != null) {
-            cmd = cmd.toLowerCase().trim();
+            long started = System.nanoTime();
+            String raw = cmd.trim(); // file names are case-sensitive
+            cmd = raw.toLowerCase();
             if (QUIT.equals(cmd) || "q".equals(cmd)) {
                 System.exit(0);
             } else if (SETUP.equals(cmd)) {
-                builder = new ComponentBuilder();
-                BufferedReader filer = new BufferedReader(new FileReader("graph.conf"));
-                writer.println(builder.process(filer));
-                filer.close(); //TODO improve closing
+                try {
+                    ComponentBuilder b = new ComponentBuilder(); // the current graph stays if this one does not load
+                    long start = System.nanoTime();
+                    String summary = b.process(new File("graph.conf"));
+                    builder.close();
+                    builder = b;
+                    writer.println(summary);
+                    setupNanos = System.nanoTime() - start;
+                    writer.printf("Took: %d ms%n", setupNanos / 1000000);
+                    replay(builder, writer);
+                } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+                    writer.println("could not set up: " + e.getMessage());
+                }
+            } else if (cmd.startsWith(PSETUP)) {
+                try {
+                    Scanner sc = new Scanner(cmd.substring(PSETUP.length()));
+                    int threads = sc.hasNext() ? sc.nextInt() : Runtime.getRuntime().availableProcessors();
+                    ComponentBuilder b = new ComponentBuilder();
+                    long start = System.nanoTime();
+                    String summary = b.process(new File("graph.conf"), threads);
+                    builder.close();
+                    builder = b;
+                    writer.println(summary);
+                    long took = System.nanoTime() - start;
+                    writer.printf("Took: %d ms on %d thread(s)%n", took / 1000000, threads);
+                    if (setupNanos > 0)
+                        writer.printf("Speedup over the last setup (%d ms): %.2fx%n", setupNanos / 1000000, (double) setupNanos / took);
+                    replay(builder, writer);
+                } catch (NoSuchElementException ex) {
+                    writer.println("invalid command, it should be: " + PSETUP + " [threads], or enter help");
+                } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+                    writer.println("could not set up: " + e.getMessage());
+                }
+            } else if (SSETUP.equals(cmd) || cmd.startsWith(SSETUP + " ")) {
+                try {
+                    Scanner sc = new Scanner(cmd.substring(SSETUP.length()));
+                    int shards = sc.hasNext() ? sc.nextInt() : Runtime.getRuntime().availableProcessors();
+                    ComponentBuilder b = new ComponentBuilder(false);
+                    long start = System.nanoTime();
+                    writer.println(b.processSharded(new File("graph.conf"), shards));
+                    builder.close();
+                    builder = b;
+                    writer.printf("Took: %d ms in %d process(es), the edges are not kept%n", (System.nanoTime() - start) / 1000000, shards);
+                    replay(builder, writer);
+                } catch (NoSuchElementException | IllegalArgumentException ex) {
+                    writer.println("invalid command, it should be: " + SSETUP + " [processes], or enter help");
+                } catch (IOException | IllegalStateException e) {
+                    writer.println("could not set up in shards: " + e.getMessage());
+                }
+            } else if (cmd.startsWith(XSETUP + " ")) {
+                File file = new File(raw.substring(XSETUP.length()).trim());
+                try {
+                    long start = System.nanoTime();
+                    ExternalLoader loader = new ExternalLoader(true);
+                    long bytes = loader.load(new File("graph.conf"), file);
+                    writer.printf("Wrote %d vertices, %d component(s) in %d bytes to %s out of core in %d ms, restore it to query it%n",
+                            loader.vertices, loader.components, bytes, file, (System.nanoTime() - start) / 1000000);
+                } catch (IOException | IllegalArgumentException e) {
+                    writer.println("could not set up out of core: " + e.getMessage());
+                }
+            } else if (cmd.startsWith(LINK + " ")) {
+                try {
+                    Scanner sc = new Scanner(cmd.substring(LINK.length()));
+                    LinkReport report = new LinkReport();
+                    long start = System.nanoTime();
+                    builder.link(sc.nextLong(), sc.nextLong(), report);
+                    report.nanos = System.nanoTime() - start;
+                    writer.println(report);
+                } catch (NoSuchElementException | IllegalStateException | IllegalArgumentException ex) {
+                    writer.println("invalid command, it should be: " + LINK + " <coach id> <student id>, or enter help");
+                } catch (UncheckedIOException e) { // the journal, the command did not change anything
+                    writer.println(e.getMessage());
+                }
+            } else if (cmd.startsWith(UNLINK + " ")) {
+                try {
+                    Scanner sc = new Scanner(cmd.substring(UNLINK.length()));
+                    long coach = sc.nextLong(), student = sc.nextLong();
+                    if (builder.hasEdges()) {
+                        long start = System.nanoTime();
+                        int n = builder.unlink(coach, student);
+                        long took = (System.nanoTime() - start) / 1000;
+                        if (n < 0)
+                            writer.println("User: " + coach + " does not coach user: " + student);
+                        else if (n == 0)
+                            writer.printf("Unlinked, the group stays whole (%d us)%n", took);
+                        else
+                            writer.printf("Unlinked, %d user(s) split off into a group of their own, %d group(s) now (%d us)%n",
+                                    n, builder.getNumberOfComponents(), took);
+                    } else {
+                        writer.println("The edges of this graph are not kept, run setup first");
+                    }
+                } catch (NoSuchElementException | IllegalStateException ex) {
+                    writer.println("invalid command, it should be: " + UNLINK + " <coach id> <student id>, or enter help");
+                } catch (NoSuchUserException | UncheckedIOException e) {
+                    writer.println(e.getMessage());
+                }
+            } else if (cmd.startsWith(APPLY + " ")) {
+                try {
+                    writer.println(builder.apply(new File(raw.substring(APPLY.length()).trim())));
+                } catch (IOException | UncheckedIOException | IllegalArgumentException | IllegalStateException e) {
+                    writer.println("could not apply the delta: " + e.getMessage());
+                }
+            } else if (cmd.startsWith(SNAPSHOT + " ")) {
+                File file = new File(raw.substring(SNAPSHOT.length()).trim());
+                try {
+                    long start = System.nanoTime();
+                    long bytes = Snapshot.save(builder, file);
+                    writer.printf("Saved %d bytes to %s in %d ms%n", bytes, file, (System.nanoTime() - start) / 1000000);
+                } catch (IOException e) {
+                    writer.println("could not save the snapshot: " + e.getMessage());
+                }
+            } else if (cmd.startsWith(RESTORE + " ")) {
+                File file = new File(raw.substring(RESTORE.length()).trim());
+                try {
+                    long start = System.nanoTime();
+                    ComponentBuilder b = Snapshot.load(file);
+                    builder.close();
+                    builder = b;
+                    writer.printf("Restored %d vertices, %d component(s) from %s in %d ms%n", builder.getNumberOfVertices(),
+                            builder.getNumberOfComponents(), file, (System.nanoTime() - start) / 1000000);
+                    replay(builder, writer);
+                } catch (IOException | IllegalArgumentException e) {
+                    writer.println("could not restore the snapshot: " + e.getMessage());
+                }
             } else if ("h".equals(cmd) || HELP.equals(cmd)) {
                 printHelp(writer);
-            } else if (GROUPS.equals(cmd)) {
-                writer.println(builder.componentsToString());
+            } else if (GROUPS.equals(cmd) || cmd.startsWith(GROUPS + " ")) {
+                try {
+                    groups(builder, new Scanner(cmd.substring(GROUPS.length())), writer);
+                } catch (NoSuchElementException | IllegalStateException | IllegalArgumentException ex) {
+                    writer.println("invalid command, it should be: " + GROUPS + " [top <k> | page <n> | summary], or enter help");
+                }
             } else if (cmd.startsWith(VERSION)) {
                 try {
                     Scanner sc = new Scanner(cmd).useDelimiter(VERSION + "\\s+");
-                    writer.println(builder.getUserVersion(sc.nextInt()));
+                    writer.println(builder.getUserVersion(sc.nextLong()));
                 } catch (NoSuchElementException | IllegalStateException ex) {
                     writer.println("invalid command, it should be: version <number>, or enter help");
                 } catch (NoSuchUserException e) {
@@ -78,10 +279,23 @@ public class Shell {
             } else if (CLS.equals(cmd)) {
                 System.out.println("TODO (should use jline) ...");
                 printPrompt(writer);
+            } else if (PREDICT_BATCH.equals(cmd) || INFECT_BATCH.equals(cmd)) { // not a predict or an infect without an id
+                writer.println("invalid command, it should be: " + cmd + " <ids or file>, or enter help");
+            } else if (cmd.startsWith(PREDICT_BATCH + " ") || cmd.startsWith(INFECT_BATCH + " ")) {
+                String which = cmd.startsWith(PREDICT_BATCH) ? PREDICT_BATCH : INFECT_BATCH;
+                try {
+                    long[] uids = batchIds(raw.substring(which.length()).trim());
+                    writer.println(PREDICT_BATCH.equals(which) ? builder.predictBatch(uids, uids.length)
+                            : builder.infectBatch(uids, uids.length));
+                } catch (IOException e) {
+                    writer.println("could not read the ids: " + e.getMessage());
+                } catch (UncheckedIOException e) { // the journal, the command did not change anything
+                    writer.println(e.getMessage());
+                }
             } else if (cmd.startsWith(PREDICT)) {
                 try {
                     Scanner sc = new Scanner(cmd).useDelimiter(PREDICT + "\\s+");
-                    int uid = sc.nextInt();
+                    long uid = sc.nextLong();
                     int infected = builder.predict(uid);
                     writer.println("If you infect user: " + uid + ", " + infected + " users will get infected in all");
                 } catch (NoSuchElementException | IllegalStateException ex) {
@@ -89,16 +303,32 @@ public class Shell {
                 } catch (NoSuchUserException e) {
                     writer.println(e.getMessage());
                 }
+            } else if (cmd.startsWith(STUDENTS) || cmd.startsWith(COACHES)) {
+                String which = cmd.startsWith(STUDENTS) ? STUDENTS : COACHES;
+                try {
+                    Scanner sc = new Scanner(cmd).useDelimiter(which + "\\s+");
+                    long uid = sc.nextLong();
+                    if (builder.hasEdges()) {
+                        long[] ids = STUDENTS.equals(which) ? builder.students(uid) : builder.coaches(uid);
+                        writer.println("User: " + uid + " has " + ids.length + " " + which + ": " + Arrays.toString(ids));
+                    } else {
+                        writer.println("The edges of this graph are not kept, run setup first");
+                    }
+                } catch (NoSuchElementException | IllegalStateException ex) {
+                    writer.println("invalid command, it should be: " + which + " <number>, or enter help");
+                } catch (NoSuchUserException e) {
+                    writer.println(e.getMessage());
+                }
             } else if (cmd.startsWith(INFECT)) {
                 try {
                     Scanner sc = new Scanner(cmd).useDelimiter(INFECT + "\\s+");
-                    int uid = sc.nextInt();
+                    long uid = sc.nextLong();
                     builder.infect(uid);
                     writer.println("As a result of infecting user: " + uid + ", " + builder.getComponent(uid).size() + " users are infected");
                     writer.println("These users' new version is: " + builder.getComponent(uid).getVersion());
                 } catch (NoSuchElementException | IllegalStateException ex) {
                     writer.println("invalid command, it should be: " + INFECT + " <number>, or enter help");
-                } catch (NoSuchUserException e) {
+                } catch (NoSuchUserException | UncheckedIOException e) {
                     writer.println(e.getMessage());
                 }
             } else if (cmd.startsWith(LIMIT_APPROX)) {
@@ -115,22 +345,194 @@ public class Shell {
                 } catch (NoSuchElementException | IllegalStateException ex) {
                     writer.println("invalid command, it should be: " + LIMIT_APPROX + " <number>, or enter help");
                 }
+            } else if (cmd.startsWith(LIMIT_PARTIAL)) {
+                try {
+                    Scanner sc = new Scanner(cmd.substring(LIMIT_PARTIAL.length()));
+                    long uid = sc.nextLong();
+                    int limit = sc.nextInt();
+                    if (builder.hasEdges()) {
+                        PartialInfection infected = builder.infectPartial(uid, limit);
+                        writer.println("Infected " + infected.size() + " users around user: " + uid + ", their new version is: "
+                                + builder.getUserVersion(uid) + ", coach-student pairs split: " + infected.cutEdges());
+                    } else {
+                        writer.println("The edges of this graph are not kept, run setup first");
+                    }
+                } catch (NoSuchElementException | IllegalStateException ex) {
+                    writer.println("invalid command, it should be: " + LIMIT_PARTIAL + " <user id> <number>, or enter help");
+                } catch (NoSuchUserException | UncheckedIOException e) {
+                    writer.println(e.getMessage());
+                }
             } else if (cmd.startsWith(LIMIT_EXACT)) {
                 try {
                     Scanner sc = new Scanner(cmd).useDelimiter(LIMIT_EXACT + "\\s+");
                     int limit = sc.nextInt();
-                    writer.println("Requires finding all subsets of a give set -- exponential algorithm -- not yet implemented ...");
+                    Set<Component> infected = builder.limitExact(limit);
+                    if (infected == null) {
+                        writer.println(0);
+                    } else {
+                        writer.println(1);
+                        report(infected, writer);
+                    }
+                    writer.println(builder.indexStats());
                 } catch (NoSuchElementException | IllegalStateException ex) {
                     writer.println("invalid command, it should be: " + LIMIT_EXACT + " <number>, or enter help");
                 }
+            } else if (cmd.startsWith(POPULATION + " ")) {
+                try {
+                    Scanner sc = new Scanner(cmd.substring(POPULATION.length()));
+                    int version = sc.nextInt();
+                    writer.println(builder.population(version) + " user(s) are on version: " + version);
+                } catch (NoSuchElementException | IllegalStateException ex) {
+                    writer.println("invalid command, it should be: " + POPULATION + " <version>, or enter help");
+                }
+            } else if (HISTORY.equals(cmd) || cmd.startsWith(HISTORY + " ")) {
+                try {
+                    Scanner sc = new Scanner(cmd.substring(HISTORY.length()));
+                    history(builder, sc.hasNext() ? builder.historyOf(sc.nextLong()) : null, writer);
+                } catch (NoSuchElementException | IllegalStateException ex) {
+                    writer.println("invalid command, it should be: " + HISTORY + " [user id], or enter help");
+                } catch (NoSuchUserException e) {
+                    writer.println(e.getMessage());
+                }
+            } else if (STATS.equals(cmd)) {
+                writer.print(Metrics.get());
+            } else if ((STATS + " reset").equals(cmd)) {
+                Metrics.get().reset();
+            } else if (JOURNAL.equals(cmd) || (JOURNAL + " reset").equals(cmd)) {
+                try {
+                    Journal journal = Journal.get();
+                    if (journal == null) {
+                        writer.println("There is no journal, start with -Dkai.journal=<file>");
+                    } else {
+                        if (cmd.endsWith(" reset")) {
+                            journal.reset();
+                            builder.attach(journal);
+                        }
+                        writer.println(journal);
+                    }
+                } catch (IOException | IllegalArgumentException e) {
+                    writer.println("could not open the journal: " + e.getMessage());
+                }
             } else {
                 writer.println("I did not get that, here's some help for you to help me :-)");
                 printHelp(writer);
             }
+            String name = commandName(cmd);
+            if (name != null)
+                Metrics.get().command(name, System.nanoTime() - started);
             printPrompt(writer);
         }
     }
 
+    /**
+     * Runs the commands of the given reader, one per line, and prints one machine-readable reply per command, see
+     * {@link QueryProtocol}. Empty lines and lines that start with # are skipped, quit stops.
+     */
+    static void batch(Reader in) throws IOException {
+        QueryProtocol protocol = new QueryProtocol(new ComponentBuilder());
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out)));
+        try (BufferedReader reader = new BufferedReader(in)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#"))
+                    continue;
+                if (QUIT.equalsIgnoreCase(line) || "q".equalsIgnoreCase(line))
+                    break;
+                out.println(protocol.execute(line));
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Serves the commands on the given localhost port until the process is stopped, see {@link QueryServer}.
+     */
+    static void serve(int port) throws IOException {
+        QueryServer server = new QueryServer(new QueryProtocol(new ComponentBuilder()), port);
+        System.out.println("Serving on localhost:" + server.port() + ", send setup first");
+        server.serve();
+    }
+
+    /**
+     * Replays the journal, if there is one, on top of the graph that was just set up or restored, and journals what
+     * changes it from now on.
+     */
+    private static void replay(ComponentBuilder builder, PrintWriter writer) {
+        try {
+            Journal journal = Journal.get();
+            if (journal == null)
+                return;
+            long start = System.nanoTime();
+            long[] n = builder.attach(journal);
+            writer.printf("Replayed %d journal record(s), %d skipped, in %d ms%n", n[0], n[1], (System.nanoTime() - start) / 1000000);
+        } catch (IOException | IllegalArgumentException e) {
+            writer.println("could not replay the journal: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @param arg String the ids of a batch, separated by blanks or commas, or the name of a file that lists them
+     * @return long[] the ids
+     * @throws IOException if the file can't be read or the ids are malformed
+     */
+    static long[] batchIds(String arg) throws IOException {
+        if (!arg.isEmpty() && Character.isDigit(arg.charAt(0)))
+            return GraphScanner.readIds(ByteBuffer.wrap(arg.getBytes(StandardCharsets.US_ASCII)));
+        return GraphScanner.readIds(new File(arg));
+    }
+
+    /**
+     * @param cmd String a command line, in lower case
+     * @return String the command it runs, or null for anything else, so that typos don't get latencies of their own
+     */
+    static String commandName(String cmd) {
+        int end = 0;
+        while (end < cmd.length() && !Character.isWhitespace(cmd.charAt(end)))
+            end += 1;
+        for (String c : COMMANDS)
+            if (c.length() == end && cmd.startsWith(c))
+                return c;
+        return null;
+    }
+
+    private static void groups(ComponentBuilder builder, Scanner sc, PrintWriter writer) {
+        String mode = sc.hasNext() ? sc.next() : "";
+        if (mode.isEmpty()) {
+            writer.printf("There are %d components or groups. Details:%n", builder.getNumberOfComponents());
+            builder.printComponents(writer, 0, Integer.MAX_VALUE);
+        } else if ("top".equals(mode)) {
+            int i = 1;
+            for (Component group : builder.largest(sc.nextInt()))
+                writer.printf("%d) Id user: %d, #users: %d, version: %d%n", i++, group.identifier().id, group.size(), group.getVersion());
+        } else if ("page".equals(mode)) {
+            int page = sc.nextInt();
+            int pages = (builder.getNumberOfComponents() + GROUPS_PAGE - 1) / GROUPS_PAGE;
+            if (page < 1 || page > pages)
+                throw new IllegalArgumentException("no such page: " + page);
+            builder.printComponents(writer, (long) (page - 1) * GROUPS_PAGE, GROUPS_PAGE);
+            writer.printf("Page %d of %d%n", page, pages);
+        } else if ("summary".equals(mode)) {
+            writer.print(builder.groupsSummary());
+        } else {
+            throw new IllegalArgumentException("no such mode: " + mode);
+        }
+    }
+
+    /**
+     * Prints the given entries of the history, or all of them if there are none given, a line each.
+     */
+    private static void history(ComponentBuilder builder, int[] entries, PrintWriter writer) {
+        History h = builder.history();
+        int n = entries == null ? h.size() : entries.length;
+        for (int j = 0; j < n; j++) {
+            int i = entries == null ? j : entries[j];
+            writer.printf("%s group: %d, version: %d -> %d, #users: %d%n", Instant.ofEpochMilli(h.time(i)),
+                    builder.id(h.root(i)), h.from(i), h.to(i), h.users(i));
+        }
+        writer.printf("------ Infections: %d%n", n);
+    }
+
     private static void report(Set<Component> infected, PrintWriter writer) {
         long sum = 0L;
         for (Component group : infected) {
@@ -153,24 +555,62 @@ public class Shell {
     }
 
     private static void printHelp(PrintWriter writer) {
+        writer.println("apply:   Accepts a file name and links all the coach/student lines in it (graph.conf lines,\n" +
+                "                without the first one) into the current testbed. Versions are kept.");
         writer.println("cls:     Clears the screen.");
+        writer.println("coaches: Accepts a user id and prints the ids of the users who coach that user.");
         writer.println("groups:  Prints some details of current connected components. A group's id is denoted by the\n" +
-                "                user-id of the user that is its identifier.");
+                "                user-id of the user that is its identifier. Also: groups top <k> for the k biggest\n" +
+                "                ones, groups page <n> for the n-th page of " + GROUPS_PAGE + ", groups summary for counts by size.");
         writer.println("help:    Prints this message.");
+        writer.println("history: Prints every infection so far, oldest first: when, the group, the old and the new\n" +
+                "                version and the number of users. history <user id> prints the ones that reached\n" +
+                "                the group of that user (or a group that merged into it since).");
+        writer.println("infect-batch: Like predict-batch, but infects the groups, each once however many of its\n" +
+                "                members are listed.");
         writer.println("infect:  Accepts the starting user id and that user + all users connected to that user are\n" +
                 "                infected. Each infected user's current version is incremented by 1.");
+        writer.println("journal: Prints where the infections, links and unlinks are journaled (-Dkai.journal=<file>),\n" +
+                "                replayed after every setup and restore. journal reset empties it, after a snapshot.");
         writer.println("limit~:  Accepts a number that denotes the maximum number of users that could be affected.\n" +
                 "                The command then comes up with one possible selection of groups that infects\n" +
                 "                approximately that many users. Printed groups give the 'approximate limited infection'.");
+        writer.println("limit<:  Accepts a user id and a number N and infects exactly N users around that user (or the\n" +
+                "                whole group, if it is smaller), a classroom (a coach and the students) at a time, so\n" +
+                "                that few coach-student pairs end up on different versions. For limits below every group.");
         writer.println("limit=:  Accepts a number that denotes the maximum number of users that could be infected.\n" +
                 "                The command then prints 0 if it is not possible and 1, followed by the group-ids that\n" +
                 "                may yield such 'limited infection'. The policy implemented is: a connected component\n" +
-                "                is either infected or not. (NP-complete?)");
+                "                is either infected or not. Answered from an index of all the reachable totals, which\n" +
+                "                is built on the first query after a setup (-Dkai.index.cap caps it, 4M by default).");
+        writer.println("link:    Accepts a coach id and a student id and links them into the current testbed. Versions\n" +
+                "                are kept, merging groups on different versions is reported as a conflict.");
+        writer.println("population: Accepts a version and prints how many users are on it, in O(1).");
         writer.println("predict: Accepts the starting user id and predicts the number of infected users should the\n" +
                 "                starting user id be infected by the infect command.");
+        writer.println("predict-batch: Accepts user ids, or the name of a file that lists them, and prints the\n" +
+                "                distinct groups they are in, each once, and the number of users in all of them.");
+        writer.println("psetup:  Accepts an optional number of threads (all cores by default) and sets up the testbed\n" +
+                "                from graph.conf in parallel. Reports the speedup over the last setup, if any.");
         writer.println("quit:    Quits the program.");
+        writer.println("restore: Accepts a file name and loads the testbed from it, see snapshot.");
         writer.println("setup:   Sets up the testbed from a file named graph.conf.");
+        writer.println("stats:   Prints the lines parsed, the unions, the merge work, the limit tables and the\n" +
+                "                latency percentiles of every command since the start (or stats reset).");
+        writer.println("ssetup:  Accepts an optional number of processes (all cores by default) and sets up the\n" +
+                "                testbed from graph.conf in that many worker JVMs, which only hand back the components\n" +
+                "                they found (-Dkai.shard.jvm passes them options). The edges are not kept.");
+        writer.println("students: Accepts a user id and prints the ids of the users that user coaches.");
+        writer.println("snapshot: Accepts a file name and saves the components and the versions of all the users into\n" +
+                "                it, in a compact binary format that restore loads in a fraction of the setup time.");
+        writer.println("unlink:  Accepts a coach id and a student id and removes the edge between them. If that was\n" +
+                "                the last path between the two, their group splits in two. Versions are kept.");
         writer.println("version: Accepts a user-id and returns the version that user is on. Versions start at 1 and \n" +
                 "         increment by 1 on infection (no semver here ;)).");
+        writer.println("xsetup:  Accepts a file name and sets up the testbed from graph.conf out of core: the\n" +
+                "                components are found with only an int per user in memory (-Dkai.columns=mapped:dir\n" +
+                "                takes that off the heap too), the edges are sorted in runs of -Dkai.external.run on\n" +
+                "                disk, and the result is written to the file as a snapshot. The testbed is left\n" +
+                "                as it is: restore the file to query it, which takes the memory of a setup.");
     }
 }
@@ -0,0 +1,156 @@
+package org.kedar.kai;
+
+import java.io.Closeable;
+import java.util.BitSet;
+
+/**
+ * The roots of a {@link UnionFind}, by the size of their sets: how many sets there are of each size, which sizes
+ * occur at all, in order, and the roots of each size in a doubly linked list. The forest keeps it up to date on
+ * every union, split and added user, in O(1) each (a bit flip when a size appears or disappears), so the biggest
+ * components, the histogram of the sizes and the size classes of the limit~/limit= tables are read off it without
+ * a pass over all the users or a sort.
+ * <p>
+ * The sizes go from 1 to the capacity of the forest, so a bitset of them has as many bits as there are slots, and
+ * walking it in order costs O(capacity / 64) at most. There are far fewer distinct sizes than components in any
+ * real graph (at most about the square root of twice the number of users), so everything that walks the sizes is
+ * cheap.
+ * </p>
+ * <p>
+ * The four per-slot lists are {@link IntColumn}s like the rest of the forest, so they sit wherever
+ * <code>-Dkai.columns</code> puts the other columns; only the bitset of the sizes, one bit per slot, is on the heap.
+ * </p>
+ *
+ * @author kedar
+ */
+final class SizeIndex implements Closeable {
+    private final IntColumn count;    // count[s] = number of roots whose set has s members
+    private final IntColumn head;     // head[s] = a root of size s, -1 if there is none
+    private final IntColumn nextRoot; // the roots of the same size, in a doubly linked list ended by -1
+    private final IntColumn prevRoot;
+    private final BitSet sizes = new BitSet(); // the sizes whose count is not 0
+
+    SizeIndex(int capacity) {
+        count = IntColumn.of(capacity + 1);
+        head = IntColumn.of(capacity + 1);
+        head.fill(0, capacity + 1, -1);
+        nextRoot = IntColumn.of(capacity);
+        prevRoot = IntColumn.of(capacity);
+    }
+
+    /**
+     * @param capacity int the new number of slots of the forest
+     */
+    void grow(int capacity) {
+        if (capacity <= nextRoot.length())
+            return;
+        int old = head.length();
+        count.grow(capacity + 1);
+        head.grow(capacity + 1);
+        head.fill(old, capacity + 1, -1);
+        nextRoot.grow(capacity);
+        prevRoot.grow(capacity);
+    }
+
+    void add(int root, int size) {
+        int h = head.get(size);
+        nextRoot.set(root, h);
+        prevRoot.set(root, -1);
+        if (h >= 0)
+            prevRoot.set(h, root);
+        head.set(size, root);
+        int c = count.get(size);
+        count.set(size, c + 1);
+        if (c == 0)
+            sizes.set(size);
+    }
+
+    void remove(int root, int size) {
+        int p = prevRoot.get(root), n = nextRoot.get(root);
+        if (p >= 0)
+            nextRoot.set(p, n);
+        else
+            head.set(size, n);
+        if (n >= 0)
+            prevRoot.set(n, p);
+        int c = count.get(size) - 1;
+        count.set(size, c);
+        if (c == 0)
+            sizes.clear(size);
+    }
+
+    /**
+     * @return int number of sets of the given size
+     */
+    int count(int size) {
+        return size < count.length() ? count.get(size) : 0;
+    }
+
+    /**
+     * @return int a root of the given size, -1 if there is none; {@link #next(int)} gives the others
+     */
+    int first(int size) {
+        return size < head.length() ? head.get(size) : -1;
+    }
+
+    /**
+     * @return int the root after the given one in the list of its size, -1 at the end
+     */
+    int next(int root) {
+        return nextRoot.get(root);
+    }
+
+    /**
+     * @return int the size of the biggest sets, 0 if there are none
+     */
+    int largest() {
+        return Math.max(0, sizes.length() - 1);
+    }
+
+    /**
+     * @return int the smallest size that occurs and is at least the given one, -1 if there is none
+     */
+    int atLeast(int size) {
+        return sizes.nextSetBit(size);
+    }
+
+    /**
+     * @return int the biggest size that occurs and is at most the given one, -1 if there is none
+     */
+    int atMost(int size) {
+        return size < 0 ? -1 : sizes.previousSetBit(size);
+    }
+
+    /**
+     * @return int number of distinct sizes
+     */
+    int distinct() {
+        return sizes.cardinality();
+    }
+
+    /**
+     * @param p     double a fraction, e.g. 0.9
+     * @param roots int number of sets
+     * @return int the size of the set at that rank, smallest first, 0 if there are no sets
+     */
+    int percentile(double p, int roots) {
+        long rank = Math.max(1, (long) Math.ceil(p * roots)), seen = 0;
+        for (int s = atLeast(1); s >= 0; s = atLeast(s + 1)) {
+            seen += count.get(s);
+            if (seen >= rank)
+                return s;
+        }
+        return 0;
+    }
+
+    long bytes() {
+        return count.bytes() + head.bytes() + nextRoot.bytes() + prevRoot.bytes() + sizes.size() / 8;
+    }
+
+    @Override
+    public void close() {
+        count.close();
+        head.close();
+        nextRoot.close();
+        prevRoot.close();
+    }
+}
@@ -0,0 +1,201 @@
+package org.kedar.kai;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Saves the state of a {@link ComponentBuilder} into a compact binary file and loads it back, so that a restart
+ * does not have to parse graph.conf again and does not lose the versions that infections changed. The file is
+ * little-endian and is made of packed int arrays, plus the ids if they are sparse:
+ * <pre>
+ *     magic    : int, "KAIS"
+ *     format   : int, 4
+ *     capacity : int, number of slots, i.e. the number of vertices + 1
+ *     labels   : int[capacity], the root of the component of each user, -1 for a slot that is not a user
+ *     versions : int[capacity], the version each user is on, 0 for a slot that is not a user
+ *     edges    : int, the number of coach to student edges, -1 if the edges were not kept
+ *     offsets  : int[capacity + 1], only if there are edges, the rows of the {@link Adjacency} store
+ *     students : int[edges], only if there are edges, the targets of the rows
+ *     sparse   : int, 1 if the user ids are sparse, 0 if they are the slots
+ *     ids      : long[capacity], only if the ids are sparse, the user id of each slot, 0 for a slot that is not a user
+ *     journal  : long, the id of the {@link Journal} the builder was writing to, 0 if none
+ *     journaled: long, how many of its records the state includes, the replay after a restore starts there
+ * </pre>
+ * It is written through a {@link FileChannel} with a direct buffer and loaded by memory-mapping it, window by
+ * window, with bulk copies into the arrays. Format 1 files, which end after the versions, format 2 files, which
+ * end after the edges, and format 3 files, which end after the ids, are still loaded, as including no journal records.
+ *
+ * @author kedar
+ */
+final class Snapshot {
+    static final int MAGIC = 0x4B414953;
+    static final int FORMAT = 4;
+    private static final int HEADER_BYTES = 12;
+    private static final int WINDOW_INTS = 1 << 26; // 256 MB mapped at a time
+
+    private Snapshot() {
+    }
+
+    /**
+     * @param builder ComponentBuilder whose state is saved
+     * @param file    File to write, it is overwritten
+     * @return long number of bytes written
+     */
+    static long save(ComponentBuilder builder, File file) throws IOException {
+        int capacity = builder.getNumberOfVertices() + 1;
+        ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            channel.truncate(0);
+            buf.putInt(MAGIC).putInt(FORMAT).putInt(capacity);
+            for (int i = 0; i < capacity; i++) {
+                if (!buf.hasRemaining())
+                    drain(buf, channel);
+                buf.putInt(builder.label(i));
+            }
+            for (int i = 0; i < capacity; i++) {
+                if (!buf.hasRemaining())
+                    drain(buf, channel);
+                buf.putInt(builder.label(i) < 0 ? 0 : builder.storedVersion(i));
+            }
+            Adjacency edges = builder.edges();
+            if (!buf.hasRemaining())
+                drain(buf, channel);
+            buf.putInt(edges == null ? -1 : edges.edges());
+            if (edges != null) {
+                int[] offsets = edges.outOffsets(), targets = edges.outTargets();
+                for (int v = 0; v <= capacity; v++) { // the store may have spare rows past the last user, all empty
+                    if (!buf.hasRemaining())
+                        drain(buf, channel);
+                    buf.putInt(offsets[v]);
+                }
+                for (int t : targets) {
+                    if (!buf.hasRemaining())
+                        drain(buf, channel);
+                    buf.putInt(t);
+                }
+            }
+            if (!buf.hasRemaining())
+                drain(buf, channel);
+            buf.putInt(builder.isSparse() ? 1 : 0);
+            if (builder.isSparse()) {
+                for (int i = 0; i < capacity; i++) {
+                    if (buf.remaining() < 8)
+                        drain(buf, channel);
+                    buf.putLong(builder.label(i) < 0 ? 0 : builder.id(i));
+                }
+            }
+            if (buf.remaining() < 16)
+                drain(buf, channel);
+            buf.putLong(builder.journalId()).putLong(builder.journaled());
+            drain(buf, channel);
+            channel.force(false);
+            return channel.size();
+        }
+    }
+
+    /**
+     * @param file File written by {@link #save(ComponentBuilder, File)}
+     * @return ComponentBuilder with the components and versions that were saved
+     */
+    static ComponentBuilder load(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            if (channel.size() < HEADER_BYTES)
+                throw new IOException("not a snapshot: " + file);
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt() != MAGIC)
+                throw new IOException("not a snapshot: " + file);
+            int format = header.getInt();
+            if (format < 1 || format > FORMAT)
+                throw new IOException("unsupported snapshot format: " + format + ", expected: " + FORMAT);
+            int capacity = header.getInt();
+            long pos = HEADER_BYTES + 8L * capacity;
+            if (channel.size() < pos)
+                throw new IOException("truncated snapshot: " + file);
+            int[] labels = new int[capacity];
+            int[] versions = new int[capacity];
+            read(channel, HEADER_BYTES, labels);
+            read(channel, HEADER_BYTES + 4L * capacity, versions);
+            Adjacency edges = null;
+            if (format > 1) {
+                if (channel.size() < pos + 4)
+                    throw new IOException("truncated snapshot: " + file);
+                int[] m = new int[1];
+                read(channel, pos, m);
+                pos += 4;
+                if (m[0] >= 0) {
+                    if (channel.size() < pos + 4L * (capacity + 1L + m[0]))
+                        throw new IOException("truncated snapshot: " + file);
+                    int[] offsets = new int[capacity + 1];
+                    int[] targets = new int[m[0]];
+                    read(channel, pos, offsets);
+                    read(channel, pos + 4L * offsets.length, targets);
+                    pos += 4L * (offsets.length + targets.length);
+                    edges = Adjacency.fromRows(offsets, targets);
+                }
+            }
+            long[] ids = null;
+            if (format > 2) {
+                if (channel.size() < pos + 4)
+                    throw new IOException("truncated snapshot: " + file);
+                int[] sparse = new int[1];
+                read(channel, pos, sparse);
+                pos += 4;
+                if (sparse[0] == 1) {
+                    if (channel.size() < pos + 8L * capacity)
+                        throw new IOException("truncated snapshot: " + file);
+                    ids = new long[capacity];
+                    read(channel, pos, ids);
+                    pos += 8L * capacity;
+                }
+            }
+            long[] journal = new long[2];
+            if (format > 3) {
+                if (channel.size() < pos + 16)
+                    throw new IOException("truncated snapshot: " + file);
+                read(channel, pos, journal);
+                pos += 16;
+            }
+            if (channel.size() != pos)
+                throw new IOException("malformed snapshot: " + file);
+            ComponentBuilder builder = new ComponentBuilder(true, ids != null);
+            builder.restore(labels, versions, ids, edges);
+            builder.journaled(journal[0], journal[1]);
+            return builder;
+        }
+    }
+
+    private static void read(FileChannel channel, long offset, int[] into) throws IOException {
+        for (int done = 0; done < into.length; ) {
+            int n = Math.min(WINDOW_INTS, into.length - done);
+            IntBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, offset + 4L * done, 4L * n)
+                    .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            window.get(into, done, n);
+            done += n;
+        }
+    }
+
+    private static void read(FileChannel channel, long offset, long[] into) throws IOException {
+        for (int done = 0; done < into.length; ) {
+            int n = Math.min(WINDOW_INTS / 2, into.length - done);
+            LongBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, offset + 8L * done, 8L * n)
+                    .order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+            window.get(into, done, n);
+            done += n;
+        }
+    }
+
+    private static void drain(ByteBuffer buf, FileChannel channel) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining())
+            channel.write(buf);
+        buf.clear();
+    }
+}
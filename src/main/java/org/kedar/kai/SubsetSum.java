@@ -0,0 +1,143 @@
+package org.kedar.kai;
+
+import java.util.Arrays;
+
+/**
+ * The subset-sum table behind the limited infections: which totals up to a cap can be made by infecting whole
+ * components. Components are grouped by size first, so the input is a histogram -- <code>counts[i]</code> components
+ * of size <code>sizes[i]</code> -- and the problem is a bounded knapsack where weight and value are the same. Each
+ * size class is split into pieces of 1, 2, 4, ... components (the usual binary splitting), which turns it into a
+ * 0/1 knapsack over O(sum of log(count)) items instead of one item per component.
+ * <p>
+ * The table is a single bitset of the reachable totals, updated with word-wide shift-or operations, plus, for each
+ * total, the piece that first reached it. That piece was added to a total that was reachable before it, so
+ * following the pieces back from any reachable total reconstructs one selection. The memory is O(cap): cap/8 bytes
+ * for the bits and 4 bytes per total for the back pointers, regardless of the number of components.
+ * </p>
+ *
+ * @author kedar
+ */
+final class SubsetSum {
+    private final int cap;
+    private final long[] reach;
+    private final int[] from;       // from[t] = the piece that first reached total t
+    private final int[] pieceClass; // the size class of each piece
+    private final int[] pieceCount; // the number of components in each piece
+    private final int[] sizes;
+
+    /**
+     * Builds the table.
+     *
+     * @param sizes  int[] distinct component sizes, in increasing order
+     * @param counts int[] number of components of each size
+     * @param n      int number of size classes in the arrays
+     * @param cap    int the biggest total of interest
+     */
+    SubsetSum(int[] sizes, int[] counts, int n, int cap) {
+        this.cap = cap;
+        this.sizes = sizes;
+        this.reach = new long[(cap >>> 6) + 1];
+        this.from = new int[cap + 1];
+        int pieces = 0;
+        for (int c = 0; c < n; c++) {
+            for (int left = usable(sizes[c], counts[c]), m = 1; left > 0; left -= m, m <<= 1)
+                pieces += 1;
+        }
+        this.pieceClass = new int[pieces];
+        this.pieceCount = new int[pieces];
+        reach[0] = 1L; // the empty selection
+        int p = 0;
+        for (int c = 0; c < n; c++) {
+            for (int left = usable(sizes[c], counts[c]), m = 1; left > 0; left -= m, m <<= 1) {
+                int take = Math.min(m, left);
+                pieceClass[p] = c;
+                pieceCount[p] = take;
+                add(p, sizes[c] * take);
+                p += 1;
+            }
+        }
+    }
+
+    int cap() {
+        return cap;
+    }
+
+    boolean reachable(int total) {
+        return total >= 0 && total <= cap && (reach[total >>> 6] & (1L << total)) != 0;
+    }
+
+    /**
+     * @param limit int upper limit, at most the cap
+     * @return int the biggest reachable total that is not bigger than the limit
+     */
+    int best(int limit) {
+        int w = Math.min(limit, cap) >>> 6;
+        long word = reach[w] & (-1L >>> (63 - (Math.min(limit, cap) & 63)));
+        while (word == 0)
+            word = reach[--w]; // terminates, total 0 is always reachable
+        return (w << 6) + 63 - Long.numberOfLeadingZeros(word);
+    }
+
+    /**
+     * Reconstructs one selection that adds up to the given total.
+     *
+     * @param total int a reachable total
+     * @return int[] the number of components to pick from each size class
+     */
+    int[] select(int total) {
+        if (!reachable(total))
+            throw new IllegalArgumentException("total: " + total + " is not reachable");
+        int[] picked = new int[sizes.length];
+        while (total > 0) {
+            int p = from[total];
+            picked[pieceClass[p]] += pieceCount[p];
+            total -= sizes[pieceClass[p]] * pieceCount[p];
+        }
+        return picked;
+    }
+
+    /**
+     * @param size int a component size
+     * @return int the size class it belongs to, or -1 if no component of that size is in the table
+     */
+    int sizeClass(int size) {
+        int c = Arrays.binarySearch(sizes, size);
+        return c >= 0 ? c : -1;
+    }
+
+    /**
+     * @return long bytes taken by the table
+     */
+    long bytes() {
+        return 8L * reach.length + 4L * from.length + 8L * pieceClass.length;
+    }
+
+    private int usable(int size, int count) {
+        return size > cap ? 0 : Math.min(count, cap / size); // more than cap/size of them can never fit
+    }
+
+    /**
+     * reach |= reach << weight, recording the piece for every total that becomes reachable. The words are visited
+     * from the top, so the words a shifted word is made of have not been updated yet: a piece is used at most once.
+     */
+    private void add(int piece, int weight) {
+        int q = weight >>> 6, r = weight & 63;
+        for (int i = reach.length - 1; i >= q; i--) {
+            long shifted = reach[i - q] << r;
+            if (r != 0 && i - q - 1 >= 0)
+                shifted |= reach[i - q - 1] >>> (64 - r);
+            long fresh = shifted & ~reach[i];
+            if (fresh == 0)
+                continue;
+            reach[i] |= fresh;
+            for (long bits = fresh; bits != 0; bits &= bits - 1) {
+                int t = (i << 6) + Long.numberOfTrailingZeros(bits);
+                if (t > cap) {
+                    reach[i] &= ~(1L << t); // keep the bits past the cap clear
+                    continue;
+                }
+                from[t] = piece;
+            }
+        }
+    }
+}
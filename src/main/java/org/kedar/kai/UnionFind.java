@@ -0,0 +1,249 @@
+package org.kedar.kai;
+
+import java.io.Closeable;
+
+/**
+ * A disjoint-set forest over the user slots, kept entirely in int columns, on the heap or off it (see
+ * {@link IntColumn}), without an object per user. This is the engine behind
+ * {@link ComponentBuilder}: union by size keeps the trees shallow and path compression flattens them further
+ * on every lookup, so both operations are practically O(1).
+ * <p>
+ * Besides the classic parent and size arrays, a third array, <code>next</code>, threads the members of each set
+ * into a circular list. Splicing two such lists is O(1), so a union never touches the members of either set, yet
+ * all the members of a set can still be walked in time proportional to its size -- this is what lets
+ * {@link Component} build its member view lazily.
+ * </p>
+ * A slot whose size is 0 is not (yet) a user; {@link #add(int)} makes it one.
+ * <p>
+ * The roots by size, a {@link SizeIndex}, are built on the first call to {@link #bySize()} and kept up to date by
+ * every change from then on. Until then, the unions of a setup do not pay for them.
+ * </p>
+ *
+ * @author kedar
+ */
+final class UnionFind implements Closeable {
+    private final IntColumn parent;
+    private final IntColumn size; // meaningful only for the roots, but never 0 for a slot that is a user
+    private final IntColumn next; // circular list of the members of a set
+    private int count;        // number of disjoint sets
+    private SizeIndex bySize; // null until someone asks for it
+
+    UnionFind(int capacity) {
+        this.parent = IntColumn.of(capacity);
+        this.size = IntColumn.of(capacity);
+        this.next = IntColumn.of(capacity);
+        this.count = 0;
+    }
+
+    int capacity() {
+        return parent.length();
+    }
+
+    /**
+     * Makes room for more slots, the new ones are not users.
+     *
+     * @param capacity int the new number of slots
+     */
+    void grow(int capacity) {
+        if (capacity <= parent.length())
+            return;
+        parent.grow(capacity);
+        size.grow(capacity);
+        next.grow(capacity);
+        if (bySize != null)
+            bySize.grow(capacity);
+    }
+
+    boolean contains(int i) {
+        return i >= 0 && i < size.length() && size.get(i) != 0;
+    }
+
+    /**
+     * Makes the given slot a singleton set, unless it is one already.
+     *
+     * @param i int the slot
+     * @return true if the slot was added, false if it was already present
+     */
+    boolean add(int i) {
+        if (size.get(i) != 0)
+            return false;
+        parent.set(i, i);
+        size.set(i, 1);
+        next.set(i, i);
+        count += 1;
+        if (bySize != null)
+            bySize.add(i, 1);
+        return true;
+    }
+
+    /**
+     * Adds the given slot straight into the set of the given root, in O(1). This is for copying a finished forest,
+     * see {@link ComponentBuilder#adopt(ConcurrentUnionFind)}.
+     *
+     * @param i    int a slot that is not present
+     * @param root int a root
+     */
+    void attach(int i, int root) {
+        if (bySize != null) {
+            bySize.remove(root, size.get(root));
+            bySize.add(root, size.get(root) + 1);
+        }
+        parent.set(i, root);
+        size.set(i, 1);
+        size.add(root, 1);
+        next.set(i, next.get(root));
+        next.set(root, i);
+    }
+
+    /**
+     * Finds the root of the set that contains the given slot, compressing the path on the way.
+     *
+     * @param i int a slot that is present
+     * @return int the root of its set
+     */
+    int find(int i) {
+        int root = i;
+        while (parent.get(root) != root)
+            root = parent.get(root);
+        while (parent.get(i) != root) { // second pass: point everything on the path directly to the root
+            int p = parent.get(i);
+            parent.set(i, root);
+            i = p;
+        }
+        return root;
+    }
+
+    /**
+     * Merges the sets that contain the given slots, the smaller one goes under the root of the bigger one.
+     *
+     * @param a int a slot that is present
+     * @param b int another slot that is present
+     * @return int the root of the merged set, or -1 if the two were already in the same set
+     */
+    int union(int a, int b) {
+        int ra = find(a);
+        int rb = find(b);
+        if (ra == rb)
+            return -1;
+        if (winner(ra, rb) != ra) {
+            int t = ra;
+            ra = rb;
+            rb = t;
+        }
+        if (bySize != null) {
+            bySize.remove(ra, size.get(ra));
+            bySize.remove(rb, size.get(rb));
+            bySize.add(ra, size.get(ra) + size.get(rb));
+        }
+        parent.set(rb, ra);
+        size.add(ra, size.get(rb));
+        int t = next.get(ra); // splice the two member lists
+        next.set(ra, next.get(rb));
+        next.set(rb, t);
+        count -= 1;
+        return ra;
+    }
+
+    /**
+     * @param ra int a root
+     * @param rb int another root
+     * @return int the one of the two that stays a root when their sets are merged, the root of the bigger set
+     */
+    int winner(int ra, int rb) {
+        return size.get(ra) < size.get(rb) ? rb : ra;
+    }
+
+    /**
+     * Splits the set of the given root in two: the members marked in the bitmap become a set of their own. Both
+     * member lists are rebuilt and every member is pointed straight at its new root, in one walk over the set.
+     *
+     * @param root   int a root
+     * @param marked long[] bitmap of the members that move, some but not all of the members of the set
+     * @return int the root of the set of the marked members
+     */
+    int split(int root, long[] marked) {
+        int markedRoot = -1, restRoot = -1, markedTail = -1, restTail = -1, n = size.get(root), moved = 0;
+        int m = root;
+        for (int i = 0; i < n; i++) {
+            int following = next.get(m);
+            if ((marked[m >>> 6] & (1L << m)) != 0) {
+                if (markedRoot < 0)
+                    markedRoot = m;
+                else
+                    next.set(markedTail, m);
+                markedTail = m;
+                parent.set(m, markedRoot);
+                moved += 1;
+            } else {
+                if (restRoot < 0)
+                    restRoot = m;
+                else
+                    next.set(restTail, m);
+                restTail = m;
+                parent.set(m, restRoot);
+            }
+            m = following;
+        }
+        next.set(markedTail, markedRoot); // close both circles
+        next.set(restTail, restRoot);
+        size.set(markedRoot, moved); // the walk starts at the old root, so it stays the root of its side
+        size.set(restRoot, n - moved);
+        count += 1;
+        if (bySize != null) {
+            bySize.remove(root, n);
+            bySize.add(markedRoot, moved);
+            bySize.add(restRoot, n - moved);
+        }
+        return markedRoot;
+    }
+
+    /**
+     * @param root int a root, as returned by {@link #find(int)}
+     * @return int the number of members in its set
+     */
+    int size(int root) {
+        return size.get(root);
+    }
+
+    /**
+     * @param i int a slot that is present
+     * @return int the member that follows it in the circular member list of its set
+     */
+    int next(int i) {
+        return next.get(i);
+    }
+
+    boolean isRoot(int i) {
+        return size.get(i) != 0 && parent.get(i) == i;
+    }
+
+    int count() {
+        return count;
+    }
+
+    /**
+     * @return SizeIndex the roots by the size of their sets, built in one pass over the slots the first time
+     */
+    SizeIndex bySize() {
+        if (bySize == null) {
+            SizeIndex index = new SizeIndex(parent.length());
+            for (int i = parent.length() - 1; i >= 0; i--) // backwards, so that each list comes out in increasing order
+                if (isRoot(i))
+                    index.add(i, size.get(i));
+            bySize = index;
+        }
+        return bySize;
+    }
+
+    /**
+     * Lets go of the columns, see {@link IntColumn#close()}.
+     */
+    @Override
+    public void close() {
+        parent.close();
+        size.close();
+        next.close();
+        if (bySize != null)
+            bySize.close();
+    }
+}
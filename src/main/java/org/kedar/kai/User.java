@@ -1,49 +1,16 @@
 package org.kedar.kai;
 
-import java.util.Collections;
-import java.util.List;
-
 /**
- * Models the user, that is also the vertex in the graph.
+ * Models the user, that is also the vertex in the graph. The students and the coaches of a user are not kept here but
+ * in the {@link Adjacency} store of the builder, and neither is the version, which is kept per component by
+ * {@link Versions}. Users are not stored either: a {@link Component} makes them from the slots when it is asked for
+ * them, all the per-user state is in primitive columns.
  */
 final class User implements Comparable<User> {
-    final int id; // could be long?
-    /**
-     * Ids of the students that are coached by this user
-     */
-    private final List<User> students; //is int[] enough? ... perhaps
-    private int version;
-    private Component component;
+    final long id; // the slot of the user, unless the ids are sparse, see ComponentBuilder
 
-    User(int id, int version, List<User> students) {
+    User(long id) {
         this.id = id;
-        this.version = version;
-        this.component = null;
-        this.students = students;
-    }
-
-    User(int id) {
-        this(id, 1, Collections.<User>emptyList());
-    }
-
-    void infect(int version) {
-        this.version = version;
-    }
-
-    int version() {
-        return this.version;
-    }
-
-    void setComponent(Component c) {
-        this.component = c;
-    }
-
-    Component getComponent() {
-        return this.component;
-    }
-
-    List<User> getStudents() {
-        return students;
     }
 
     @Override
@@ -72,7 +39,7 @@ final class User implements Comparable<User> {
     }
     @Override
     public int hashCode() {
-        return id;
+        return Long.hashCode(id);
     }
     @Override
     public boolean equals(Object o) {
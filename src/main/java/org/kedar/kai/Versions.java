@@ -0,0 +1,306 @@
+package org.kedar.kai;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The version of every user, kept per component instead of per user, so that infecting a whole component is O(1)
+ * however big it is. Each root of the {@link UnionFind} forest has:
+ * <ul>
+ * <li>a base version, the version of every member that has no override, and</li>
+ * <li>an epoch, bumped to a fresh value of a global clock whenever the whole component moves to a new version.</li>
+ * </ul>
+ * The users whose version differs from the base of their component -- the ones a partial infection reached, or the
+ * ones of a smaller component merged into one on another version -- have an override in a sparse map, stamped with
+ * the epoch of their root at the time. An override is only valid while its stamp is the epoch of the user's root, so
+ * infecting a component invalidates all of its overrides at once, without visiting them.
+ * <p>
+ * For that to work, a stale stamp must never become valid again. A root gets a fresh epoch before the first override
+ * in its component is written, every epoch belongs to one root only, and the overrides of the users that leave a
+ * root -- by a merge or a split -- are restamped. A merge visits the members of the smaller component only, and only
+ * when they could read differently under the new root, so a stream of merges costs O(n log n) at worst.
+ * </p>
+ * <p>
+ * The number of users on each version is counted as the versions change, so that how many users a rollout reached
+ * is an O(1) lookup. A root with overrides also counts them by version, so infecting its component moves the members
+ * without an override off the base and the overridden ones off their versions, a counter per distinct version, and
+ * never walks the component. Every infection also goes into the {@link History}.
+ * </p>
+ *
+ * @author kedar
+ */
+final class Versions implements Closeable {
+    private final UnionFind forest;
+    private final IntColumn base;      // per root: the version of the members without an override
+    private final IntColumn epoch;     // per root: 0, or a value of the clock that no other root has
+    private final IntColumn overrides; // per root: the number of valid overrides among its members
+    private final IntLongMap stamped = new IntLongMap(); // user -> version << 32 | stamp
+    private final IntLongMap population = new IntLongMap(); // version -> number of users on it, none if 0
+    private final Map<Integer, IntLongMap> overridden = new HashMap<>(); // root -> version -> its valid overrides on it
+    private final History history = new History();
+    private int clock = 0;
+
+    Versions(UnionFind forest) {
+        this.forest = forest;
+        int capacity = forest.capacity();
+        this.base = IntColumn.of(capacity);
+        this.epoch = IntColumn.of(capacity);
+        this.overrides = IntColumn.of(capacity);
+    }
+
+    void grow(int capacity) {
+        base.grow(capacity);
+        epoch.grow(capacity);
+        overrides.grow(capacity);
+    }
+
+    /**
+     * Starts a new user, which is a component of its own, on the given version.
+     *
+     * @param u       int a slot that was just added to the forest
+     * @param version int its version
+     */
+    void add(int u, int version) {
+        base.set(u, version);
+        epoch.set(u, 0);
+        overrides.set(u, 0);
+        overridden.remove(u);
+        count(version, 1);
+    }
+
+    /**
+     * Puts a user that was just added, and is still a component of its own, on another version.
+     *
+     * @param u       int a slot that was just added to the forest
+     * @param version int its version
+     */
+    void rebase(int u, int version) {
+        count(base.get(u), -1);
+        base.set(u, version);
+        count(version, 1);
+    }
+
+    /**
+     * @param u int a user
+     * @return int the version the user is on
+     */
+    int of(int u) {
+        int root = forest.find(u);
+        return under(root, u);
+    }
+
+    /**
+     * Moves every member of the component to the version of its identifier + 1, in O(1), or O(distinct versions of
+     * its overrides) if it has any.
+     *
+     * @param root int a root
+     * @return int the new version
+     */
+    int infect(int root) {
+        int from = under(root, root), v = from + 1, size = forest.size(root);
+        count(base.get(root), -(size - overrides.get(root)));
+        IntLongMap byVersion = overridden.remove(root);
+        if (byVersion != null) {
+            for (int version : byVersion.keyArray())
+                count(version, -byVersion.get(version, 0));
+        }
+        count(v, size);
+        base.set(root, v);
+        epoch.set(root, ++clock); // all the overrides of the component go stale
+        overrides.set(root, 0);
+        history.record(root, from, v, size);
+        return v;
+    }
+
+    /**
+     * Moves one user to the given version.
+     *
+     * @param u       int a user
+     * @param version int the new version
+     */
+    void set(int u, int version) {
+        int root = forest.find(u);
+        int old = under(root, u);
+        if (old == version)
+            return;
+        count(old, -1);
+        count(version, 1);
+        boolean had = valid(root, u);
+        if (had)
+            tally(root, old, -1);
+        if (version == base.get(root)) {
+            if (had)
+                stamped.remove(u);
+            return;
+        }
+        fresh(root);
+        stamped.put(u, (long) version << 32 | epoch.get(root));
+        tally(root, version, 1);
+    }
+
+    /**
+     * Merges the components of the given roots, keeping the version of every member. The loser is the root
+     * {@link UnionFind#union(int, int)} puts under the other one.
+     *
+     * @param ra int a root
+     * @param rb int another root
+     * @return int the root of the merged component
+     */
+    int union(int ra, int rb) {
+        int winner = forest.winner(ra, rb), loser = winner == ra ? rb : ra;
+        if (base.get(winner) != base.get(loser) || overrides.get(loser) > 0) {
+            // the members of the loser would read differently under the winner, restate them, before the rings splice
+            int m = loser;
+            for (int i = forest.size(loser); i > 0; i--, m = forest.next(m)) {
+                int v = under(loser, m);
+                if (v == base.get(winner)) {
+                    stamped.remove(m);
+                } else {
+                    fresh(winner);
+                    stamped.put(m, (long) v << 32 | epoch.get(winner));
+                    tally(winner, v, 1);
+                }
+            }
+            Metrics.get().relabeled(forest.size(loser));
+        }
+        overridden.remove(loser);
+        forest.union(ra, rb);
+        return winner;
+    }
+
+    /**
+     * Splits off the marked members of the component of the given root, see {@link UnionFind#split(int, long[])}.
+     * Both parts keep the versions of their members; the part that does not keep the old epoch gets a fresh one and
+     * its overrides are restamped.
+     *
+     * @param root   int a root
+     * @param marked long[] bitmap of the members that move
+     * @return int the root of the marked members
+     */
+    int split(int root, long[] marked) {
+        int b = base.get(root), e = epoch.get(root), n = overrides.get(root);
+        boolean rootMoves = (marked[root >>> 6] & (1L << root)) != 0;
+        int unmarked = rootMoves ? firstUnmarked(root, marked) : root;
+        int markedRoot = forest.split(root, marked);
+        int moved = rootMoves ? forest.find(unmarked) : markedRoot; // the part whose root is new, it needs an epoch of its own
+        int kept = root;
+        base.set(moved, b);
+        epoch.set(moved, 0);
+        overrides.set(moved, 0);
+        overridden.remove(moved);
+        if (n > 0) {
+            int m = moved;
+            for (int i = forest.size(moved); i > 0; i--, m = forest.next(m)) {
+                long s = stamped.get(m, 0);
+                if (s != 0 && (int) s == e) {
+                    fresh(moved);
+                    stamped.put(m, (s & ~0xFFFFFFFFL) | epoch.get(moved));
+                    tally(moved, (int) (s >>> 32), 1);
+                    tally(kept, (int) (s >>> 32), -1); // the rest stay with the kept part
+                }
+            }
+            Metrics.get().relabeled(forest.size(moved));
+        }
+        base.set(kept, b);
+        epoch.set(kept, e);
+        return markedRoot;
+    }
+
+    /**
+     * @param version int a version
+     * @return long number of users on it, in O(1)
+     */
+    long population(int version) {
+        return version < 0 ? 0 : population.get(version, 0);
+    }
+
+    /**
+     * Counts the users on each version again, in a pass over all of them, for when the forest was filled in without
+     * going through {@link #add(int, int)} for every user.
+     */
+    void recount() {
+        population.clear();
+        for (int u = 0; u < forest.capacity(); u++)
+            if (forest.contains(u))
+                count(of(u), 1);
+    }
+
+    History history() {
+        return history;
+    }
+
+    /**
+     * @return int number of users with an override, valid or stale
+     */
+    int overrides() {
+        return stamped.size();
+    }
+
+    long bytes() {
+        return 12L * base.length() + stamped.bytes() + population.bytes() + history.bytes();
+    }
+
+    /**
+     * Lets go of the columns, see {@link IntColumn#close()}.
+     */
+    @Override
+    public void close() {
+        base.close();
+        epoch.close();
+        overrides.close();
+    }
+
+    private void count(int version, long delta) {
+        long n = population.get(version, 0) + delta;
+        if (n == 0)
+            population.remove(version);
+        else
+            population.put(version, n);
+    }
+
+    /**
+     * Adds to the valid overrides of a root, in all and on the given version.
+     */
+    private void tally(int root, int version, int delta) {
+        overrides.add(root, delta);
+        IntLongMap byVersion = overridden.get(root);
+        if (byVersion == null) {
+            byVersion = new IntLongMap(4);
+            overridden.put(root, byVersion);
+        }
+        long n = byVersion.get(version, 0) + delta;
+        if (n != 0) {
+            byVersion.put(version, n);
+        } else {
+            byVersion.remove(version);
+            if (byVersion.size() == 0)
+                overridden.remove(root);
+        }
+    }
+
+    private int under(int root, int u) {
+        long s = stamped.get(u, 0);
+        return s != 0 && (int) s == epoch.get(root) ? (int) (s >>> 32) : base.get(root);
+    }
+
+    private boolean valid(int root, int u) {
+        long s = stamped.get(u, 0);
+        return s != 0 && (int) s == epoch.get(root);
+    }
+
+    /**
+     * Gives the root an epoch of its own, if it does not have one yet. A root on epoch 0 has no overrides.
+     */
+    private void fresh(int root) {
+        if (epoch.get(root) == 0)
+            epoch.set(root, ++clock);
+    }
+
+    private int firstUnmarked(int root, long[] marked) {
+        int m = forest.next(root);
+        while ((marked[m >>> 6] & (1L << m)) != 0)
+            m = forest.next(m);
+        return m;
+    }
+}
@@ -10,10 +10,21 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class ComponentBuilderTest {
 
@@ -35,4 +46,511 @@ public class ComponentBuilderTest {
         assertEquals(1, b.getUserVersion(1));
         assertEquals(2, b.getNumberOfComponents());
     }
+
+    @Test
+    public void assertMergesAreResolvedThroughTheForest() throws IOException, NoSuchUserException {
+        ComponentBuilder b = build("8\n1 2\n3 4\n5 6,7\n2 3\n7 1\n8\n");
+        assertEquals(2, b.getNumberOfComponents());
+        assertEquals(7, b.predict(4));
+        assertEquals(1, b.predict(8));
+        assertEquals(7, b.getComponent(6).size());
+        int n = 0;
+        for (User u : b.getComponent(1))
+            n += 1;
+        assertEquals(7, n);
+        b.infect(3);
+        for (int uid = 1; uid <= 7; uid++)
+            assertEquals(2, b.getUserVersion(uid));
+        assertEquals(1, b.getUserVersion(8));
+    }
+
+    @Test(expected = NoSuchUserException.class)
+    public void assertUnknownUserIsReported() throws IOException, NoSuchUserException {
+        build("4\n1 2\n").predict(3);
+    }
+
+    @Test
+    public void assertMappedFileMatchesReader() throws IOException, NoSuchUserException {
+        String graph = "9\r\n1 2,3\r\n\n  \n4 5\n6 7,8\n5 6\n# the rest is ignored\n8 9\n";
+        File f = write(graph);
+        ComponentBuilder mapped = new ComponentBuilder();
+        mapped.process(f);
+        ComponentBuilder read = build(graph.replace("\r", ""));
+        assertEquals(read.getNumberOfVertices(), mapped.getNumberOfVertices());
+        assertEquals(read.getNumberOfComponents(), mapped.getNumberOfComponents());
+        assertEquals(2, mapped.getNumberOfComponents());
+        for (int uid = 1; uid <= 8; uid++)
+            assertEquals(read.predict(uid), mapped.predict(uid));
+    }
+
+    @Test
+    public void assertLimitApproxFindsTheBestTotal() throws IOException {
+        Random r = new Random(7);
+        for (int round = 0; round < 50; round++) {
+            // a handful of chains of random sizes, so that brute force stays cheap
+            int chains = 1 + r.nextInt(10);
+            int[] sizes = new int[chains];
+            StringBuilder graph = new StringBuilder();
+            int uid = 1;
+            for (int c = 0; c < chains; c++) {
+                sizes[c] = 1 + r.nextInt(c % 3 == 0 ? 3 : 40);
+                graph.append(uid);
+                for (int m = 1; m < sizes[c]; m++)
+                    graph.append(m == 1 ? ' ' : ',').append(uid + m);
+                graph.append('\n');
+                uid += sizes[c];
+            }
+            ComponentBuilder b = build((uid - 1) + "\n" + graph);
+            int limit = r.nextInt(150);
+            int best = 0;
+            for (int mask = 0; mask < (1 << chains); mask++) {
+                int total = 0;
+                for (int c = 0; c < chains; c++)
+                    if ((mask & (1 << c)) != 0)
+                        total += sizes[c];
+                if (total <= limit)
+                    best = Math.max(best, total);
+            }
+            int total = 0;
+            for (Component c : b.limitApprox(limit))
+                total += c.size();
+            assertEquals(best, total);
+        }
+    }
+
+    @Test
+    public void assertLimitExactAnswersFromTheIndex() throws IOException {
+        // components of sizes 3, 5, 5 and 1
+        ComponentBuilder b = build("14\n1 2,3\n4 5,6,7,8\n9 10,11,12,13\n14\n");
+        assertEquals(null, b.limitExact(2));
+        assertEquals(null, b.limitExact(12));
+        assertEquals(null, b.limitExact(15));
+        for (int limit : new int[]{0, 1, 3, 4, 5, 6, 8, 9, 10, 11, 13, 14}) {
+            int total = 0;
+            for (Component c : b.limitExact(limit))
+                total += c.size();
+            assertEquals(limit, total);
+        }
+        b.setIndexCap(4); // bigger limits get a table of their own
+        assertEquals(2, b.limitExact(10).size());
+        assertEquals(null, b.limitExact(7));
+        assertEquals(null, b.limitExact(2000000000)); // no table of 2G totals for a limit nothing can reach
+        int total = 0;
+        for (Component c : b.limitApprox(2000000000))
+            total += c.size();
+        assertEquals(14, total);
+        assertTrue(Metrics.get().getLastLimitTableBytes() < 1024);
+    }
+
+    @Test
+    public void assertEdgesAreKeptInBothDirections() throws IOException, NoSuchUserException {
+        ComponentBuilder b = build("6\n1 3,2,2\n4 2\n1 5\n6\n");
+        assertArrayEquals(new long[]{2, 3, 5}, b.students(1));
+        assertArrayEquals(new long[]{1, 4}, b.coaches(2));
+        assertArrayEquals(new long[0], b.students(2));
+        assertArrayEquals(new long[0], b.coaches(6));
+        assertEquals(4, b.edges().edges());
+        assertArrayEquals(new long[]{1, 4}, roundTrip(b).coaches(2));
+        ComponentBuilder parallel = new ComponentBuilder();
+        new ParallelLoader(2, 4).load(write("6\n1 3,2,2\n4 2\n1 5\n6\n"), parallel);
+        assertArrayEquals(new long[]{2, 3, 5}, parallel.students(1));
+        assertArrayEquals(new long[]{1, 4}, parallel.coaches(2));
+        assertEquals(false, new ComponentBuilder(false).hasEdges());
+    }
+
+    @Test
+    public void assertPartialInfectionTakesWholeClassroomsFirst() throws IOException, NoSuchUserException {
+        ComponentBuilder b = build("8\n1 2,3,4\n4 5\n5 6,7\n8\n");
+        PartialInfection p = b.infectPartial(1, 4);
+        assertEquals(4, p.size());
+        assertEquals(1, p.cutEdges()); // 4-5
+        for (int uid = 1; uid <= 4; uid++)
+            assertEquals(2, b.getUserVersion(uid));
+        assertEquals(1, b.getUserVersion(5));
+        p = b.infectPartial(1, 6);
+        assertEquals(6, p.size());
+        assertEquals(1, p.cutEdges()); // 5-7
+        assertEquals(3, b.getUserVersion(6));
+        assertEquals(1, b.getUserVersion(7));
+        assertEquals(7, b.infectPartial(2, 100).size()); // never beyond the component
+        assertEquals(0, b.infectPartial(2, 0).size());
+    }
+
+    @Test
+    public void assertPartialInfectionNeverTakesAUserBack() throws IOException, NoSuchUserException {
+        ComponentBuilder b = build("8\n1 2,3,4\n4 5\n5 6,7\n8\n");
+        b.infectPartial(1, 4);
+        b.infectPartial(4, 2); // 4 from version 2 and 5 from version 1, to 3
+        assertEquals(3, b.getUserVersion(4));
+        assertEquals(3, b.getUserVersion(5));
+        History h = b.history();
+        assertEquals(3, h.size());
+        assertEquals(1, h.from(1));
+        assertEquals(3, h.to(1));
+        assertEquals(1, h.users(1));
+        assertEquals(2, h.from(2));
+        assertEquals(1, h.users(2));
+        PartialInfection p = b.infectPartial(6, 5); // selects 6, 5, 7, 4 and 1, only 6 and 7 are below version 2
+        assertEquals(2, p.size());
+        assertEquals(3, b.getUserVersion(5));
+        assertEquals(2, b.getUserVersion(7));
+        assertEquals(1, b.population(1));
+        assertEquals(5, b.population(2));
+        assertEquals(2, b.population(3));
+        assertEquals(4, h.size());
+        assertEquals(2, h.users(3));
+    }
+
+    @Test
+    public void assertLinksMergeInPlaceAndKeepVersions() throws IOException, NoSuchUserException {
+        ComponentBuilder b = build("4\n1 2\n3 4\n");
+        b.infect(1);
+        LinkReport report = new LinkReport();
+        b.link(2, 3, report);
+        b.link(2, 3, report);
+        b.link(4, 9, report); // grows the graph
+        assertEquals(3, report.edges);
+        assertEquals(2, report.added);
+        assertEquals(1, report.newUsers);
+        assertEquals(2, report.merges);
+        assertEquals(1, report.conflicts());
+        assertEquals(9, b.getNumberOfVertices());
+        assertEquals(1, b.getNumberOfComponents());
+        assertEquals(5, b.predict(9));
+        assertEquals(2, b.getUserVersion(2));
+        assertEquals(1, b.getUserVersion(3));
+        assertArrayEquals(new long[]{3}, b.students(2));
+        assertArrayEquals(new long[]{4}, b.coaches(9));
+        assertEquals(2, b.getUserVersion(9));
+        assertEquals(5, b.infectPartial(1, 10).size());
+
+        report = b.apply(write("20 21,22\n23\n21 1\n"));
+        assertEquals(3, report.edges);
+        assertEquals(4, report.newUsers);
+        assertEquals(2, b.getNumberOfComponents());
+        assertEquals(8, b.predict(20));
+        assertArrayEquals(new long[]{21, 22}, roundTrip(b).students(20));
+        try {
+            b.apply(write("24 25\n" + Integer.MAX_VALUE + " 1\n"));
+            fail("an id past the forest should be rejected");
+        } catch (IllegalArgumentException expected) {
+            assertEquals(2, b.predict(24)); // the line before it is linked
+        }
+        int vertices = b.getNumberOfVertices();
+        try {
+            b.link(1, Integer.MAX_VALUE - 2, new LinkReport());
+            fail("an id that would grow the forest to 2G slots should be rejected");
+        } catch (IllegalArgumentException expected) {
+            assertEquals(vertices, b.getNumberOfVertices());
+        }
+        b.link(1, 1000000, new LinkReport()); // within the headroom
+        assertEquals(9, b.predict(20));
+    }
+
+    @Test
+    public void assertUnlinkSplitsOnlyWhenThePathIsGone() throws IOException, NoSuchUserException {
+        ComponentBuilder b = build("7\n1 2,3\n2 3\n3 4\n4 5,6\n7\n");
+        b.infect(5);
+        assertEquals(0, b.unlink(1, 3)); // 1-2-3 is still there
+        assertEquals(-1, b.unlink(1, 3));
+        assertEquals(2, b.getNumberOfComponents());
+        assertEquals(3, b.unlink(3, 4));
+        assertEquals(3, b.getNumberOfComponents());
+        assertEquals(3, b.predict(1));
+        assertEquals(3, b.predict(6));
+        assertEquals(2, b.getUserVersion(1));
+        assertEquals(2, b.getUserVersion(6));
+        assertArrayEquals(new long[]{2}, b.students(1));
+        LinkReport report = new LinkReport();
+        b.link(3, 4, report); // revives the removed edge
+        b.link(6, 7, report); // goes to the overlay
+        assertEquals(1, b.getNumberOfComponents());
+        assertEquals(1, b.unlink(6, 7));
+        assertEquals(6, b.predict(4));
+        assertEquals(1, b.predict(7));
+        assertEquals(5, b.edges().edges());
+
+        Random random = new Random(7);
+        int n = 300;
+        StringBuilder graph = new StringBuilder().append(n).append('\n');
+        for (int uid = 1; uid <= n; uid++)
+            graph.append(uid).append(' ').append(1 + random.nextInt(n)).append(',').append(1 + random.nextInt(n)).append('\n');
+        b = build(graph.toString());
+        for (int round = 0; round < 200; round++) {
+            int coach = 1 + random.nextInt(n);
+            long[] students = b.students(coach);
+            if (students.length > 0)
+                b.unlink(coach, students[random.nextInt(students.length)]);
+        }
+        StringBuilder left = new StringBuilder().append(n).append('\n');
+        for (int uid = 1; uid <= n; uid++) {
+            left.append(uid);
+            long[] ids = b.students(uid);
+            for (int i = 0; i < ids.length; i++)
+                left.append(i == 0 ? ' ' : ',').append(ids[i]);
+            left.append('\n');
+        }
+        ComponentBuilder expected = build(left.toString());
+        assertEquals(expected.getNumberOfComponents(), b.getNumberOfComponents());
+        for (int uid = 1; uid <= n; uid++)
+            assertEquals(expected.predict(uid), b.predict(uid));
+    }
+
+    @Test
+    public void assertLazyVersionsMatchPerUserVersions() throws IOException, NoSuchUserException {
+        Random random = new Random(11);
+        int n = 400;
+        StringBuilder graph = new StringBuilder().append(n).append('\n');
+        for (int uid = 1; uid <= n; uid += 4) // lots of small groups to merge
+            graph.append(uid).append(' ').append(uid + 1).append(',').append(uid + 2).append('\n').append(uid + 3).append('\n');
+        ComponentBuilder b = build(graph.toString());
+        int[] expected = new int[n + 1];
+        Arrays.fill(expected, 1);
+        for (int round = 0; round < 3000; round++) {
+            int u = 1 + random.nextInt(n), w = 1 + random.nextInt(n);
+            switch (random.nextInt(5)) {
+                case 0:
+                    int v = b.getComponent(u).getVersion() + 1;
+                    for (User member : b.getComponent(u))
+                        expected[(int) member.id] = v;
+                    b.infect(u);
+                    break;
+                case 1:
+                    v = expected[u] + 1;
+                    PartialInfection p = b.infectPartial(u, 1 + random.nextInt(8));
+                    for (int i = 0; i < p.size(); i++)
+                        expected[p.member(i)] = v;
+                    break;
+                case 2:
+                case 3:
+                    b.link(u, w, new LinkReport());
+                    break;
+                default:
+                    long[] students = b.students(u);
+                    if (students.length > 0)
+                        b.unlink(u, students[random.nextInt(students.length)]);
+            }
+            long[] population = new long[4 * round + 8];
+            for (int uid = 1; uid <= n; uid++) {
+                assertEquals(expected[uid], b.getUserVersion(uid));
+                population[expected[uid]]++;
+            }
+            for (int v = 0; v < population.length; v++) // infect moves these by the overrides it counted, not by a walk
+                assertEquals(population[v], b.population(v));
+        }
+        ComponentBuilder restored = roundTrip(b);
+        for (int uid = 1; uid <= n; uid++)
+            assertEquals(expected[uid], restored.getUserVersion(uid));
+    }
+
+    @Test
+    public void assertMetricsCountTheSetupAndTheMerges() throws IOException, NoSuchUserException {
+        Metrics m = Metrics.get();
+        long lines = m.getLinesParsed(), edges = m.getEdgesParsed(), unions = m.getUnions(), tables = m.getLimitTables();
+        ComponentBuilder b = build("6\n1 2,3\n4 5\n6\n");
+        assertEquals(lines + 3, m.getLinesParsed());
+        assertEquals(edges + 3, m.getEdgesParsed());
+        assertEquals(unions + 3, m.getUnions());
+        long relabeled = m.getUsersRelabeled();
+        b.infect(4);
+        b.link(1, 4, new LinkReport()); // {1, 2, 3} on 1 and {4, 5} on 2, the smaller one is restated
+        assertEquals(unions + 4, m.getUnions());
+        assertEquals(relabeled + 2, m.getUsersRelabeled());
+        b.limitExact(5);
+        assertEquals(tables + 1, m.getLimitTables());
+    }
+
+    @Test
+    public void assertGroupsStreamPagesAndTheLargestOnes() throws IOException {
+        ComponentBuilder b = build("12\n1 2\n3 4,5,6\n7 8,9\n10\n11\n12\n");
+        List<Component> top = b.largest(3);
+        assertEquals(3, top.size());
+        assertEquals(3, top.get(0).identifier().id);
+        assertEquals(4, top.get(0).size());
+        assertEquals(3, top.get(1).size());
+        assertEquals(2, top.get(2).size());
+        assertEquals(6, b.largest(100).size());
+
+        StringWriter sw = new StringWriter();
+        PrintWriter out = new PrintWriter(sw);
+        assertEquals(2, b.printComponents(out, 4, 2));
+        out.flush();
+        assertEquals("5) Id user: 11, #users: 1: [11]\n6) Id user: 12, #users: 1: [12]\n", sw.toString());
+        assertEquals("There are 6 components or groups, of 4 distinct sizes.\n  of size 1: 3\n  of sizes 2-3: 2\n"
+                + "  of sizes 4-7: 1\nSizes at the 50th, 90th and 99th percentile: 1, 4, 4\n"
+                + "The biggest one has identifier: 3, #users: 4, version: 1\n", b.groupsSummary());
+    }
+
+    @Test
+    public void assertTheSizeIndexFollowsLinksAndUnlinks() throws IOException, NoSuchUserException {
+        Random random = new Random(5);
+        int n = 300;
+        StringBuilder graph = new StringBuilder().append(n).append('\n');
+        for (int uid = 1; uid <= n; uid += 3)
+            graph.append(uid).append(' ').append(uid + 1).append(',').append(uid + 2).append('\n');
+        ComponentBuilder b = build(graph.toString());
+        b.limitExact(n); // builds the index, the rest keeps it up to date
+        for (int round = 0; round < 2000; round++) {
+            int u = 1 + random.nextInt(n + 20); // a few new users too
+            if (random.nextInt(3) > 0) {
+                b.link(u, 1 + random.nextInt(n), new LinkReport());
+            } else if (u <= b.getNumberOfVertices() && b.label(u) >= 0) {
+                long[] students = b.students(u);
+                if (students.length > 0)
+                    b.unlink(u, students[random.nextInt(students.length)]);
+            }
+            if (round % 100 == 0) {
+                int[] bySize = new int[b.getNumberOfVertices() + 1];
+                for (int uid = 1; uid <= b.getNumberOfVertices(); uid++)
+                    if (b.label(uid) == uid)
+                        bySize[b.predict(uid)] += 1;
+                int counted = 0;
+                for (Component c : b.largest(Integer.MAX_VALUE)) {
+                    assertEquals(c.identifier().id, b.label((int) c.identifier().id));
+                    bySize[c.size()] -= 1;
+                    counted += 1;
+                }
+                assertEquals(b.getNumberOfComponents(), counted);
+                for (int count : bySize)
+                    assertEquals(0, count);
+            }
+        }
+    }
+
+    @Test
+    public void assertSparseIdsMapToDenseSlots() throws IOException, NoSuchUserException {
+        long big = 9000000000000000000L;
+        String graph = big + " 7," + (big + 1) + "\n42 " + Long.MAX_VALUE + "\n5\n";
+        File f = write(graph);
+        ComponentBuilder b = new ComponentBuilder(true, true);
+        b.process(f);
+        assertEquals(6, b.getNumberOfVertices()); // one slot per user, whatever the ids
+        assertEquals(3, b.getNumberOfComponents());
+        assertEquals(3, b.predict(7));
+        assertEquals(2, b.predict(Long.MAX_VALUE));
+        assertArrayEquals(new long[]{7, big + 1}, b.students(big));
+        b.infect(big + 1);
+        assertEquals(2, b.getUserVersion(7));
+        assertEquals(1, b.getUserVersion(42));
+        try {
+            b.predict(8);
+            fail("8 is not a user");
+        } catch (NoSuchUserException expected) {
+            // the bounds follow the ids, not the slots
+        }
+        LinkReport report = new LinkReport();
+        b.link(big + 2, 42, report);
+        assertEquals(1, report.newUsers);
+        assertEquals(3, b.predict(big + 2));
+        assertEquals(1, b.unlink(big + 2, 42));
+        assertEquals("Id user: " + big + ", #users: 3: [" + big + ", " + (big + 1) + ", 7]", // in the order of the member ring
+                b.getComponent(7).toString());
+
+        ComponentBuilder restored = roundTrip(b);
+        assertEquals(b.getNumberOfComponents(), restored.getNumberOfComponents());
+        assertEquals(2, restored.getUserVersion(big));
+        assertArrayEquals(new long[]{big}, restored.coaches(big + 1));
+
+        ConcurrentQueries queries = new ConcurrentQueries(b);
+        assertEquals(3, queries.predict(big + 1));
+        assertEquals(3, queries.infect(7));
+        assertEquals(big, queries.getComponent(7).member(0));
+
+        b = new ComponentBuilder(true, true);
+        b.process(new BufferedReader(new StringReader(graph)));
+        assertEquals(3, b.predict(big + 1));
+    }
+
+    @Test
+    public void assertPopulationsAndHistoryFollowTheInfections() throws IOException, NoSuchUserException {
+        ComponentBuilder b = build("8\n1 2,3,4\n4 5\n5 6,7\n8\n");
+        assertEquals(8, b.population(1));
+        b.infectPartial(1, 4);
+        assertEquals(4, b.population(1));
+        assertEquals(4, b.population(2));
+        b.infect(8);
+        b.infect(6); // the whole component, its members on two versions, moves to the version of its root + 1
+        assertEquals(3, b.getUserVersion(6));
+        assertEquals(0, b.population(1));
+        assertEquals(1, b.population(2));
+        assertEquals(7, b.population(3));
+        History h = b.history();
+        assertEquals(3, h.size());
+        assertEquals(4, h.users(0));
+        assertEquals(8, b.id(h.root(1)));
+        assertEquals(2, h.from(2)); // the version of the root
+        assertEquals(3, h.to(2));
+        assertEquals(7, h.users(2));
+        assertArrayEquals(new int[]{0, 2}, b.historyOf(7));
+
+        LinkReport report = new LinkReport();
+        b.link(7, 8, report);
+        b.link(8, 9, report); // a new user joins on the version of its group
+        assertEquals(1, b.population(2));
+        assertEquals(8, b.population(3));
+        assertArrayEquals(new int[]{0, 1, 2}, b.historyOf(9));
+        ComponentBuilder r = roundTrip(b);
+        for (int v = 1; v <= 3; v++)
+            assertEquals(b.population(v), r.population(v));
+    }
+
+    @Test
+    public void assertBatchesInfectEachComponentOnce() throws IOException, NoSuchUserException {
+        ComponentBuilder b = build("8\n1 2,3\n4 5\n6\n");
+        long[] uids = {2, 3, 1, 99, 5, 2, 7};
+        BatchReport predicted = b.predictBatch(uids, uids.length);
+        assertEquals(2, predicted.groups());
+        assertEquals(5, predicted.users);
+        assertEquals(2, predicted.unknown); // 99, and 7 is in no line
+        assertEquals(1, predicted.group(0, 2));
+        assertEquals(1, b.getUserVersion(1));
+
+        BatchReport infected = b.infectBatch(uids, uids.length);
+        assertEquals(5, infected.users);
+        assertEquals(2, b.getUserVersion(1)); // once, not three times
+        assertEquals(2, b.getUserVersion(4));
+        assertEquals(1, b.getUserVersion(6));
+        assertEquals(2, b.history().size());
+        assertEquals(1, b.infectBatch(uids, 3).groups()); // the bitmap was cleared
+        assertEquals(3, b.getUserVersion(3));
+
+        File list = write("6\n4,5\n");
+        assertArrayEquals(new long[]{6, 4, 5}, GraphScanner.readIds(list));
+        assertEquals(3, b.predictBatch(GraphScanner.readIds(list), 3).users);
+    }
+
+    static ComponentBuilder build(String graph) throws IOException {
+        ComponentBuilder b = new ComponentBuilder();
+        b.process(new BufferedReader(new StringReader(graph)));
+        return b;
+    }
+
+    /**
+     * @return File a temp file with the given suffix, gone when the tests are
+     */
+    static File scratch(String suffix) throws IOException {
+        File f = File.createTempFile("kai", suffix);
+        f.deleteOnExit();
+        return f;
+    }
+
+    /**
+     * @return File a temp file with the given graph.conf (or delta, or id list) in it
+     */
+    static File write(String text) throws IOException {
+        File f = scratch(".conf");
+        try (Writer w = new FileWriter(f)) {
+            w.write(text);
+        }
+        return f;
+    }
+
+    /**
+     * @return ComponentBuilder the given one, saved to a snapshot and loaded back
+     */
+    static ComponentBuilder roundTrip(ComponentBuilder b) throws IOException {
+        File f = scratch(".snapshot");
+        Snapshot.save(b, f);
+        return Snapshot.load(f);
+    }
 }
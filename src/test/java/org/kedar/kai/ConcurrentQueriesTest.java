@@ -0,0 +1,199 @@
+package org.kedar.kai;
+
+/**
+ * A stress test for {@link org.kedar.kai.ConcurrentQueries}: readers, infections and reloads on many threads at once.
+ * @author kedar
+ */
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ConcurrentQueriesTest {
+    private static final int USERS = 4096;
+
+    @Test
+    public void assertNoInfectionIsLost() throws Exception {
+        final ConcurrentQueries queries = new ConcurrentQueries(blocks(4));
+        final AtomicIntegerArray infections = new AtomicIntegerArray(USERS + 1); // per root
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final AtomicBoolean done = new AtomicBoolean();
+        List<Thread> writers = new ArrayList<>(), readers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final Random random = new Random(t);
+            writers.add(new Thread(guarded(failure, new Task() {
+                @Override
+                public void run() throws Exception {
+                    for (int i = 0; i < 20000; i++) {
+                        int uid = 1 + random.nextInt(USERS);
+                        queries.infect(uid);
+                        infections.incrementAndGet(queries.getComponent(uid).identifier());
+                    }
+                }
+            })));
+            readers.add(new Thread(guarded(failure, new Task() {
+                @Override
+                public void run() throws Exception {
+                    int[] seen = new int[USERS + 1];
+                    while (!done.get()) {
+                        int uid = 1 + random.nextInt(USERS);
+                        ConcurrentQueries.Group g = queries.getComponent(uid);
+                        assertEquals(4, g.size());
+                        assertEquals(uid, g.member((uid - 1) % 4));
+                        int v = queries.version(uid);
+                        if (v < seen[uid]) // versions only go up
+                            throw new AssertionError("user: " + uid + " went from: " + seen[uid] + " to: " + v);
+                        seen[uid] = v;
+                    }
+                }
+            })));
+        }
+        runAll(writers, readers, done);
+        assertNull(failure.get());
+        for (int uid = 1; uid <= USERS; uid++)
+            assertEquals(1 + infections.get(queries.getComponent(uid).identifier()), queries.version(uid));
+        assertServesTheBuilder(queries);
+    }
+
+    @Test
+    public void assertReloadsNeverShowHalfMergedComponents() throws Exception {
+        final ConcurrentQueries queries = new ConcurrentQueries(blocks(4));
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final AtomicBoolean done = new AtomicBoolean();
+        List<Thread> writers = new ArrayList<>(), readers = new ArrayList<>();
+        writers.add(new Thread(guarded(failure, new Task() {
+            @Override
+            public void run() throws Exception {
+                for (int i = 0; i < 60; i++) {
+                    queries.reloading();
+                    ComponentBuilder next = blocks(i % 2 == 0 ? 64 : 4); // a setup, while the others infect
+                    queries.reloaded(next);
+                    if (i % 10 == 0)
+                        queries.link(1, 5, new LinkReport()); // undone by the next reload
+                }
+            }
+        })));
+        for (int t = 0; t < 4; t++) {
+            final Random random = new Random(t);
+            writers.add(new Thread(guarded(failure, new Task() {
+                @Override
+                public void run() throws Exception {
+                    for (int i = 0; i < 20000; i++)
+                        queries.infect(1 + random.nextInt(USERS));
+                }
+            })));
+            readers.add(new Thread(guarded(failure, new Task() {
+                @Override
+                public void run() throws Exception {
+                    while (!done.get()) {
+                        ConcurrentQueries.Frozen graph = queries.graph();
+                        int uid = 1 + random.nextInt(USERS);
+                        ConcurrentQueries.Group g = graph.group(uid);
+                        int size = g.size();
+                        if (uid <= 8 && size == 8)
+                            continue; // the two first groups of 4, linked
+                        if (size != 4 && size != 64)
+                            throw new AssertionError("user: " + uid + " is in a group of: " + size);
+                        int first = (uid - 1) / size * size + 1;
+                        long[] members = g.members();
+                        for (int i = 0; i < size; i++) {
+                            assertEquals(first + i, members[i]);
+                            assertEquals(g.identifier(), graph.group(members[i]).identifier());
+                        }
+                        int v = graph.version(members[0]);
+                        if (v < 1)
+                            throw new AssertionError("user: " + members[0] + " is on version: " + v);
+                    }
+                }
+            })));
+        }
+        runAll(writers, readers, done);
+        assertNull(failure.get());
+        assertServesTheBuilder(queries);
+    }
+
+    @Test
+    public void assertInfectionsDuringAReloadAreMadeAgain() throws Exception {
+        ConcurrentQueries queries = new ConcurrentQueries(blocks(4));
+        queries.infect(9);
+        queries.reloading();
+        queries.infect(5);
+        queries.infect(6); // the same group once reloaded
+        ComponentBuilder next = blocks(64);
+        queries.infect(70);
+        assertEquals(3, queries.version(8)); // still the old graph, 5 to 8 are a group
+        queries.reloaded(next);
+        assertEquals(64, queries.predict(1));
+        assertEquals(3, queries.version(9)); // 5 and 6, the infection of 9 came before the reload
+        assertEquals(2, queries.version(100));
+        assertEquals(1, queries.version(200));
+        queries.link(1, 65, new LinkReport());
+        assertEquals(128, queries.predict(100));
+        assertEquals(2, queries.version(100)); // a merge keeps the versions
+        assertServesTheBuilder(queries);
+    }
+
+    /**
+     * Checks that the frozen graph tells what the builder does, once nothing runs.
+     */
+    private static void assertServesTheBuilder(ConcurrentQueries queries) throws NoSuchUserException {
+        synchronized (queries) {
+            ComponentBuilder b = queries.builder();
+            for (int uid = 1; uid <= USERS; uid++) {
+                assertEquals(b.predict(uid), queries.predict(uid));
+                assertEquals(b.getUserVersion(uid), queries.version(uid));
+            }
+        }
+    }
+
+    /**
+     * @return ComponentBuilder with USERS users in consecutive blocks of the given size
+     */
+    private static ComponentBuilder blocks(int size) throws Exception {
+        StringBuilder graph = new StringBuilder().append(USERS).append('\n');
+        for (int uid = 1; uid <= USERS; uid += size) {
+            graph.append(uid);
+            for (int s = 1; s < size; s++)
+                graph.append(s == 1 ? ' ' : ',').append(uid + s);
+            graph.append('\n');
+        }
+        return ComponentBuilderTest.build(graph.toString());
+    }
+
+    private static void runAll(List<Thread> writers, List<Thread> readers, AtomicBoolean done) throws InterruptedException {
+        for (Thread t : readers)
+            t.start();
+        for (Thread t : writers)
+            t.start();
+        for (Thread t : writers)
+            t.join();
+        done.set(true);
+        for (Thread t : readers)
+            t.join();
+    }
+
+    private interface Task {
+        void run() throws Exception;
+    }
+
+    private static Runnable guarded(final AtomicReference<Throwable> failure, final Task task) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }
+        };
+    }
+}
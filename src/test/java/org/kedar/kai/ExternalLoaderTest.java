@@ -0,0 +1,62 @@
+package org.kedar.kai;
+
+/**
+ * A Unit Test for {@link org.kedar.kai.ExternalLoader}.
+ * @author kedar
+ */
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ExternalLoaderTest {
+
+    @Test
+    public void assertOutOfCoreSetupMatchesSetup() throws IOException, NoSuchUserException {
+        StringBuilder graph = new StringBuilder("300\n");
+        Random random = new Random(7);
+        for (int line = 0; line < 120; line++) {
+            graph.append(1 + random.nextInt(300)).append(' ');
+            for (int i = random.nextInt(4); i >= 0; i--)
+                graph.append(1 + random.nextInt(300)).append(i > 0 ? "," : "\n");
+        }
+        File conf = ComponentBuilderTest.write(graph.toString());
+        ComponentBuilder b = new ComponentBuilder();
+        b.process(new BufferedReader(new StringReader(graph.toString())));
+        File f = ComponentBuilderTest.scratch(".snapshot");
+        ExternalLoader loader = new ExternalLoader(true, 2); // a run of 2 edges, so the runs are merged in two passes
+        loader.load(conf, f);
+        assertEquals(120, loader.lines);
+        assertEquals(300, loader.vertices);
+        assertEquals(b.getNumberOfComponents(), loader.components);
+        ComponentBuilder r = Snapshot.load(f);
+        assertEquals(b.getNumberOfVertices(), r.getNumberOfVertices());
+        assertEquals(b.getNumberOfComponents(), r.getNumberOfComponents());
+        for (int uid = 1; uid <= 300; uid++) {
+            if (b.label(uid) < 0) {
+                assertEquals(-1, r.label(uid));
+                continue;
+            }
+            assertEquals(b.predict(uid), r.predict(uid));
+            assertEquals(1, r.getUserVersion(uid));
+            assertArrayEquals(b.students(uid), r.students(uid));
+            assertArrayEquals(b.coaches(uid), r.coaches(uid));
+            for (long sid : b.students(uid))
+                assertEquals(r.getComponent(uid), r.getComponent(sid));
+        }
+        try {
+            new ExternalLoader(true).load(ComponentBuilderTest.write("3\n1 2\n2 " + (Integer.MAX_VALUE - 2) + "\n"), f);
+            fail("an id that would grow the parent column to 2G slots should be rejected");
+        } catch (IllegalArgumentException expected) {
+            // nothing was grown
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package org.kedar.kai;
+
+/**
+ * A Unit Test for {@link org.kedar.kai.GenGraph}.
+ * @author kedar
+ */
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class GenGraphTest {
+
+    @Test
+    public void assertComponentsFollowTheDistribution() throws IOException, NoSuchUserException {
+        for (String sizes : new String[]{"uniform", "powerlaw:1.5", "giants:2"}) {
+            GenGraph.Spec spec = GenGraph.Spec.parse(new String[]{"--vertices", "200000", "--components", "500",
+                    "--sizes", sizes, "--degree", "3", "--seed", "7", "--threads", "4"});
+            String graph = generate(spec);
+            ComponentBuilder b = new ComponentBuilder();
+            b.process(new BufferedReader(new StringReader(graph)));
+            assertEquals(200000, b.getNumberOfVertices());
+            assertEquals(500, b.getNumberOfComponents());
+            int[] expected = spec.sizes(), actual = new int[500];
+            Set<Long> roots = new HashSet<>();
+            int k = 0;
+            for (int uid = 1; uid <= 200000; uid++)
+                if (roots.add(b.getComponent(uid).identifier().id))
+                    actual[k++] = b.predict(uid);
+            Arrays.sort(expected);
+            Arrays.sort(actual);
+            assertArrayEquals(sizes, expected, actual);
+        }
+    }
+
+    @Test
+    public void assertTheSeedDecidesTheGraph() throws IOException {
+        String[] args = {"--vertices", "300000", "--components", "10", "--sizes", "powerlaw", "--seed", "3", "--threads", "1"};
+        String one = generate(GenGraph.Spec.parse(args));
+        args[args.length - 1] = "8";
+        assertEquals(one, generate(GenGraph.Spec.parse(args)));
+        assertArrayEquals(new int[]{334, 333, 333}, GenGraph.Spec.apportion(new double[]{1, 1, 1}, 1000));
+        assertArrayEquals(new int[]{8, 1, 1}, GenGraph.Spec.apportion(new double[]{100, 1, 0}, 10));
+    }
+
+    private static String generate(GenGraph.Spec spec) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GenGraph.stream(spec, out);
+        return out.toString("US-ASCII");
+    }
+}
@@ -0,0 +1,55 @@
+package org.kedar.kai;
+
+/**
+ * A Unit Test for {@link org.kedar.kai.IntColumn}.
+ * @author kedar
+ */
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+public class IntColumnTest {
+
+    @Test
+    public void assertColumnsKeepTheirIntsWhereverTheyLive() throws IOException {
+        File dir = File.createTempFile("columns", "");
+        dir.delete();
+        dir.mkdir();
+        dir.deleteOnExit();
+        for (String mode : new String[]{"heap", "direct", "mapped:" + dir}) {
+            IntColumn c = new IntColumn(10, mode);
+            for (int i = 0; i < 10; i++)
+                c.set(i, i * i);
+            c.add(3, 1);
+            c.grow(1000);
+            assertEquals(1000, c.length());
+            assertEquals(10, c.get(3));
+            assertEquals(81, c.get(9));
+            assertEquals(0, c.get(999));
+            c.fill(500, 1000, -1);
+            assertEquals(-1, c.get(999));
+            assertEquals(!"heap".equals(mode), c.offHeap());
+            c.close();
+        }
+    }
+
+    @Test
+    public void assertMappedColumnsLeaveNoFilesBehind() throws IOException {
+        File dir = File.createTempFile("columns", "");
+        dir.delete();
+        dir.mkdir();
+        dir.deleteOnExit();
+        IntColumn c = new IntColumn(10, "mapped:" + dir);
+        c.set(9, 7);
+        c.grow(100);
+        assertEquals(7, c.get(9));
+        assertEquals(0, dir.list().length); // unlinked as soon as mapped, the mapping goes on without a name
+        c.close();
+        assertEquals(false, c.offHeap());
+        assertEquals(0, dir.list().length);
+    }
+}
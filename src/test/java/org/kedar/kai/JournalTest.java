@@ -0,0 +1,186 @@
+package org.kedar.kai;
+
+/**
+ * A Unit Test for {@link org.kedar.kai.Journal}.
+ * @author kedar
+ */
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class JournalTest {
+
+    @Test
+    public void assertJournalIsReplayedOnTopOfTheGraph() throws IOException, NoSuchUserException {
+        String graph = "9\n1 2,3\n3 4\n5 6\n7 8\n9\n";
+        File f = ComponentBuilderTest.scratch(".journal");
+        f.delete(); // a journal that does not exist yet
+        ComponentBuilder b = ComponentBuilderTest.build(graph);
+        File snapshot = ComponentBuilderTest.scratch(".snapshot");
+        try (Journal journal = new Journal(f, "never")) {
+            assertArrayEquals(new long[]{0, 0}, b.attach(journal));
+            b.infect(5);
+            b.link(4, 5, new LinkReport());
+            b.infectPartial(1, 2);
+            b.unlink(3, 4);
+            b.infectBatch(new long[]{7, 8, 9}, 3);
+            Snapshot.save(b, snapshot);
+            b.infect(1);
+            assertEquals(8, journal.records()); // the partial infection is two, its header and its users
+        }
+        ComponentBuilder replayed = ComponentBuilderTest.build(graph);
+        try (Journal journal = new Journal(f, "always")) {
+            assertArrayEquals(new long[]{8, 0}, replayed.attach(journal));
+            ComponentBuilder restored = Snapshot.load(snapshot);
+            assertArrayEquals(new long[]{1, 0}, restored.attach(journal)); // the snapshot has the first seven
+            for (int uid = 1; uid <= 9; uid++) {
+                assertEquals(b.getUserVersion(uid), replayed.getUserVersion(uid));
+                assertEquals(b.getUserVersion(uid), restored.getUserVersion(uid));
+                assertEquals(b.predict(uid), replayed.predict(uid));
+                assertEquals(b.predict(uid), restored.predict(uid));
+            }
+            replayed.infect(9);
+            assertEquals(9, journal.records());
+            assertEquals(1, journal.syncs());
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.setLength(raf.length() - 5); // a record torn by a crash
+        }
+        try (Journal journal = new Journal(f, "always")) {
+            assertEquals(8, journal.records());
+            journal.reset();
+            assertEquals(0, journal.records());
+        }
+    }
+
+    @Test
+    public void assertAPartialInfectionIsReplayedOnTheSameUsers() throws IOException, NoSuchUserException {
+        String graph = "9\n1\n2\n3\n4\n5\n6\n7\n8\n9\n";
+        File f = ComponentBuilderTest.scratch(".journal");
+        f.delete();
+        ComponentBuilder b = ComponentBuilderTest.build(graph);
+        File snapshot = ComponentBuilderTest.scratch(".snapshot");
+        try (Journal journal = new Journal(f, "never")) {
+            b.attach(journal);
+            b.link(1, 5, new LinkReport()); // the classrooms, out of order
+            b.link(1, 3, new LinkReport());
+            b.link(1, 7, new LinkReport());
+            b.link(2, 8, new LinkReport());
+            b.link(2, 4, new LinkReport());
+            b.link(2, 6, new LinkReport());
+            Snapshot.save(b, snapshot); // compacts the edges, sorted
+            b.infectPartial(1, 2); // neither classroom fits, 1 and 2 take one of their students each
+            b.infectPartial(2, 2);
+        }
+        ComponentBuilder replayed = ComponentBuilderTest.build(graph);
+        ComponentBuilder restored = Snapshot.load(snapshot);
+        try (Journal journal = new Journal(f, "never")) {
+            assertArrayEquals(new long[]{10, 0}, replayed.attach(journal)); // the links in the order they were made
+            assertArrayEquals(new long[]{4, 0}, restored.attach(journal));
+        }
+        for (int uid = 1; uid <= 9; uid++) {
+            assertEquals(b.getUserVersion(uid), replayed.getUserVersion(uid));
+            assertEquals(b.getUserVersion(uid), restored.getUserVersion(uid));
+        }
+        assertEquals(b.history().size(), replayed.history().size());
+    }
+
+    @Test
+    public void assertAnOperationWrittenInPiecesCountsOnlyOnceItEnds() throws IOException {
+        File f = ComponentBuilderTest.scratch(".journal");
+        File crashed = ComponentBuilderTest.scratch(".journal");
+        f.delete();
+        try (Journal journal = new Journal(f, "always", 4)) {
+            journal.append(Journal.INFECT, 0, 1, 0);
+            journal.commit();
+            for (int i = 0; i < 10; i++) // written in pieces of four, the last two are still in the buffer
+                journal.append(Journal.LINK, 0, i, i + 1);
+            assertEquals(1 + 1 + 10, journal.records());
+            Files.copy(f.toPath(), crashed.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            try (Journal reopened = new Journal(crashed, "always")) {
+                assertEquals(1, reopened.records()); // the pieces of the unfinished operation are cut
+            }
+            journal.commit();
+            Files.copy(f.toPath(), crashed.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        try (Journal reopened = new Journal(crashed, "always")) {
+            assertEquals(1 + 1 + 10 + 1, reopened.records());
+            final int[] links = {0};
+            assertEquals(11, reopened.replay(0, new Journal.Target() {
+                @Override
+                public void apply(int type, int arg, long a, long b) {
+                    if (type == Journal.LINK)
+                        links[0] += 1;
+                }
+            }));
+            assertEquals(10, links[0]);
+        }
+    }
+
+    @Test
+    public void assertNothingChangesWhenTheJournalCanNotBeWritten() throws IOException, NoSuchUserException {
+        File f = ComponentBuilderTest.scratch(".journal");
+        f.delete();
+        ComponentBuilder b = ComponentBuilderTest.build("4\n1 2\n3 4\n");
+        Journal journal = new Journal(f, "always");
+        b.attach(journal);
+        journal.close(); // every write fails from now on
+        try {
+            b.infect(1);
+            fail("the infection was not journaled");
+        } catch (UncheckedIOException e) {
+            assertEquals(1, b.getUserVersion(1));
+        }
+        try {
+            b.link(2, 3, new LinkReport());
+            fail("the link was not journaled");
+        } catch (UncheckedIOException e) {
+            assertEquals(2, b.predict(1));
+        }
+        try {
+            b.apply(ComponentBuilderTest.write("1 4\n"));
+            fail("the delta was not journaled");
+        } catch (UncheckedIOException e) {
+            assertEquals(2, b.predict(1));
+        }
+        assertEquals(0, b.journaled());
+    }
+
+    @Test
+    public void assertAnOperationIsWrittenInOnePiece() throws IOException {
+        File f = ComponentBuilderTest.scratch(".journal");
+        f.delete();
+        try (Journal journal = new Journal(f, "always")) {
+            long header = f.length();
+            for (int i = 0; i < 5000; i++) // more than the buffer starts with
+                journal.append(Journal.LINK, 0, i, i + 1);
+            assertEquals(header, f.length());
+            assertEquals(5000, journal.records());
+            journal.commit();
+            assertEquals(header + 5000L * Journal.RECORD_BYTES, f.length());
+            assertEquals(1, journal.syncs());
+        }
+    }
+
+    @Test
+    public void assertATimedJournalIsSyncedWithoutAnotherCommit() throws IOException, InterruptedException {
+        File f = ComponentBuilderTest.scratch(".journal");
+        f.delete();
+        try (Journal journal = new Journal(f, "50")) {
+            journal.append(Journal.INFECT, 0, 1, 0);
+            journal.commit(); // synced by the commit itself only if opening took 50 ms
+            Thread.sleep(300);
+            assertEquals(1, journal.syncs());
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package org.kedar.kai;
+
+/**
+ * A Unit Test for {@link org.kedar.kai.LatencyHistogram}.
+ * @author kedar
+ */
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void assertPercentilesAreTheBoundsOfTheirBuckets() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++)
+            h.record(i * 1000);
+        assertEquals(100, h.count());
+        assertEquals(50500, h.meanNanos());
+        assertEquals(65536, h.percentileNanos(0.5)); // 50us is in [32768, 65536)
+        assertEquals(131072, h.percentileNanos(0.99));
+    }
+}
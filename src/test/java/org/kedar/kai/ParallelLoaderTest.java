@@ -0,0 +1,51 @@
+package org.kedar.kai;
+
+/**
+ * A Unit Test for {@link org.kedar.kai.ParallelLoader}.
+ * @author kedar
+ */
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class ParallelLoaderTest {
+
+    @Test
+    public void assertParallelLoadMatchesSequential() throws IOException, NoSuchUserException {
+        Random r = new Random(42);
+        int n = 2000;
+        StringBuilder graph = new StringBuilder().append(n).append('\n');
+        for (int line = 0; line < 1500; line++) {
+            graph.append(1 + r.nextInt(n));
+            for (int s = r.nextInt(3); s > 0; s--)
+                graph.append(s == 1 ? ' ' : ',').append(1 + r.nextInt(n));
+            graph.append(line == 1200 ? "\n#\n" : "\n");
+        }
+        File f = ComponentBuilderTest.write(graph.toString());
+        ComponentBuilder sequential = new ComponentBuilder();
+        sequential.process(f);
+        ComponentBuilder parallel = new ComponentBuilder();
+        new ParallelLoader(4, 97).load(f, parallel);
+        assertEquals(sequential.getNumberOfComponents(), parallel.getNumberOfComponents());
+        for (int uid = 1; uid <= n; uid++) {
+            boolean known = true;
+            try {
+                sequential.predict(uid);
+            } catch (NoSuchUserException e) {
+                known = false;
+            }
+            if (known) {
+                assertEquals(sequential.predict(uid), parallel.predict(uid));
+                assertEquals(sequential.getComponent(uid).identifier().id, sequential.getComponent(uid).identifier().id);
+                long root = parallel.getComponent(uid).identifier().id;
+                for (User u : sequential.getComponent(uid))
+                    assertEquals(root, parallel.getComponent(u.id).identifier().id);
+            }
+        }
+    }
+}
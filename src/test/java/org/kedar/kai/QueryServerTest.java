@@ -0,0 +1,118 @@
+package org.kedar.kai;
+
+/**
+ * A Unit Test for {@link org.kedar.kai.QueryServer} and the {@link org.kedar.kai.QueryProtocol} it serves.
+ * @author kedar
+ */
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+public class QueryServerTest {
+
+    @Test
+    public void assertProtocolRepliesAreMachineReadable() throws Exception {
+        QueryProtocol protocol = new QueryProtocol(ComponentBuilderTest.build("8\n1 2\n3 4\n5 6,7\n2 3\n8\n"));
+        assertEquals("ok 4", protocol.execute("predict 3"));
+        assertEquals("ok 2 4", protocol.execute("infect 1"));
+        assertEquals("ok 2", protocol.execute("VERSION 4"));
+        assertEquals("ok 1", protocol.execute("version 5"));
+        assertEquals("ok 1 1 8", protocol.execute("limit= 1"));
+        assertEquals("ok 0", protocol.execute("limit= 2"));
+        assertEquals("ok 1 1", protocol.execute("link 4 5"));
+        assertEquals("error invalid arguments for: predict", protocol.execute("predict"));
+        assertEquals("error unknown command: frobnicate", protocol.execute("frobnicate 1"));
+        assertEquals("error invalid user id: 9, user ids up to 8 are available", protocol.execute("predict 9"));
+        assertEquals("ok 2 6 7", protocol.execute("students 5"));
+        assertEquals("ok 1 2", protocol.execute("coaches 3"));
+        assertEquals("ok 2", protocol.execute("groups"));
+        assertEquals("ok 1 1:7:2", protocol.execute("groups top 1"));
+        assertEquals("ok 2 1:7:2 8:1:1", protocol.execute("groups page 1"));
+        assertEquals("ok 1 2 0", protocol.execute("limit< 8 1"));
+        assertEquals(true, QueryProtocol.loads("SETUP other.conf"));
+        assertEquals(false, QueryProtocol.changes("predict 1"));
+        assertEquals(true, QueryProtocol.changes("journal reset"));
+        assertEquals(false, QueryProtocol.changes("journal"));
+    }
+
+    @Test
+    public void assertServerAnswersPipelinedClients() throws Exception {
+        File graph = ComponentBuilderTest.write("6\n1 2,3\n4 5\n6\n");
+        QueryServer server = new QueryServer(new QueryProtocol(new ComponentBuilder()), 0);
+        Thread serving = serve(server);
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.port())) {
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.US_ASCII));
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            out.print("setup " + graph.getPath() + "\n");
+            for (int i = 0; i < 1000; i++) // pipelined, the replies are read afterwards
+                out.print("predict " + (1 + i % 6) + "\n");
+            out.print("infect 4\nversion 5");
+            out.flush();
+            socket.shutdownOutput();
+            assertEquals("ok 6 3", in.readLine());
+            int[] sizes = {3, 3, 3, 2, 2, 1};
+            for (int i = 0; i < 1000; i++)
+                assertEquals("ok " + sizes[i % 6], in.readLine());
+            assertEquals("ok 2 2", in.readLine());
+            assertEquals("ok 2", in.readLine());
+            assertEquals(null, in.readLine());
+        } finally {
+            server.close();
+            serving.join();
+        }
+    }
+
+    @Test
+    public void assertChangesDuringALoadWaitForTheNewGraph() throws Exception {
+        StringBuilder graph = new StringBuilder("400000\n");
+        for (int uid = 1; uid < 400000; uid += 2)
+            graph.append(uid).append(' ').append(uid + 1).append('\n');
+        File big = ComponentBuilderTest.write(graph.toString());
+        QueryServer server = new QueryServer(new QueryProtocol(ComponentBuilderTest.build("4\n1 2\n3 4\n")), 0);
+        Thread serving = serve(server);
+        try (Socket loading = new Socket(InetAddress.getLoopbackAddress(), server.port());
+             Socket other = new Socket(InetAddress.getLoopbackAddress(), server.port())) {
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(loading.getOutputStream(), StandardCharsets.US_ASCII), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(loading.getInputStream(), StandardCharsets.US_ASCII));
+            out.println("setup " + big.getPath());
+            Thread.sleep(100); // the load has started, it may be over too
+            PrintWriter otherOut = new PrintWriter(new OutputStreamWriter(other.getOutputStream(), StandardCharsets.US_ASCII), true);
+            BufferedReader otherIn = new BufferedReader(new InputStreamReader(other.getInputStream(), StandardCharsets.US_ASCII));
+            otherOut.println("predict 3"); // from whichever graph is served, 3 and 4 are together in both
+            assertEquals("ok 2", otherIn.readLine());
+            otherOut.println("infect 3"); // waits for the new graph if the load is not over
+            assertEquals("ok 2 2", otherIn.readLine());
+            assertEquals("ok 400000 200000", in.readLine());
+            out.println("version 4");
+            assertEquals("ok 2", in.readLine()); // the infection was not lost to the load
+        } finally {
+            server.close();
+            serving.join();
+        }
+    }
+
+    private static Thread serve(final QueryServer server) {
+        Thread serving = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.serve();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        serving.start();
+        return serving;
+    }
+}
@@ -0,0 +1,44 @@
+package org.kedar.kai;
+
+/**
+ * A Unit Test for {@link org.kedar.kai.ShardedLoader}.
+ * @author kedar
+ */
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class ShardedLoaderTest {
+
+    @Test
+    public void assertShardedSetupMatchesSetup() throws IOException, NoSuchUserException {
+        StringBuilder graph = new StringBuilder("500\n");
+        Random random = new Random(11);
+        for (int line = 0; line < 300; line++) {
+            graph.append(1 + random.nextInt(500)).append(' ');
+            for (int i = random.nextInt(3); i >= 0; i--)
+                graph.append(1 + random.nextInt(500)).append(i > 0 ? "," : "\n");
+        }
+        graph.append("#\n1 2\n"); // the graph ends at the #, whatever shard it falls in
+        File conf = ComponentBuilderTest.write(graph.toString());
+        ComponentBuilder b = new ComponentBuilder();
+        b.process(conf);
+        ComponentBuilder sharded = new ComponentBuilder(false);
+        sharded.processSharded(conf, 3);
+        assertEquals(b.getNumberOfVertices(), sharded.getNumberOfVertices());
+        assertEquals(b.getNumberOfComponents(), sharded.getNumberOfComponents());
+        for (int uid = 1; uid <= 500; uid++) {
+            assertEquals(b.label(uid) < 0, sharded.label(uid) < 0);
+            if (b.label(uid) < 0)
+                continue;
+            assertEquals(b.predict(uid), sharded.predict(uid));
+            for (User u : b.getComponent(uid))
+                assertEquals(sharded.getComponent(uid), sharded.getComponent(u.id));
+        }
+    }
+}
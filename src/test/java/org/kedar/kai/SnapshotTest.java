@@ -0,0 +1,32 @@
+package org.kedar.kai;
+
+/**
+ * A Unit Test for {@link org.kedar.kai.Snapshot}.
+ * @author kedar
+ */
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+public class SnapshotTest {
+
+    @Test
+    public void assertSnapshotRestoresComponentsAndVersions() throws IOException, NoSuchUserException {
+        ComponentBuilder b = ComponentBuilderTest.build("8\n1 2\n3 4\n5 6,7\n2 3\n8\n");
+        b.infect(4);
+        b.infect(1);
+        b.infect(6);
+        ComponentBuilder r = ComponentBuilderTest.roundTrip(b);
+        assertEquals(b.getNumberOfVertices(), r.getNumberOfVertices());
+        assertEquals(b.getNumberOfComponents(), r.getNumberOfComponents());
+        for (int uid = 1; uid <= 8; uid++) {
+            assertEquals(b.predict(uid), r.predict(uid));
+            assertEquals(b.getUserVersion(uid), r.getUserVersion(uid));
+        }
+        assertEquals(3, r.getUserVersion(2));
+        assertEquals(2, r.getUserVersion(7));
+    }
+}